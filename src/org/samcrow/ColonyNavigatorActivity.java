@@ -1,8 +1,13 @@
 package org.samcrow;
 
+import java.util.concurrent.Executor;
+
 import org.samcrow.data.Colony;
+import org.samcrow.data.ColonyIdIndex;
+import org.samcrow.data.ColonySet;
 import org.samcrow.data.provider.ColonyProvider;
 import org.samcrow.data.provider.MemoryCardDataProvider;
+import org.samcrow.data.provider.MemoryCardDataProvider.EditStorage;
 import org.samcrow.help.HelpActivity;
 import org.samcrow.stanford.R;
 
@@ -13,6 +18,10 @@ import android.location.Criteria;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -27,12 +36,52 @@ import android.widget.Toast;
 
 public class ColonyNavigatorActivity extends Activity {
 
-	public static final ColonyProvider provider = new MemoryCardDataProvider();
+	/**
+	 * Runs tasks on the user interface thread
+	 */
+	private static final Executor uiThread = new Executor() {
+		private final Handler handler = new Handler(Looper.getMainLooper());
+
+		@Override
+		public void execute(Runnable command) {
+			handler.post(command);
+		}
+	};
+
+	/**
+	 * Loads the colonies in the background, and adds them to its set on the user interface thread
+	 */
+	public static final ColonyProvider provider = new MemoryCardDataProvider(EditStorage.SLOTS, uiThread);
 
 	private MapSurfaceView mapView;
 	
 	private EditText colonyField;
 
+	/**
+	 * The maximum number of suggested colony IDs to show in the title
+	 */
+	private static final int kMaxTitleSuggestions = 8;
+
+	/**
+	 * Index of colony IDs, used to suggest colonies as an ID is typed
+	 */
+	private final ColonyIdIndex idIndex = new ColonyIdIndex();
+
+	/**
+	 * The set of colonies that {@link #idIndex} follows
+	 */
+	private ColonySet indexedColonies;
+
+	/**
+	 * Holds the IDs suggested for the text in the colony field
+	 */
+	private final int[] suggestions = new int[256];
+
+	/**
+	 * The activity title before any suggestions were shown
+	 */
+	private CharSequence originalTitle;
+
 	private LocationListener listener = new NavigatorLocationListener();
 
 	/** Called when the activity is first created. */
@@ -58,6 +107,23 @@ public class ColonyNavigatorActivity extends Activity {
 			}
 
 		});
+		//Suggest colonies on every keystroke
+		originalTitle = getTitle();
+		colonyField.addTextChangedListener(new TextWatcher() {
+
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				showSuggestions(s);
+			}
+		});
 
 		//Handler to show the help view
 		((Button) findViewById(R.id.helpButton)).setOnClickListener(new OnClickListener() {
@@ -120,28 +186,87 @@ public class ColonyNavigatorActivity extends Activity {
 	}
 
 	/**
-	 * Get the colony number from the colony field and highlight the colony corresponding to the number entered
+	 * Make sure that the ID index follows the provider's current set of colonies
+	 * @return True if the index is ready, false if there are no colonies
+	 */
+	private boolean updateIdIndex() {
+		ColonySet colonies = provider.getColonies();
+		if(colonies == null) {
+			return false;
+		}
+		if(colonies != indexedColonies) {
+			idIndex.track(colonies);
+			indexedColonies = colonies;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the colonies matching the text in the colony field, show their IDs
+	 * in the title, and outline them on the map
+	 * @param text The text in the colony field
+	 */
+	private void showSuggestions(CharSequence text) {
+		int count = updateIdIndex() ? idIndex.find(text, suggestions) : -1;
+		if(count <= 0) {
+			setTitle(originalTitle);
+			mapView.setSuggestedColonies(suggestions, 0);
+			return;
+		}
+		int stored = Math.min(count, suggestions.length);
+		mapView.setSuggestedColonies(suggestions, stored);
+
+		StringBuilder title = new StringBuilder();
+		int shown = Math.min(stored, kMaxTitleSuggestions);
+		for(int i = 0; i < shown; i++) {
+			if(i != 0) {
+				title.append(", ");
+			}
+			title.append(suggestions[i]);
+		}
+		if(count > shown) {
+			title.append(" and ").append(count - shown).append(" more");
+		}
+		setTitle(title);
+	}
+
+	/**
+	 * Get the colony number from the colony field and highlight the colony corresponding to the number entered.
+	 * If a range of numbers, like 500-600, is entered, the first colony in the range is highlighted.
+	 * If nothing is entered, the nearest focus colony that has not been visited is highlighted.
 	 */
 	protected void highlightColony() {
 
-		String numberString = colonyField.getText().toString();
+		String numberString = colonyField.getText().toString().trim();
 
 		if(numberString.length() > 0) {
 
-			int id = Integer.valueOf(numberString);
+			int id;
+			if(numberString.indexOf('-') > 0 && updateIdIndex() && idIndex.find(numberString, suggestions) > 0) {
+				//Range: the matching colonies are already outlined, so select the first one
+				id = suggestions[0];
+			}
+			else {
+				try {
+					id = Integer.parseInt(numberString);
+				}
+				catch (NumberFormatException e) {
+					Toast.makeText(this, "Colony #"+numberString+" could not be found.", Toast.LENGTH_LONG).show();
+					return;
+				}
+			}
 
-			for(Colony colony : provider.getColonies()) {
-				if(colony.getId() == id) {
-					//Found the colony
-					mapView.setSelectedColony(colony);
+			Colony colony = provider.getColonies().getById(id);
+			if(colony != null) {
+				//Found the colony
+				mapView.setSelectedColony(colony);
 
-					//Hide the keyboard
-					InputMethodManager imm = (InputMethodManager)getSystemService(
-							Context.INPUT_METHOD_SERVICE);
-					imm.hideSoftInputFromWindow(colonyField.getWindowToken(), 0);
+				//Hide the keyboard
+				InputMethodManager imm = (InputMethodManager)getSystemService(
+						Context.INPUT_METHOD_SERVICE);
+				imm.hideSoftInputFromWindow(colonyField.getWindowToken(), 0);
 
-					return;
-				}
+				return;
 			}
 
 			//Colony not found
@@ -149,6 +274,13 @@ public class ColonyNavigatorActivity extends Activity {
 		}
 
 		else {//No text entered
+			//Select the nearest focus colony that still needs to be visited
+			Colony colony = mapView.findUnvisitedFocusColony(NavigatorLocationListener.getLocation());
+			if(colony != null) {
+				mapView.setSelectedColony(colony);
+				Toast.makeText(this, "Nearest focus colony not visited: #"+colony.getId(), Toast.LENGTH_SHORT).show();
+				return;
+			}
 			Toast.makeText(this, "Please enter a colony number to select it.", Toast.LENGTH_LONG).show();
 		}
 	}
@@ -166,6 +298,12 @@ public class ColonyNavigatorActivity extends Activity {
 
 		//Stop getting location updates
 		((LocationManager) getSystemService(LOCATION_SERVICE)).removeUpdates(listener);
+
+		//Write any edits that are waiting, in case the application is stopped
+		provider.flush();
+
+		//Stop checking files for changes
+		provider.pauseWatching();
 	}
 
 	/* (non-Javadoc)
@@ -177,6 +315,21 @@ public class ColonyNavigatorActivity extends Activity {
 
 		//Resume location updates
 		requestLocationUpdates();
+
+		//Check files for changes made while paused
+		provider.resumeWatching();
+	}
+
+	/* (non-Javadoc)
+	 * @see android.app.Activity#onDestroy()
+	 */
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+
+		//The set of colonies outlives this activity, so stop it from notifying the index
+		idIndex.untrack();
+		indexedColonies = null;
 	}
 
 
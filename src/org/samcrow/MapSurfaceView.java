@@ -2,9 +2,16 @@ package org.samcrow;
 
 import static org.samcrow.ColonyNavigatorActivity.provider;
 
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.samcrow.data.Colony;
+import org.samcrow.data.ColonyCensus;
+import org.samcrow.data.ColonyGrid;
+import org.samcrow.data.ColonyQuadtree;
+import org.samcrow.data.ColonySet;
+import org.samcrow.data.ColonyStatusIndex;
 import org.samcrow.util.CoordinateTransformer;
 import org.samcrow.util.MapPoint;
 
@@ -29,15 +36,12 @@ import android.view.View;
  */
 public class MapSurfaceView extends View implements OnScaleGestureListener {
 
-	// Colony location reference points
-	private static final MapPoint topLeft = new MapPoint(provider.getColonies().getById(962), 31.87265776, -109.04243);
-	private static final MapPoint bottomRight = new MapPoint(provider.getColonies().getById(980), 31.87087500797029, -109.03870950670428);
-	@SuppressWarnings("unused")
-	private static final MapPoint bottomLeft = new MapPoint(provider.getColonies().getById(567), 31.871036, -109.042678);
-	private static final MapPoint topRight = new MapPoint(provider.getColonies().getById(442), 31.872357, -109.0391114);
-
-	private CoordinateTransformer transform = new CoordinateTransformer(
-			topLeft, topRight, bottomRight/*, bottomLeft*/);
+	/**
+	 * Converts GPS locations to colony coordinates. This is null until
+	 * the colonies at the reference points have been loaded.
+	 * See {@link #getTransform()}.
+	 */
+	private CoordinateTransformer transform;
 	
 	/**
 	 * Background shape alpha (transparency), 0-255
@@ -93,6 +97,10 @@ public class MapSurfaceView extends View implements OnScaleGestureListener {
 	private float relativeY = 0;
 
 	private Rect colonyBounds = getColonyMapBounds();
+	/**
+	 * True if {@link #colonyBounds} was found after all the colonies were loaded
+	 */
+	private boolean colonyBoundsFinal = false;
 
 	/**
 	 * Transformation matrix used to transform points from colony coordinates to screen coordinates
@@ -111,10 +119,178 @@ public class MapSurfaceView extends View implements OnScaleGestureListener {
 	 */
 	private static final Paint paint = new Paint();
 	private Path triangle = new Path();
+	/**
+	 * A paint object used to outline the colony nearest to the user
+	 */
+	private static final Paint nearestPaint = new Paint();
+	/**
+	 * A paint object used to outline colonies suggested for the text in the colony field
+	 */
+	private static final Paint suggestedPaint = new Paint();
 	static {
 		paint.setAntiAlias(true);
+		nearestPaint.setAntiAlias(true);
+		nearestPaint.setStyle(Paint.Style.STROKE);
+		nearestPaint.setStrokeWidth(3);
+		nearestPaint.setColor(Color.rgb(255, 140, 0)); // orange
+		suggestedPaint.setAntiAlias(true);
+		suggestedPaint.setStyle(Paint.Style.STROKE);
+		suggestedPaint.setStrokeWidth(2);
+		suggestedPaint.setColor(Color.MAGENTA);
 	}
 
+	/**
+	 * Grid cell size, in meters, of the spatial index used to find the
+	 * colony nearest to the user
+	 */
+	private static final double NEAREST_GRID_CELL_SIZE = 10;
+
+	/**
+	 * Spatial index of the colonies, used to find the colony nearest to the user
+	 */
+	private ColonyGrid nearestGrid;
+	/**
+	 * Spatial index of the colonies, used to find the colonies that are visible
+	 */
+	private ColonyQuadtree visibleTree;
+	/**
+	 * IDs of the colonies suggested for the text in the colony field, sorted
+	 */
+	private int[] suggestedIds = new int[0];
+	/**
+	 * The number of valid IDs in {@link #suggestedIds}
+	 */
+	private int suggestedCount = 0;
+
+	/**
+	 * Keeps the colony bounds up to date
+	 */
+	private ColonyCensus census;
+	/**
+	 * Index of the colonies by status, used to find the colonies that have some
+	 * status without looking at every colony
+	 */
+	private ColonyStatusIndex statusIndex;
+	/**
+	 * Holds the results of a status query. Grows as needed.
+	 */
+	private Colony[] statusResult = new Colony[64];
+	/**
+	 * The set of colonies that {@link #nearestGrid}, {@link #visibleTree},
+	 * {@link #census} and {@link #statusIndex} track
+	 */
+	private ColonySet indexedColonies;
+	/**
+	 * Holds the results of a visible-colony query. Grows as needed.
+	 */
+	private Colony[] visibleResult = new Colony[64];
+	/**
+	 * Inverse of {@link #displayTransform}, used to find the visible area of the map
+	 */
+	private final Matrix inverseTransform = new Matrix();
+	/**
+	 * The visible area of the window, and then of the map
+	 */
+	private final RectF visibleArea = new RectF();
+	/**
+	 * Holds the result of a nearest-colony query
+	 */
+	private final Colony[] nearestResult = new Colony[1];
+	/**
+	 * The colony nearest to the user's last known location, or null
+	 */
+	private volatile Colony nearestColony;
+	/**
+	 * The maximum number of changed colonies to redraw separately. If more
+	 * change before a redraw, the whole map is redrawn.
+	 */
+	private static final int kMaxChangedColonies = 32;
+	/**
+	 * Guards {@link #redrawPosted}, {@link #fullRedraw} and {@link #changedColonies}
+	 */
+	private final Object redrawLock = new Object();
+	/**
+	 * True if {@link #redrawTask} has been posted and has not run yet
+	 */
+	private boolean redrawPosted = false;
+	/**
+	 * True if the whole map needs to be redrawn, because colonies were added or removed
+	 */
+	private boolean fullRedraw = false;
+	/**
+	 * Colonies that have changed and need to be redrawn
+	 */
+	private final List<Colony> changedColonies = new ArrayList<Colony>();
+	/**
+	 * Holds the colonies to redraw while {@link #redrawTask} runs
+	 */
+	private final List<Colony> redrawnColonies = new ArrayList<Colony>();
+	/**
+	 * Invalidates the parts of the map that changed. Runs on the user interface thread.
+	 */
+	private final Runnable redrawTask = new Runnable() {
+		@Override
+		public void run() {
+			boolean full;
+			synchronized(redrawLock) {
+				full = fullRedraw;
+				redrawnColonies.addAll(changedColonies);
+				changedColonies.clear();
+				fullRedraw = false;
+				redrawPosted = false;
+			}
+			if(full) {
+				invalidate();
+			}
+			else {
+				for(Colony colony : redrawnColonies) {
+					invalidateColony(colony);
+				}
+			}
+			redrawnColonies.clear();
+		}
+	};
+	/**
+	 * Requests a redraw when colonies are added, removed or changed, such as while
+	 * they are being loaded or when the focus colonies change. When colonies change,
+	 * only the areas around them are redrawn. Many changes in a row cause only one redraw.
+	 */
+	private final ColonySet.ChangeListener redrawListener = new ColonySet.ChangeListener() {
+		@Override
+		public void colonyAdded(Colony colony) {
+			requestRedraw(null);
+		}
+
+		@Override
+		public void colonyRemoved(Colony colony) {
+			requestRedraw(null);
+		}
+
+		@Override
+		public void colonyChanged(Colony colony) {
+			requestRedraw(colony);
+		}
+
+		/**
+		 * @param colony The colony to redraw, or null to redraw the whole map
+		 */
+		private void requestRedraw(Colony colony) {
+			synchronized(redrawLock) {
+				if(colony == null || changedColonies.size() >= kMaxChangedColonies) {
+					fullRedraw = true;
+					changedColonies.clear();
+				}
+				else if(!fullRedraw) {
+					changedColonies.add(colony);
+				}
+				if(!redrawPosted) {
+					redrawPosted = true;
+					post(redrawTask);
+				}
+			}
+		}
+	};
+
 	/* Static import colonies from ColonyNavigatoActivity */
 
 	/**
@@ -158,6 +334,11 @@ public class MapSurfaceView extends View implements OnScaleGestureListener {
 	 */
 	@Override
 	protected void onDraw(Canvas canvas) {
+		if(!colonyBoundsFinal) {
+			//Colonies are still being loaded, so the bounds may grow
+			colonyBoundsFinal = provider.getReadyFuture().isDone();
+			colonyBounds = getColonyMapBounds();
+		}
 
 		displayTransform.reset();
 		//Rotate to convert to true north
@@ -177,122 +358,139 @@ public class MapSurfaceView extends View implements OnScaleGestureListener {
 		// Clear the screen
 		canvas.drawColor(Color.WHITE);
 
-		Set<Colony> colonies = provider.getColonies();
+		//Find the colonies in the area of the map that is visible
+		int visibleCount = 0;
+		if(displayTransform.invert(inverseTransform)) {
+			visibleArea.set(0, 0, getWidth(), getHeight());
+			//The map is rotated, so this is the bounding box of the visible area
+			inverseTransform.mapRect(visibleArea);
+			visibleCount = findVisibleColonies(visibleArea);
+		}
 
 		Location location = NavigatorLocationListener.getLocation();
-		if (colonies != null) {
+		if (visibleCount != 0) {
 
-			synchronized (colonies) {
-				for (Colony colony : colonies) {
+			//Compare IDs to find the selected colony, because the selected
+			//colony may be a different object with the same ID
+			Colony selected = selectedColony;
+			int selectedId = selected != null ? selected.getId() : 0;
+			for (int i = 0; i < visibleCount; i++) {
+				//Read each colony's state once, so that it is consistent
+				Colony.Snapshot state = visibleResult[i].snapshot();
 
-					float[] points = new float[] {
-							(float) colony.getX(),
-							(float) colony.getY()
-					};
+				float[] points = new float[] {
+						(float) state.getX(),
+						(float) state.getY()
+				};
 
-					displayTransform.mapPoints(points);
+				displayTransform.mapPoints(points);
 
-					if(inWindow(points)) {
+				if(inWindow(points)) {
 
-						if(colony == selectedColony) {
-							//Draw the colony in red with a larger circle
-							paint.setColor(Color.RED);
-							canvas.drawCircle(points[0],
-									points[1], 4, paint);
+					if(suggestedCount != 0 && Arrays.binarySearch(suggestedIds, 0, suggestedCount, state.getId()) >= 0) {
+						//Outline colonies that match what the user is typing
+						canvas.drawCircle(points[0], points[1], BG_RADIUS + 2, suggestedPaint);
+					}
 
-							//Draw some extra accoutrements around it
+					if(selected != null && state.getId() == selectedId) {
+						//Draw the colony in red with a larger circle
+						paint.setColor(Color.RED);
+						canvas.drawCircle(points[0],
+								points[1], 4, paint);
 
-							//Pixels offset from the center of the circle to the tip of the triangle
-							final short triOffset = 8;
-							//Width of the triangle
-							final short triWidth = 10;
-							//Length of the triangle
-							final short triLength = 20;
+						//Draw some extra accoutrements around it
 
-							triangle.reset();
-							triangle.moveTo(points[0], points[1] - triOffset * scale);
-							triangle.lineTo((float) (points[0] + (triWidth / 2.0) * scale), points[1] - (triOffset + triLength) * scale);
-							triangle.lineTo((float) (points[0] - (triWidth / 2.0) * scale), points[1] - (triOffset + triLength) * scale);
-							triangle.close();
+						//Pixels offset from the center of the circle to the tip of the triangle
+						final short triOffset = 8;
+						//Width of the triangle
+						final short triWidth = 10;
+						//Length of the triangle
+						final short triLength = 20;
 
-							canvas.drawPath(triangle, paint);
+						triangle.reset();
+						triangle.moveTo(points[0], points[1] - triOffset * scale);
+						triangle.lineTo((float) (points[0] + (triWidth / 2.0) * scale), points[1] - (triOffset + triLength) * scale);
+						triangle.lineTo((float) (points[0] - (triWidth / 2.0) * scale), points[1] - (triOffset + triLength) * scale);
+						triangle.close();
 
-							//Bottom triangle
-							triangle.reset();
-							triangle.moveTo(points[0], points[1] + triOffset * scale);
-							triangle.lineTo((float) (points[0] + (triWidth / 2.0) * scale), points[1] + (triOffset + triLength) * scale);
-							triangle.lineTo((float) (points[0] - (triWidth / 2.0) * scale), points[1] + (triOffset + triLength) * scale);
-							triangle.close();
+						canvas.drawPath(triangle, paint);
 
-							canvas.drawPath(triangle, paint);
+						//Bottom triangle
+						triangle.reset();
+						triangle.moveTo(points[0], points[1] + triOffset * scale);
+						triangle.lineTo((float) (points[0] + (triWidth / 2.0) * scale), points[1] + (triOffset + triLength) * scale);
+						triangle.lineTo((float) (points[0] - (triWidth / 2.0) * scale), points[1] + (triOffset + triLength) * scale);
+						triangle.close();
 
-							//Left triangle
-							triangle.reset();
-							triangle.moveTo(points[0] - triOffset * scale, points[1]);
-							triangle.lineTo(points[0] - (triOffset + triLength) * scale, (float) (points[1] + (triWidth / 2.0) * scale));
-							triangle.lineTo(points[0] - (triOffset + triLength) * scale, (float) (points[1] - (triWidth / 2.0) * scale));
-							triangle.close();
+						canvas.drawPath(triangle, paint);
 
-							canvas.drawPath(triangle, paint);
+						//Left triangle
+						triangle.reset();
+						triangle.moveTo(points[0] - triOffset * scale, points[1]);
+						triangle.lineTo(points[0] - (triOffset + triLength) * scale, (float) (points[1] + (triWidth / 2.0) * scale));
+						triangle.lineTo(points[0] - (triOffset + triLength) * scale, (float) (points[1] - (triWidth / 2.0) * scale));
+						triangle.close();
 
-						}
-						else {//Not selected, draw it as usual
-							
-							//Colony draw information:
-							//Focus & not visited: blue
-							//Focus & visited: blue & green
-							//Normal & not visited: gray
-							//Normal & visited: green
+						canvas.drawPath(triangle, paint);
+
+					}
+					else {//Not selected, draw it as usual
+						
+						//Colony draw information:
+						//Focus & not visited: blue
+						//Focus & visited: blue & green
+						//Normal & not visited: gray
+						//Normal & visited: green
+						
+						//Draw the colony in a different color if it has not been visited
+						if(!state.isVisited()) {
+							if(state.isFocusColony()) {
+								//Draw a semitransparent circle
+								paint.setColor(BG_FOCUS_COLOR);
+								canvas.drawCircle(points[0], points[1], BG_RADIUS, paint);
+							}
+							else {
+								//Draw a semitransparent circle
+								paint.setColor(BG_NORMAL_COLOR);
+								canvas.drawCircle(points[0], points[1], BG_RADIUS, paint);
+							}
 							
-							//Draw the colony in a different color if it has not been visited
-							if(!colony.isVisited()) {
-								if(colony.isFocusColony()) {
-									//Draw a semitransparent circle
-									paint.setColor(BG_FOCUS_COLOR);
-									canvas.drawCircle(points[0], points[1], BG_RADIUS, paint);
-								}
-								else {
-									//Draw a semitransparent circle
-									paint.setColor(BG_NORMAL_COLOR);
-									canvas.drawCircle(points[0], points[1], BG_RADIUS, paint);
-								}
-								
-								paint.setColor(Color.BLACK);
+							paint.setColor(Color.BLACK);
+						}
+						else {
+							if(state.isFocusColony()) {
+								//Focus and visited. Split the circle into two parts
+								//Left side blue
+								paint.setColor(BG_FOCUS_COLOR);
+								RectF bgRect = new RectF( (float)( points[0] - BG_RADIUS), (float)( points[1] - BG_RADIUS), (float)( points[0] + BG_RADIUS), (float)( points[1] + BG_RADIUS));
+								canvas.drawArc(bgRect, 90, 180, true, paint);
+								//Right side green
+								paint.setColor(BG_VISITED_COLOR);
+								canvas.drawArc(bgRect, -90, 180, true, paint);
 							}
 							else {
-								if(colony.isFocusColony()) {
-									//Focus and visited. Split the circle into two parts
-									//Left side blue
-									paint.setColor(BG_FOCUS_COLOR);
-									RectF bgRect = new RectF( (float)( points[0] - BG_RADIUS), (float)( points[1] - BG_RADIUS), (float)( points[0] + BG_RADIUS), (float)( points[1] + BG_RADIUS));
-									canvas.drawArc(bgRect, 90, 180, true, paint);
-									//Right side green
-									paint.setColor(BG_VISITED_COLOR);
-									canvas.drawArc(bgRect, -90, 180, true, paint);
-								}
-								else {
-									//Draw a semitransparent circle
-									paint.setColor(BG_VISITED_COLOR);
-									canvas.drawCircle(points[0], points[1], BG_RADIUS, paint);
-								}
-								
-								//Draw the colony in a different color
-								paint.setColor(Color.GREEN);
+								//Draw a semitransparent circle
+								paint.setColor(BG_VISITED_COLOR);
+								canvas.drawCircle(points[0], points[1], BG_RADIUS, paint);
 							}
-							canvas.drawCircle(points[0],
-									points[1], 2, paint);
+							
+							//Draw the colony in a different color
+							paint.setColor(Color.GREEN);
 						}
-
-						paint.setColor(colonyLabelColor);
-						paint.setTextSize(10 * scale);
-						canvas.drawText(String.valueOf(colony.getId()),
-								points[0] + 2 * scale, points[1] + 3 * scale,
-								paint);
+						canvas.drawCircle(points[0],
+								points[1], 2, paint);
 					}
+
+					paint.setColor(colonyLabelColor);
+					paint.setTextSize(10 * scale);
+					canvas.drawText(String.valueOf(state.getId()),
+							points[0] + 2 * scale, points[1] + 3 * scale,
+							paint);
 				}
 			}
 		}
-		if (location != null) {
+		CoordinateTransformer transform = getTransform();
+		if (location != null && transform != null) {
 			//Get the location in colony coordinates
 			PointF pointColonyCoords = transform.toLocal(location.getLongitude(), location.getLatitude());
 
@@ -305,6 +503,17 @@ public class MapSurfaceView extends View implements OnScaleGestureListener {
 				canvas.drawCircle(locationPoint[0], locationPoint[1], 5 * scale, paint);
 			}
 
+			Colony nearest = nearestColony;
+			if(nearest != null) {
+				//Outline the colony that the user is closest to
+				Colony.Snapshot nearestState = nearest.snapshot();
+				float[] nearestPoint = new float[] { (float) nearestState.getX(), (float) nearestState.getY() };
+				displayTransform.mapPoints(nearestPoint);
+				if(inWindow(nearestPoint)) {
+					canvas.drawCircle(nearestPoint[0], nearestPoint[1], BG_RADIUS + 4, nearestPaint);
+				}
+			}
+
 			if(selectedColony != null) {
 				//Have location and selected colony
 				//Draw a line between them
@@ -312,7 +521,8 @@ public class MapSurfaceView extends View implements OnScaleGestureListener {
 				paint.setColor(Color.GREEN);
 				paint.setColor(oldColor);
 
-				float[] selectedPoint = new float[] { (float) selectedColony.getX(), (float) selectedColony.getY() };
+				Colony.Snapshot selectedState = selectedColony.snapshot();
+				float[] selectedPoint = new float[] { (float) selectedState.getX(), (float) selectedState.getY() };
 				displayTransform.mapPoints(selectedPoint);
 
 				canvas.drawLine(locationPoint[0], locationPoint[1], selectedPoint[0], selectedPoint[1], paint);
@@ -352,37 +562,19 @@ public class MapSurfaceView extends View implements OnScaleGestureListener {
 	 * @return the rectangle.
 	 */
 	private Rect getColonyMapBounds() {
-		Set<Colony> colonies = provider.getColonies();
+		double[] bounds = new double[4];
 
-		if (colonies == null) {
+		if (!updateIndexes() || !census.getBounds(bounds)) {
 			// No valid colonies: Return a rect with everything zero.
 			return new Rect();
 		} else {
-			// Colonies obtained
+			// Colonies obtained. The census keeps the bounds up to date.
 
 			// Find the most north colony
-			double furthestNorth = 0;
-			double furthestSouth = 400;// Initial, high, value
-			double furthestEast = 0;
-			double furthestWest = 400;// Initial, high, value
-			for (Colony colony : colonies) {
-				double colonyY = colony.getY();
-				if (colonyY > furthestNorth) {
-					furthestNorth = colonyY;
-				}
-				if (colonyY < furthestSouth) {
-					furthestSouth = colonyY;
-				}
-
-				double colonyX = colony.getX();
-				if (colonyX > furthestEast) {
-					furthestEast = colonyX;
-				}
-
-				if (colonyX < furthestWest) {
-					furthestWest = colonyX;
-				}
-			}
+			double furthestNorth = Math.max(bounds[3], 0);
+			double furthestSouth = Math.min(bounds[1], 400);// Initial, high, value
+			double furthestEast = Math.max(bounds[2], 0);
+			double furthestWest = Math.min(bounds[0], 400);// Initial, high, value
 
 			return new Rect((int) Math.round(furthestWest),
 					(int) Math.round(furthestNorth),
@@ -391,6 +583,201 @@ public class MapSurfaceView extends View implements OnScaleGestureListener {
 		}
 	}
 
+	/**
+	 * Find the colony nearest to a location and remember it so that it will be
+	 * outlined on the map
+	 * @param location The user's location
+	 * @return The nearest colony, or null if there are no colonies
+	 */
+	public Colony updateNearestColony(Location location) {
+		synchronized(nearestResult) {
+			CoordinateTransformer transform = getTransform();
+			if(!updateIndexes() || transform == null) {
+				nearestColony = null;
+				return null;
+			}
+
+			PointF local = transform.toLocal(location.getLongitude(), location.getLatitude());
+			int found = nearestGrid.nearest(local.x, local.y, 0, 0, nearestResult);
+			nearestColony = found > 0 ? nearestResult[0] : null;
+			return nearestColony;
+		}
+	}
+
+	/**
+	 * Find the focus colony that has not been visited and is nearest to a location.
+	 * Only the focus colonies that have not been visited are examined.
+	 * @param location The user's location, or null to find the one with the lowest ID
+	 * @return The colony, or null if every focus colony has been visited
+	 */
+	public synchronized Colony findUnvisitedFocusColony(Location location) {
+		if(!updateIndexes()) {
+			return null;
+		}
+		int count = statusIndex.select(Colony.FOCUS, Colony.VISITED, statusResult);
+		if(count > statusResult.length) {
+			//Not enough space. Make more and try again.
+			statusResult = new Colony[Math.max(count, statusIndex.size())];
+			count = statusIndex.select(Colony.FOCUS, Colony.VISITED, statusResult);
+		}
+		count = Math.min(count, statusResult.length);
+
+		CoordinateTransformer transform = getTransform();
+		PointF local = null;
+		if(location != null && transform != null) {
+			local = transform.toLocal(location.getLongitude(), location.getLatitude());
+		}
+		Colony best = null;
+		double bestDistance = Double.POSITIVE_INFINITY;
+		for(int i = 0; i < count; i++) {
+			Colony.Snapshot state = statusResult[i].snapshot();
+			double distance;
+			if(local != null) {
+				double dx = state.getX() - local.x;
+				double dy = state.getY() - local.y;
+				distance = dx * dx + dy * dy;
+			}
+			else {
+				distance = state.getId();
+			}
+			if(distance < bestDistance) {
+				bestDistance = distance;
+				best = statusResult[i];
+			}
+		}
+		//Do not keep the colonies
+		Arrays.fill(statusResult, 0, count, null);
+		return best;
+	}
+
+	/**
+	 * Find the colonies in an area of the map and put them in {@link #visibleResult}
+	 * @param area The area, in colony coordinates
+	 * @return The number of colonies found
+	 */
+	private int findVisibleColonies(RectF area) {
+		if(!updateIndexes()) {
+			return 0;
+		}
+		int count = visibleTree.query(area.left, area.top, area.right, area.bottom, visibleResult);
+		if(count > visibleResult.length) {
+			//Not enough space. Make more and try again.
+			visibleResult = new Colony[Math.max(count, visibleTree.size())];
+			count = visibleTree.query(area.left, area.top, area.right, area.bottom, visibleResult);
+		}
+		return count;
+	}
+
+	/**
+	 * Make sure that the spatial indexes follow the provider's current set of colonies
+	 * @return True if the indexes are ready, false if there are no colonies
+	 */
+	private synchronized boolean updateIndexes() {
+		ColonySet colonies = provider.getColonies();
+		if(colonies == null) {
+			return false;
+		}
+		if(colonies != indexedColonies) {
+			//First use, or the provider has replaced its set of colonies
+			releaseIndexes();
+			nearestGrid = new ColonyGrid(NEAREST_GRID_CELL_SIZE);
+			nearestGrid.track(colonies);
+			visibleTree = new ColonyQuadtree();
+			visibleTree.track(colonies);
+			census = new ColonyCensus();
+			census.track(colonies);
+			statusIndex = new ColonyStatusIndex();
+			statusIndex.track(colonies);
+			colonies.addChangeListener(redrawListener);
+			indexedColonies = colonies;
+		}
+		return true;
+	}
+
+	/**
+	 * Stop the indexes and the redraw listener from following the set of colonies.
+	 * The set outlives this view, so anything that it still notifies would keep
+	 * this view and its activity in memory.
+	 */
+	private synchronized void releaseIndexes() {
+		if(indexedColonies != null) {
+			nearestGrid.untrack(indexedColonies);
+			visibleTree.untrack(indexedColonies);
+			census.untrack(indexedColonies);
+			statusIndex.untrack(indexedColonies);
+			indexedColonies.removeChangeListener(redrawListener);
+			indexedColonies = null;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see android.view.View#onDetachedFromWindow()
+	 */
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		//The indexes are created again if this view is attached and drawn again
+		releaseIndexes();
+	}
+
+	/**
+	 * Invalidate the area of the screen where a colony is drawn, including its
+	 * label and the markers around it if it is selected.
+	 * This must be called on the user interface thread.
+	 * @param colony The colony
+	 */
+	private void invalidateColony(Colony colony) {
+		Colony.Snapshot state = colony.snapshot();
+		float[] point = new float[] { (float) state.getX(), (float) state.getY() };
+		displayTransform.mapPoints(point);
+		//The selection triangles reach 28 * scale, and the label extends to the right
+		float reach = Math.max(BG_RADIUS + 4, 30 * scale);
+		float labelReach = Math.max(reach, 50 * scale);
+		invalidate((int) Math.floor(point[0] - reach), (int) Math.floor(point[1] - reach),
+				(int) Math.ceil(point[0] + labelReach), (int) Math.ceil(point[1] + reach));
+	}
+
+	/**
+	 * Get the transformer from GPS locations to colony coordinates, creating it
+	 * once the colonies at the reference points have been loaded
+	 * @return The transformer, or null if the reference colonies are not available yet
+	 */
+	private synchronized CoordinateTransformer getTransform() {
+		if(transform == null) {
+			ColonySet colonies = provider.getColonies();
+			if(colonies == null) {
+				return null;
+			}
+			// Colony location reference points
+			Colony topLeft = colonies.getById(962);
+			Colony bottomRight = colonies.getById(980);
+			//Colony 567 is at 31.871036, -109.042678, and is not used
+			Colony topRight = colonies.getById(442);
+			if(topLeft == null || bottomRight == null || topRight == null) {
+				return null;
+			}
+			transform = new CoordinateTransformer(
+					new MapPoint(topLeft, 31.87265776, -109.04243),
+					new MapPoint(topRight, 31.872357, -109.0391114),
+					new MapPoint(bottomRight, 31.87087500797029, -109.03870950670428));
+		}
+		return transform;
+	}
+
+	/**
+	 * Set the colonies to outline because they match the text in the colony field
+	 * @param ids The colony IDs, in increasing order. This array is copied.
+	 * @param count The number of IDs to use from the array
+	 */
+	public synchronized void setSuggestedColonies(int[] ids, int count) {
+		if(suggestedIds.length < count) {
+			suggestedIds = new int[ids.length];
+		}
+		System.arraycopy(ids, 0, suggestedIds, 0, count);
+		suggestedCount = count;
+		invalidate();
+	}
+
 	/**
 	 * Check if a given set of points, in local window coordinates, are inside the window
 	 * @param points An array with 0 => x and 1 -> y
@@ -35,6 +35,7 @@ public class NavigatorLocationListener implements LocationListener {
 		currentLocation = location;
 
 		if(MapSurfaceView.instance != null) {
+			MapSurfaceView.instance.updateNearestColony(location);
 			MapSurfaceView.instance.postInvalidate();
 		}
 	}
@@ -0,0 +1,169 @@
+package org.samcrow.data;
+
+import java.util.Collection;
+
+import org.samcrow.util.IntHashMap;
+
+/**
+ * The common part of the indexes that keep one entry for each colony, such as
+ * {@link ColonyGrid}, {@link ColonyQuadtree}, {@link ColonyStatusIndex} and
+ * {@link ColonyCensus}.
+ * <p>
+ * This class maps colony IDs to entries and follows a {@link ColonySet}
+ * through its change listener. Subclasses decide what an entry holds and how
+ * the rest of the index changes when a colony is added, changed or removed.
+ * </p>
+ * All methods are synchronized, and subclasses should synchronize on the index
+ * as well.
+ *
+ * @param <E>
+ *            The type of the entries
+ * @author Sam Crow
+ */
+public abstract class AbstractColonyIndex<E extends AbstractColonyIndex.Entry> implements ColonySet.ChangeListener {
+
+	/** Maps colony IDs to entries */
+	final IntHashMap<E> entries = new IntHashMap<E>();
+
+	/**
+	 * Add all the colonies in a set to this index and keep this index up to
+	 * date as the set changes
+	 *
+	 * @param colonies
+	 *            The set to follow
+	 */
+	public void track(ColonySet colonies) {
+		//Listen first, so that no change is missed while adding
+		colonies.addChangeListener(this);
+		addAll(colonies);
+	}
+
+	/**
+	 * Stop following a set. Colonies already in this index stay in it.
+	 *
+	 * @param colonies
+	 *            The set
+	 */
+	public void untrack(ColonySet colonies) {
+		colonies.removeChangeListener(this);
+	}
+
+	/**
+	 * Add colonies to this index
+	 *
+	 * @param colonies
+	 *            The colonies to add
+	 */
+	public synchronized void addAll(Collection<? extends Colony> colonies) {
+		for (Colony colony : colonies) {
+			update(colony);
+		}
+	}
+
+	/**
+	 * Add a colony to this index, or bring its entry up to date with its
+	 * current state if it is already in this index
+	 *
+	 * @param colony
+	 *            The colony
+	 */
+	public synchronized void update(Colony colony) {
+		Colony.Snapshot state = colony.snapshot();
+		E entry = entries.get(state.getId());
+		boolean added = entry == null;
+		if (added) {
+			entry = createEntry();
+			entries.put(state.getId(), entry);
+		}
+		entry.colony = colony;
+		updateEntry(entry, state, added);
+	}
+
+	/**
+	 * Remove a colony from this index
+	 *
+	 * @param colony
+	 *            The colony
+	 */
+	public synchronized void remove(Colony colony) {
+		E entry = entries.get(colony.getId());
+		if (entry == null || entry.colony != colony) {
+			return;
+		}
+		entries.remove(colony.getId());
+		removeEntry(entry);
+	}
+
+	/**
+	 * @return The number of colonies in this index
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.ColonySet.ChangeListener#colonyAdded(org.samcrow.data.Colony)
+	 */
+	@Override
+	public void colonyAdded(Colony colony) {
+		update(colony);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.ColonySet.ChangeListener#colonyRemoved(org.samcrow.data.Colony)
+	 */
+	@Override
+	public void colonyRemoved(Colony colony) {
+		remove(colony);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.ColonySet.ChangeListener#colonyChanged(org.samcrow.data.Colony)
+	 */
+	@Override
+	public void colonyChanged(Colony colony) {
+		update(colony);
+	}
+
+	/**
+	 * @return A new, empty entry
+	 */
+	abstract E createEntry();
+
+	/**
+	 * Bring the rest of this index up to date with a colony's state. This is
+	 * called with the lock held, after the entry's colony has been set.
+	 *
+	 * @param entry
+	 *            The colony's entry
+	 * @param state
+	 *            The colony's current state
+	 * @param added
+	 *            True if the entry was just created, false if it holds the
+	 *            state that was recorded the last time
+	 */
+	abstract void updateEntry(E entry, Colony.Snapshot state, boolean added);
+
+	/**
+	 * Take an entry out of the rest of this index. This is called with the
+	 * lock held, after the entry has been removed from {@link #entries}.
+	 *
+	 * @param entry
+	 *            The entry
+	 */
+	abstract void removeEntry(E entry);
+
+	/**
+	 * The indexed state of one colony
+	 */
+	static class Entry {
+		/** The colony */
+		Colony colony;
+	}
+}
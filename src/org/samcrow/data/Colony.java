@@ -1,7 +1,10 @@
 package org.samcrow.data;
 
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.apache.ISO8601DateParser;
 import org.json.JSONException;
@@ -14,6 +17,19 @@ import org.json.JSONObject;
  */
 public class Colony implements JSONSerializable, Comparable<Colony> {
 
+	/** Status flag set if the colony is active */
+	public static final int ACTIVE = 1;
+	/** Status flag set if the colony has been visited */
+	public static final int VISITED = 1 << 1;
+	/** Status flag set if the colony is a focus colony */
+	public static final int FOCUS = 1 << 2;
+
+	/** The modification time of a colony that has not been modified */
+	public static final long NOT_MODIFIED = Long.MIN_VALUE;
+
+	/** The source of version numbers. See {@link #currentVersion()}. */
+	private static final AtomicLong kVersionCounter = new AtomicLong();
+
 	/**
 	 * Constructor
 	 * 
@@ -25,45 +41,82 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 *            The colony's Y location in meters
 	 */
 	public Colony(int id, double x, double y, boolean active) {
-		this.id = id;
-		this.x = x;
-		this.y = y;
-		this.active = active;
+		this(new Snapshot(id, x, y, active ? ACTIVE : 0, NOT_MODIFIED, 0));
 	}
 
 	public Colony() {
 		this(0, 0, 0, false);
 	}
 
-	/** The colony's identifier */
-	protected int id;
+	/**
+	 * Constructor, for restoring a colony from storage
+	 *
+	 * @param id
+	 *            The colony's identifier
+	 * @param x
+	 *            The colony's X location in meters
+	 * @param y
+	 *            The colony's Y location in meters
+	 * @param flags
+	 *            The status flags: a combination of {@link #ACTIVE},
+	 *            {@link #VISITED} and {@link #FOCUS}
+	 * @param modified
+	 *            The modification time in milliseconds since the epoch, or
+	 *            {@link #NOT_MODIFIED}
+	 */
+	public Colony(int id, double x, double y, int flags, long modified) {
+		this(new Snapshot(id, x, y, flags, modified, 0));
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param snapshot
+	 *            The initial state of the colony
+	 */
+	Colony(Snapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * The current state of this colony. Snapshots are immutable, so reading
+	 * this field once gives a consistent view of the whole colony. Every
+	 * change replaces it using {@link #kSnapshotUpdater}, without locking.
+	 */
+	private volatile Snapshot snapshot;
 
-	/** The colony's X-coordinate in meters east of the southwest corner */
-	protected double x;
-	/** The colony's Y-coordinate in meters north of the southwest corner */
-	protected double y;
+	private static final AtomicReferenceFieldUpdater<Colony, Snapshot> kSnapshotUpdater =
+			AtomicReferenceFieldUpdater.newUpdater(Colony.class, Snapshot.class, "snapshot");
 
-	/** If the colony is currently active */
-	protected volatile boolean active;
+	/**
+	 * The sets that contain this colony, which are notified when this colony
+	 * changes, or null if it is in no sets. The array is never modified;
+	 * it is replaced when this colony is added to or removed from a set.
+	 */
+	private volatile Membership[] memberships;
 
-	/** If the colony has been visited by a human */
-	protected volatile boolean visited;
+	private static final AtomicReferenceFieldUpdater<Colony, Membership[]> kMembershipsUpdater =
+			AtomicReferenceFieldUpdater.newUpdater(Colony.class, Membership[].class, "memberships");
 
 	/**
-	 * The date/time that this colony was modified. If it was not modified by
-	 * Colony Navigator since it was imported from the CSV file, this should be
-	 * null. Otherwise, it should be the date when the user last modified the
-	 * data using the Colony Navigator application.
+	 * Get an immutable snapshot of this colony's current state.
+	 * Code that reads several properties, such as drawing code, should use
+	 * this instead of calling several getters, which may observe different
+	 * versions of the colony if it is being changed by another thread.
+	 * 
+	 * @return The current state
 	 */
-	protected Date modified = null;
+	public Snapshot snapshot() {
+		return snapshot;
+	}
 
 	/**
 	 * Get the colony's X-coordinate in meters east of the southwest corner
 	 * 
 	 * @return the colony's X-coordinate in meters east of the southwest corner
 	 */
-	public synchronized double getX() {
-		return x;
+	public double getX() {
+		return snapshot.getX();
 	}
 
 	/**
@@ -72,9 +125,14 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * @param x
 	 *            The colony's X-coordinate location
 	 */
-	public synchronized void setX(double x) {
-		this.x = x;
-		updateModifiedDate();
+	public void setX(double x) {
+		Snapshot current;
+		do {
+			current = snapshot;
+		} while (!kSnapshotUpdater.compareAndSet(this, current,
+				new Snapshot(current.id, x, current.y, current.flags,
+						System.currentTimeMillis(), nextVersion())));
+		changed();
 	}
 
 	/**
@@ -82,8 +140,8 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * 
 	 * @return the colony's Y-coordinate in meters north of the southwest corner
 	 */
-	public synchronized double getY() {
-		return y;
+	public double getY() {
+		return snapshot.getY();
 	}
 
 	/**
@@ -92,9 +150,14 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * @param y
 	 *            The colony's Y-coordinate location
 	 */
-	public synchronized void setY(double y) {
-		this.y = y;
-		updateModifiedDate();
+	public void setY(double y) {
+		Snapshot current;
+		do {
+			current = snapshot;
+		} while (!kSnapshotUpdater.compareAndSet(this, current,
+				new Snapshot(current.id, current.x, y, current.flags,
+						System.currentTimeMillis(), nextVersion())));
+		changed();
 	}
 
 	/**
@@ -102,8 +165,8 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * 
 	 * @return if the colony is active
 	 */
-	public synchronized boolean isActive() {
-		return active;
+	public boolean isActive() {
+		return snapshot.isActive();
 	}
 
 	/**
@@ -112,9 +175,8 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * @param active
 	 *            if the colony is active
 	 */
-	public synchronized void setActive(boolean active) {
-		this.active = active;
-		updateModifiedDate();
+	public void setActive(boolean active) {
+		setFlag(ACTIVE, active, true);
 	}
 
 	/**
@@ -122,8 +184,8 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * 
 	 * @return if the colony has been visited
 	 */
-	public synchronized boolean isVisited() {
-		return visited;
+	public boolean isVisited() {
+		return snapshot.isVisited();
 	}
 
 	/**
@@ -132,9 +194,8 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * @param visited
 	 *            If the colony has been visited
 	 */
-	public synchronized void setVisited(boolean visited) {
-		this.visited = visited;
-		updateModifiedDate();
+	public void setVisited(boolean visited) {
+		setFlag(VISITED, visited, true);
 	}
 
 	/**
@@ -142,33 +203,205 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * 
 	 * @return the ID
 	 */
-	public synchronized int getId() {
-		return id;
+	public int getId() {
+		return snapshot.getId();
+	}
+
+	/**
+	 * Get the status flags of this colony
+	 * 
+	 * @return A combination of {@link #ACTIVE}, {@link #VISITED} and
+	 *         {@link #FOCUS}
+	 */
+	public int getFlags() {
+		return snapshot.getFlags();
+	}
+
+	/**
+	 * Get the date/time when this colony was last modified
+	 * 
+	 * @return The time in milliseconds since the epoch, or
+	 *         {@link #NOT_MODIFIED} if the colony has not been modified
+	 */
+	public long getModifiedTime() {
+		return snapshot.modified;
+	}
+
+	/**
+	 * Get the version of this colony's state. See {@link #currentVersion()}.
+	 * 
+	 * @return The version
+	 */
+	public long getVersion() {
+		return snapshot.version;
+	}
+
+	/**
+	 * Get the most recent version number. Every change to every colony is
+	 * stamped with a new version number from a single global counter, which
+	 * only increases. A colony that has not changed since it was created has
+	 * version 0.
+	 * 
+	 * @return The latest version number that has been assigned
+	 */
+	public static long currentVersion() {
+		return kVersionCounter.get();
+	}
+
+	/**
+	 * Assign a new version number
+	 * 
+	 * @return A version number higher than all previous ones
+	 */
+	static long nextVersion() {
+		return kVersionCounter.incrementAndGet();
 	}
 
 	/**
 	 * Update the modified date/time and set it to now. Every method that sets a
-	 * field should call this method.
+	 * field should call this method, unless it sets the modified date/time
+	 * itself.
 	 */
 	protected final void updateModifiedDate() {
-		modified = new Date();
+		Snapshot current;
+		do {
+			current = snapshot;
+		} while (!kSnapshotUpdater.compareAndSet(this, current,
+				new Snapshot(current.id, current.x, current.y, current.flags,
+						System.currentTimeMillis(), nextVersion())));
+		changed();
 	}
-	
+
 	/**
-	 * If this colony is a focus colony
+	 * Notify the sets that contain this colony that its state has changed.
+	 * Every method that changes the state of the colony must call this
+	 * after the change.
 	 */
-	private boolean focus;
+	void changed() {
+		Membership[] current = memberships;
+		if (current != null) {
+			for (Membership membership : current) {
+				membership.set.colonyChanged(this, membership);
+			}
+		}
+	}
+
+	/**
+	 * Record that this colony has been added to a set
+	 * 
+	 * @param set
+	 *            The set
+	 * @param slot
+	 *            The slot assigned by the set
+	 * @return The new membership
+	 */
+	Membership join(ColonySet set, int slot) {
+		Membership joined = new Membership(this, set, slot);
+		Membership[] current;
+		Membership[] next;
+		do {
+			current = memberships;
+			if (current == null) {
+				next = new Membership[] { joined };
+			}
+			else {
+				next = Arrays.copyOf(current, current.length + 1);
+				next[current.length] = joined;
+			}
+		} while (!kMembershipsUpdater.compareAndSet(this, current, next));
+		return joined;
+	}
+
+	/**
+	 * Record that this colony has been removed from a set
+	 * 
+	 * @param set
+	 *            The set
+	 * @return The membership that was removed, or null if this colony was
+	 *         not in the set
+	 */
+	Membership leave(ColonySet set) {
+		Membership[] current;
+		Membership[] next;
+		Membership removed;
+		do {
+			current = memberships;
+			int index = indexOfMembership(current, set);
+			if (index == -1) {
+				return null;
+			}
+			removed = current[index];
+			if (current.length == 1) {
+				next = null;
+			}
+			else {
+				next = new Membership[current.length - 1];
+				System.arraycopy(current, 0, next, 0, index);
+				System.arraycopy(current, index + 1, next, index, next.length - index);
+			}
+		} while (!kMembershipsUpdater.compareAndSet(this, current, next));
+		return removed;
+	}
+
+	/**
+	 * Find this colony's membership in a set
+	 * 
+	 * @param set
+	 *            The set
+	 * @return The membership, or null if this colony is not in the set
+	 */
+	Membership membershipIn(ColonySet set) {
+		Membership[] current = memberships;
+		int index = indexOfMembership(current, set);
+		return index != -1 ? current[index] : null;
+	}
+
+	private static int indexOfMembership(Membership[] memberships, ColonySet set) {
+		if (memberships != null) {
+			for (int i = 0; i < memberships.length; i++) {
+				if (memberships[i].set == set) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Atomically set or clear a status flag
+	 * 
+	 * @param flag
+	 *            The flag to change
+	 * @param value
+	 *            True to set the flag, false to clear it
+	 * @param modify
+	 *            If the modified date/time should be set to now
+	 */
+	private void setFlag(int flag, boolean value, boolean modify) {
+		Snapshot current;
+		Snapshot next;
+		do {
+			current = snapshot;
+			int flags = value ? (current.flags | flag) : (current.flags & ~flag);
+			if (flags == current.flags && !modify) {
+				return;
+			}
+			next = new Snapshot(current.id, current.x, current.y, flags,
+					modify ? System.currentTimeMillis() : current.modified, nextVersion());
+		} while (!kSnapshotUpdater.compareAndSet(this, current, next));
+		changed();
+	}
 
 	/**
 	 * Determines if this colony is a focus colony, as defined in the file
 	 * @return
 	 */
 	public boolean isFocusColony() {
-		return focus;
+		return snapshot.isFocusColony();
 	}
 	
 	public void setFocusColony(boolean focus) {
-		this.focus = focus;
+		setFlag(FOCUS, focus, false);
 	}
 
 	/*
@@ -177,26 +410,27 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 * @see org.samcrow.data.JSONSerializable#toJSON()
 	 */
 	@Override
-	public synchronized JSONObject toJSON() {
+	public JSONObject toJSON() {
 		JSONObject object = new JSONObject();
 
 		try {
+			Snapshot current = snapshot();
 
-			object.put("id", id);
-			object.put("x", x);
-			object.put("y", y);
-			object.put("active", active);
-			object.put("visited", visited);
+			object.put("id", current.getId());
+			object.put("x", current.getX());
+			object.put("y", current.getY());
+			object.put("active", current.isActive());
+			object.put("visited", current.isVisited());
 
 			// Visited date/time: Should be JSON's NULL if null, or formatted
 			// using DateFormat.getDateTimeInstance(DateFormat.FULL,
 			// DateFormat.FULL)
 
-			if (modified == null) {
+			if (current.modified == NOT_MODIFIED) {
 				object.put("modified", JSONObject.NULL);
 			}
 			else {
-				object.put("modified", ISO8601DateParser.toString(modified));
+				object.put("modified", ISO8601DateParser.toString(new Date(current.modified)));
 			}
 
 		} catch (JSONException e) {
@@ -208,26 +442,65 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 
 	@Override
 	public void fromJSON(JSONObject json) {
-		id = json.optInt("id", id);
-		x = json.optDouble("x", x);
-		y = json.optDouble("y", y);
-		active = json.optBoolean("active", active);
-		visited = json.optBoolean("visited", visited);
+		long modified = NOT_MODIFIED;
+		boolean keepModified = false;
 
 		Object modifiedObject = json.opt("modified");
 		if (modifiedObject == null || JSONObject.NULL.equals(modifiedObject)) {
 			// Modified time specified as null; make it so
-			modified = null;
+			modified = NOT_MODIFIED;
 		}
 		else if (modifiedObject instanceof String) {
 			// Modified time given; parse it
 			try {
-				modified = ISO8601DateParser.parse((String) modifiedObject);
+				modified = ISO8601DateParser.parse((String) modifiedObject).getTime();
 			} catch (ParseException e) {
 				//Parse error
-				modified = null;
+				modified = NOT_MODIFIED;
 			}
 		}
+		else {
+			keepModified = true;
+		}
+
+		Snapshot current;
+		Snapshot next;
+		do {
+			current = snapshot;
+			int id = json.optInt("id", current.id);
+			double x = json.optDouble("x", current.x);
+			double y = json.optDouble("y", current.y);
+			boolean active = json.optBoolean("active", current.isActive());
+			boolean visited = json.optBoolean("visited", current.isVisited());
+			int flags = (active ? ACTIVE : 0) | (visited ? VISITED : 0) | (current.flags & FOCUS);
+			next = new Snapshot(id, x, y, flags, keepModified ? current.modified : modified, nextVersion());
+		} while (!kSnapshotUpdater.compareAndSet(this, current, next));
+		changed();
+	}
+
+	/**
+	 * Restore this colony's state from storage. Like {@link #fromJSON(JSONObject)},
+	 * this keeps the colony's focus status and sets the modified time to the
+	 * stored time instead of now.
+	 *
+	 * @param x
+	 *            The colony's X location in meters
+	 * @param y
+	 *            The colony's Y location in meters
+	 * @param flags
+	 *            The status flags. {@link #FOCUS} is ignored.
+	 * @param modified
+	 *            The modification time in milliseconds since the epoch, or
+	 *            {@link #NOT_MODIFIED}
+	 */
+	public void restore(double x, double y, int flags, long modified) {
+		Snapshot current;
+		do {
+			current = snapshot;
+		} while (!kSnapshotUpdater.compareAndSet(this, current,
+				new Snapshot(current.id, x, y, (flags & ~FOCUS) | (current.flags & FOCUS),
+						modified, nextVersion())));
+		changed();
 	}
 
 	/*
@@ -237,9 +510,10 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	 */
 	@Override
 	public String toString() {
-		return "Colony #" + id + " at (" + x + ", " + y + "), "
-				+ (active ? "active" : "inactive") + ", "
-				+ (visited ? "visited" : "not visited");
+		Snapshot current = snapshot();
+		return "Colony #" + current.getId() + " at (" + current.getX() + ", " + current.getY() + "), "
+				+ (current.isActive() ? "active" : "inactive") + ", "
+				+ (current.isVisited() ? "visited" : "not visited");
 	}
 
 	/*
@@ -251,12 +525,13 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + (active ? 1231 : 1237);
-		result = prime * result + id;
+		Snapshot current = snapshot();
+		result = prime * result + (current.isActive() ? 1231 : 1237);
+		result = prime * result + current.getId();
 		long temp;
-		temp = Double.doubleToLongBits(x);
+		temp = Double.doubleToLongBits(current.getX());
 		result = prime * result + (int) (temp ^ (temp >>> 32));
-		temp = Double.doubleToLongBits(y);
+		temp = Double.doubleToLongBits(current.getY());
 		result = prime * result + (int) (temp ^ (temp >>> 32));
 		return result;
 	}
@@ -294,31 +569,158 @@ public class Colony implements JSONSerializable, Comparable<Colony> {
 		if (!(obj instanceof Colony)) {
 			return false;
 		}
-		Colony other = (Colony) obj;
-		if (active != other.active) {
+		Snapshot current = snapshot();
+		Snapshot other = ((Colony) obj).snapshot();
+		if (current.isActive() != other.isActive()) {
 			return false;
 		}
-		if (id != other.id) {
+		if (current.getId() != other.getId()) {
 			return false;
 		}
-		if (Double.doubleToLongBits(x) != Double.doubleToLongBits(other.x)) {
+		if (Double.doubleToLongBits(current.getX()) != Double.doubleToLongBits(other.getX())) {
 			return false;
 		}
-		if (Double.doubleToLongBits(y) != Double.doubleToLongBits(other.y)) {
+		if (Double.doubleToLongBits(current.getY()) != Double.doubleToLongBits(other.getY())) {
 			return false;
 		}
 		return true;
 	}
 
 	/**
-	 * Set this colony's ID
+	 * Set this colony's ID.
+	 * This must not be called while the colony is in a {@link ColonySet},
+	 * because the set indexes colonies by ID.
 	 * 
 	 * @param id
 	 *            the ID to set
 	 */
 	public void setId(int id) {
-		this.id = id;
+		Snapshot current;
+		do {
+			current = snapshot;
+		} while (!kSnapshotUpdater.compareAndSet(this, current,
+				new Snapshot(id, current.x, current.y, current.flags,
+						current.modified, nextVersion())));
+		changed();
+	}
+
+	/**
+	 * Records that a colony is in a {@link ColonySet}.
+	 * The fields other than colony and set are accessed while synchronized
+	 * on the set.
+	 */
+	static final class Membership {
+
+		final Colony colony;
+		final ColonySet set;
+		/**
+		 * The slot that the set has assigned to the colony in its
+		 * {@link ColonySnapshot}s, or -1 if the colony has been removed
+		 * from the set
+		 */
+		int slot;
+		/** The version at which the set last saw the colony change */
+		long changeVersion;
+		/** The memberships that changed before and after this one in the set */
+		Membership changedBefore, changedAfter;
+
+		Membership(Colony colony, ColonySet set, int slot) {
+			this.colony = colony;
+			this.set = set;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * An immutable copy of the state of a colony at one time
+	 * 
+	 * @author Sam Crow
+	 */
+	public static final class Snapshot {
+
+		final int id;
+		final double x;
+		final double y;
+		/** Status flags: {@link Colony#ACTIVE}, {@link Colony#VISITED}, {@link Colony#FOCUS} */
+		final int flags;
+		/** The modification time in milliseconds, or {@link Colony#NOT_MODIFIED} */
+		final long modified;
+		/** The version of this state */
+		final long version;
+
+		Snapshot(int id, double x, double y, int flags, long modified, long version) {
+			this.id = id;
+			this.x = x;
+			this.y = y;
+			this.flags = flags;
+			this.modified = modified;
+			this.version = version;
+		}
+
+		/**
+		 * @return The colony's ID
+		 */
+		public int getId() {
+			return id;
+		}
 
+		/**
+		 * @return The colony's X-coordinate in meters east of the southwest corner
+		 */
+		public double getX() {
+			return x;
+		}
+
+		/**
+		 * @return The colony's Y-coordinate in meters north of the southwest corner
+		 */
+		public double getY() {
+			return y;
+		}
+
+		/**
+		 * @return The status flags: a combination of {@link Colony#ACTIVE},
+		 *         {@link Colony#VISITED} and {@link Colony#FOCUS}
+		 */
+		public int getFlags() {
+			return flags;
+		}
+
+		/**
+		 * @return The modification time in milliseconds since the epoch, or
+		 *         {@link Colony#NOT_MODIFIED} if the colony had not been modified
+		 */
+		public long getModifiedTime() {
+			return modified;
+		}
+
+		/**
+		 * @return The version of this state. See {@link Colony#currentVersion()}.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return If the colony is active
+		 */
+		public boolean isActive() {
+			return (flags & ACTIVE) != 0;
+		}
+
+		/**
+		 * @return If the colony has been visited
+		 */
+		public boolean isVisited() {
+			return (flags & VISITED) != 0;
+		}
+
+		/**
+		 * @return If the colony is a focus colony
+		 */
+		public boolean isFocusColony() {
+			return (flags & FOCUS) != 0;
+		}
 	}
 
 }
@@ -0,0 +1,157 @@
+package org.samcrow.data;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the bounding box of the colonies up to date as they are added,
+ * moved and removed, so that the map can find its bounds without a pass over
+ * the colonies.
+ * <p>
+ * The box is extended each time a colony is added or moves outward. If a
+ * colony on its edge moves inward or is removed, the box is recalculated the
+ * next time it is requested.
+ * </p>
+ * <p>
+ * A census can follow a {@link ColonySet} with {@link #track(ColonySet)}.
+ * </p>
+ * All methods are synchronized.
+ *
+ * @author Sam Crow
+ */
+public class ColonyCensus extends AbstractColonyIndex<ColonyCensus.Entry> {
+
+	/** All entries, in no particular order, for recalculating the bounds */
+	private Entry[] entryList = new Entry[64];
+	private int entryCount = 0;
+
+	/** The bounding box of the colonies, valid if {@link #boundsValid} is true */
+	private double minX, minY, maxX, maxY;
+	private boolean boundsValid = true;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#createEntry()
+	 */
+	@Override
+	Entry createEntry() {
+		return new Entry();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#updateEntry(org.samcrow.data.AbstractColonyIndex.Entry, org.samcrow.data.Colony.Snapshot, boolean)
+	 */
+	@Override
+	void updateEntry(Entry entry, Colony.Snapshot state, boolean added) {
+		double x = state.getX();
+		double y = state.getY();
+
+		if (added) {
+			if (entryCount == entryList.length) {
+				entryList = Arrays.copyOf(entryList, entryCount * 2);
+			}
+			entry.index = entryCount;
+			entryList[entryCount++] = entry;
+		}
+		else {
+			if (entry.x == x && entry.y == y) {
+				return;
+			}
+			if (isOnEdge(entry)) {
+				boundsValid = false;
+			}
+		}
+		entry.x = x;
+		entry.y = y;
+		extendBounds(entry);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#removeEntry(org.samcrow.data.AbstractColonyIndex.Entry)
+	 */
+	@Override
+	void removeEntry(Entry entry) {
+		if (isOnEdge(entry)) {
+			boundsValid = false;
+		}
+		//Move the last entry into the removed entry's place
+		Entry last = entryList[--entryCount];
+		entryList[entry.index] = last;
+		last.index = entry.index;
+		entryList[entryCount] = null;
+	}
+
+	/**
+	 * Get the bounding box of the colonies
+	 *
+	 * @param bounds
+	 *            An array of at least 4 elements that will be set to the
+	 *            minimum X, minimum Y, maximum X and maximum Y, in that order
+	 * @return True if the bounds were set, false if there are no colonies
+	 */
+	public synchronized boolean getBounds(double[] bounds) {
+		if (entryCount == 0) {
+			return false;
+		}
+		if (!boundsValid) {
+			recalculateBounds();
+		}
+		bounds[0] = minX;
+		bounds[1] = minY;
+		bounds[2] = maxX;
+		bounds[3] = maxY;
+		return true;
+	}
+
+	/**
+	 * Extend the bounding box to include an entry's location
+	 */
+	private void extendBounds(Entry entry) {
+		if (boundsValid) {
+			if (entryCount == 1) {
+				minX = maxX = entry.x;
+				minY = maxY = entry.y;
+			}
+			else {
+				minX = Math.min(minX, entry.x);
+				minY = Math.min(minY, entry.y);
+				maxX = Math.max(maxX, entry.x);
+				maxY = Math.max(maxY, entry.y);
+			}
+		}
+	}
+
+	/**
+	 * Determine if an entry's recorded location is on the edge of the bounding box
+	 */
+	private boolean isOnEdge(Entry entry) {
+		return entry.x == minX || entry.x == maxX || entry.y == minY || entry.y == maxY;
+	}
+
+	private void recalculateBounds() {
+		minX = minY = Double.POSITIVE_INFINITY;
+		maxX = maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < entryCount; i++) {
+			Entry entry = entryList[i];
+			minX = Math.min(minX, entry.x);
+			minY = Math.min(minY, entry.y);
+			maxX = Math.max(maxX, entry.x);
+			maxY = Math.max(maxY, entry.y);
+		}
+		boundsValid = true;
+	}
+
+	/**
+	 * The recorded location of one colony
+	 */
+	static class Entry extends AbstractColonyIndex.Entry {
+		double x;
+		double y;
+		/** The index of this entry in {@link ColonyCensus#entryList} */
+		int index;
+	}
+}
@@ -0,0 +1,297 @@
+package org.samcrow.data;
+
+import java.util.Arrays;
+
+import org.samcrow.util.IntHashMap;
+
+/**
+ * A spatial index of colonies on a uniform grid of square cells.
+ * <p>
+ * This answers "which colonies are nearest to this point?" and "which
+ * colonies are within this distance of this point?" by looking only at the
+ * cells around the point. Queries can be restricted by status flags, for
+ * example to focus colonies that have not been visited.
+ * </p>
+ * <p>
+ * A grid can follow a {@link ColonySet} with {@link #track(ColonySet)}. It
+ * is then updated incrementally whenever a colony in the set is added,
+ * removed or moved.
+ * </p>
+ * Queries do not allocate memory. All methods are synchronized.
+ *
+ * @author Sam Crow
+ */
+public class ColonyGrid extends AbstractColonyIndex<ColonyGrid.Entry> {
+
+	/** The width and height of each cell, in meters */
+	private final double cellSize;
+
+	/** Maps cell keys (see {@link #cellKey(int, int)}) to cells */
+	private final IntHashMap<Cell> cells = new IntHashMap<Cell>();
+
+	/** The range of cell coordinates that have ever contained a colony */
+	private int minCellX = Integer.MAX_VALUE, minCellY = Integer.MAX_VALUE;
+	private int maxCellX = Integer.MIN_VALUE, maxCellY = Integer.MIN_VALUE;
+
+	/** Squared distances of the current best results of a nearest query */
+	private double[] bestDistances = new double[8];
+
+	/**
+	 * Constructor
+	 *
+	 * @param cellSize
+	 *            The width and height of each grid cell, in meters. This
+	 *            should be about the typical distance between neighboring
+	 *            colonies.
+	 */
+	public ColonyGrid(double cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("Cell size must be positive");
+		}
+		this.cellSize = cellSize;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#createEntry()
+	 */
+	@Override
+	Entry createEntry() {
+		return new Entry();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#updateEntry(org.samcrow.data.AbstractColonyIndex.Entry, org.samcrow.data.Colony.Snapshot, boolean)
+	 */
+	@Override
+	void updateEntry(Entry entry, Colony.Snapshot state, boolean added) {
+		int cellX = cellCoordinate(state.getX());
+		int cellY = cellCoordinate(state.getY());
+		int key = cellKey(cellX, cellY);
+
+		if (!added && entry.cellKey != key) {
+			//Moved to another cell
+			entry.cell.remove(entry);
+			entry.cell = null;
+		}
+		entry.x = state.getX();
+		entry.y = state.getY();
+		entry.flags = state.getFlags();
+		if (entry.cell == null) {
+			Cell cell = cells.get(key);
+			if (cell == null) {
+				cell = new Cell();
+				cells.put(key, cell);
+			}
+			cell.add(entry);
+			entry.cellKey = key;
+			minCellX = Math.min(minCellX, cellX);
+			minCellY = Math.min(minCellY, cellY);
+			maxCellX = Math.max(maxCellX, cellX);
+			maxCellY = Math.max(maxCellY, cellY);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#removeEntry(org.samcrow.data.AbstractColonyIndex.Entry)
+	 */
+	@Override
+	void removeEntry(Entry entry) {
+		entry.cell.remove(entry);
+	}
+
+	/**
+	 * Find the colonies nearest to a point
+	 *
+	 * @param x
+	 *            The X-coordinate of the point, in meters
+	 * @param y
+	 *            The Y-coordinate of the point, in meters
+	 * @param requiredFlags
+	 *            Status flags that a colony must have to be included
+	 * @param excludedFlags
+	 *            Status flags that a colony must not have to be included
+	 * @param results
+	 *            An array that will be filled with the nearest colonies,
+	 *            nearest first. Its length is the number of colonies to find.
+	 * @return The number of colonies found. This is less than the length of
+	 *         results if not enough colonies match the flags.
+	 */
+	public synchronized int nearest(double x, double y, int requiredFlags, int excludedFlags, Colony[] results) {
+		final int k = results.length;
+		if (k == 0 || entries.isEmpty()) {
+			return 0;
+		}
+		if (bestDistances.length < k) {
+			bestDistances = new double[k];
+		}
+		int found = 0;
+		int centerX = cellCoordinate(x);
+		int centerY = cellCoordinate(y);
+		int maxRing = maxRing(centerX, centerY);
+
+		for (int ring = 0; ring <= maxRing; ring++) {
+			//Everything outside the rings searched so far is at least this far away
+			double reach = (ring - 1) * cellSize;
+			if (found == k && reach > 0 && bestDistances[k - 1] <= reach * reach) {
+				break;
+			}
+			for (int cellY = centerY - ring; cellY <= centerY + ring; cellY++) {
+				//On the top and bottom rows of the ring, visit every cell.
+				//On the other rows, visit only the left and right cells.
+				int step = (cellY == centerY - ring || cellY == centerY + ring) ? 1 : Math.max(2 * ring, 1);
+				for (int cellX = centerX - ring; cellX <= centerX + ring; cellX += step) {
+					Cell cell = cells.get(cellKey(cellX, cellY));
+					if (cell == null) {
+						continue;
+					}
+					for (int i = 0; i < cell.size; i++) {
+						Entry entry = cell.entries[i];
+						if (!matches(entry.flags, requiredFlags, excludedFlags)) {
+							continue;
+						}
+						double dx = entry.x - x;
+						double dy = entry.y - y;
+						double distance = dx * dx + dy * dy;
+						if (found < k || distance < bestDistances[k - 1]) {
+							//Insert into the sorted results
+							int position = found < k ? found++ : k - 1;
+							while (position > 0 && bestDistances[position - 1] > distance) {
+								bestDistances[position] = bestDistances[position - 1];
+								results[position] = results[position - 1];
+								position--;
+							}
+							bestDistances[position] = distance;
+							results[position] = entry.colony;
+						}
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Find the colonies within a distance of a point
+	 *
+	 * @param x
+	 *            The X-coordinate of the point, in meters
+	 * @param y
+	 *            The Y-coordinate of the point, in meters
+	 * @param radius
+	 *            The maximum distance, in meters
+	 * @param requiredFlags
+	 *            Status flags that a colony must have to be included
+	 * @param excludedFlags
+	 *            Status flags that a colony must not have to be included
+	 * @param results
+	 *            An array that will be filled with the colonies found, in no
+	 *            particular order
+	 * @return The number of colonies found and placed in results. If more
+	 *         colonies are within the radius than will fit, the extra ones are
+	 *         not returned.
+	 */
+	public synchronized int withinRadius(double x, double y, double radius, int requiredFlags, int excludedFlags,
+			Colony[] results) {
+		int found = 0;
+		double radiusSquared = radius * radius;
+		int fromX = Math.max(cellCoordinate(x - radius), minCellX);
+		int toX = Math.min(cellCoordinate(x + radius), maxCellX);
+		int fromY = Math.max(cellCoordinate(y - radius), minCellY);
+		int toY = Math.min(cellCoordinate(y + radius), maxCellY);
+		for (int cellY = fromY; cellY <= toY; cellY++) {
+			for (int cellX = fromX; cellX <= toX; cellX++) {
+				Cell cell = cells.get(cellKey(cellX, cellY));
+				if (cell == null) {
+					continue;
+				}
+				for (int i = 0; i < cell.size; i++) {
+					Entry entry = cell.entries[i];
+					if (!matches(entry.flags, requiredFlags, excludedFlags)) {
+						continue;
+					}
+					double dx = entry.x - x;
+					double dy = entry.y - y;
+					if (dx * dx + dy * dy <= radiusSquared) {
+						if (found == results.length) {
+							return found;
+						}
+						results[found++] = entry.colony;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	private static boolean matches(int flags, int requiredFlags, int excludedFlags) {
+		return (flags & requiredFlags) == requiredFlags && (flags & excludedFlags) == 0;
+	}
+
+	/**
+	 * Get the number of rings around a cell that must be searched to cover
+	 * every cell that has contained a colony
+	 */
+	private int maxRing(int cellX, int cellY) {
+		int ring = Math.max(Math.abs(cellX - minCellX), Math.abs(cellX - maxCellX));
+		return Math.max(ring, Math.max(Math.abs(cellY - minCellY), Math.abs(cellY - maxCellY)));
+	}
+
+	private int cellCoordinate(double coordinate) {
+		return (int) Math.floor(coordinate / cellSize);
+	}
+
+	/**
+	 * Combine the coordinates of a cell into one key. Coordinates are
+	 * truncated to 16 bits, so cells 65536 cells apart share a key. This only
+	 * makes lookups slower, because the entries are still checked by distance.
+	 */
+	private static int cellKey(int cellX, int cellY) {
+		return (cellX << 16) | (cellY & 0xFFFF);
+	}
+
+	/**
+	 * The location of one colony in the grid
+	 */
+	static class Entry extends AbstractColonyIndex.Entry {
+		double x;
+		double y;
+		int flags;
+		/** The key of the cell that contains this entry */
+		int cellKey;
+		/** The cell that contains this entry */
+		Cell cell;
+		/** The index of this entry in its cell */
+		int index;
+	}
+
+	/**
+	 * The entries in one cell of the grid
+	 */
+	private static class Cell {
+		Entry[] entries = new Entry[4];
+		int size = 0;
+
+		void add(Entry entry) {
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, size * 2);
+			}
+			entry.index = size;
+			entry.cell = this;
+			entries[size++] = entry;
+		}
+
+		void remove(Entry entry) {
+			//Move the last entry into the removed entry's place
+			Entry last = entries[--size];
+			entries[entry.index] = last;
+			last.index = entry.index;
+			entries[size] = null;
+		}
+	}
+}
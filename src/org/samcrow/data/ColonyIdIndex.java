@@ -0,0 +1,263 @@
+package org.samcrow.data;
+
+import java.util.Arrays;
+
+/**
+ * A sorted index of colony IDs, used to suggest colonies while an ID is
+ * being typed.
+ * <p>
+ * It supports two kinds of lookup: by prefix, where "12" finds 12, 120-129,
+ * 1200-1299 and so on, and by range, where "500-600" finds every ID from 500
+ * to 600. Lookups are binary searches in a sorted array of IDs and write
+ * their results into an array supplied by the caller, so they do not
+ * allocate memory.
+ * </p>
+ * <p>
+ * An index can follow a {@link ColonySet} with {@link #track(ColonySet)}.
+ * The sorted array is rebuilt, on the next lookup, only when a colony is
+ * added or removed. Edits to colonies do not change their IDs, so they do
+ * not affect the index.
+ * </p>
+ * All methods are synchronized.
+ *
+ * @author Sam Crow
+ */
+public class ColonyIdIndex implements ColonySet.ChangeListener {
+
+	/** The set whose IDs are indexed */
+	private ColonySet colonies;
+
+	/** The IDs, sorted and without duplicates */
+	private int[] ids = new int[0];
+	/** The number of IDs in {@link #ids} */
+	private int size = 0;
+
+	/** True if {@link #ids} must be rebuilt before the next lookup */
+	private boolean stale = true;
+
+	/**
+	 * Index the IDs of the colonies in a set and keep the index up to date
+	 * as colonies are added and removed
+	 *
+	 * @param colonies
+	 *            The set to follow
+	 */
+	public synchronized void track(ColonySet colonies) {
+		if (this.colonies != null) {
+			this.colonies.removeChangeListener(this);
+		}
+		this.colonies = colonies;
+		colonies.addChangeListener(this);
+		stale = true;
+	}
+
+	/**
+	 * Stop following the set. The index is then empty.
+	 */
+	public synchronized void untrack() {
+		if (colonies != null) {
+			colonies.removeChangeListener(this);
+			colonies = null;
+		}
+		stale = true;
+	}
+
+	/**
+	 * @return The number of distinct IDs in the index
+	 */
+	public synchronized int size() {
+		rebuildIfStale();
+		return size;
+	}
+
+	/**
+	 * Find the IDs that start with the digits of a number. For example, a
+	 * prefix of 12 finds 12, 120 to 129, 1200 to 1299, and so on.
+	 *
+	 * @param prefix
+	 *            The prefix. Must not be negative.
+	 * @param results
+	 *            An array that will be filled with the matching IDs, in
+	 *            increasing order
+	 * @return The number of matching IDs. If this is greater than the length
+	 *         of results, only the first results.length IDs were stored.
+	 */
+	public synchronized int findPrefix(int prefix, int[] results) {
+		rebuildIfStale();
+		if (prefix < 0 || size == 0) {
+			return 0;
+		}
+		int max = ids[size - 1];
+		//Exactly the prefix
+		int found = copyRange(prefix, prefix, results, 0);
+		if (prefix == 0) {
+			//IDs do not have leading zeros
+			return found;
+		}
+		//The prefix followed by one digit, then two digits, and so on
+		for (long low = prefix * 10L, width = 10; low <= max; low *= 10, width *= 10) {
+			long high = Math.min(low + width - 1, Integer.MAX_VALUE);
+			found = copyRange((int) low, (int) high, results, found);
+		}
+		return found;
+	}
+
+	/**
+	 * Find the IDs in a range
+	 *
+	 * @param from
+	 *            The lowest ID to find
+	 * @param to
+	 *            The highest ID to find
+	 * @param results
+	 *            An array that will be filled with the matching IDs, in
+	 *            increasing order
+	 * @return The number of matching IDs. If this is greater than the length
+	 *         of results, only the first results.length IDs were stored.
+	 */
+	public synchronized int findRange(int from, int to, int[] results) {
+		rebuildIfStale();
+		if (from > to) {
+			return 0;
+		}
+		return copyRange(from, to, results, 0);
+	}
+
+	/**
+	 * Find the IDs matching text typed by the user. The text may be a prefix,
+	 * like "12", or a range, like "500-600". A range with no end, like
+	 * "500-", finds every ID from the start.
+	 * <p>
+	 * This parses the text without creating any objects, so it can be called
+	 * on every keystroke.
+	 * </p>
+	 *
+	 * @param text
+	 *            The text. Whitespace is ignored.
+	 * @param results
+	 *            An array that will be filled with the matching IDs, in
+	 *            increasing order
+	 * @return The number of matching IDs, or -1 if the text is not a valid
+	 *         prefix or range. If this is greater than the length of results,
+	 *         only the first results.length IDs were stored.
+	 */
+	public int find(CharSequence text, int[] results) {
+		long first = -1;
+		long second = -1;
+		boolean range = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				int digit = c - '0';
+				if (range) {
+					second = second < 0 ? digit : second * 10 + digit;
+				}
+				else {
+					first = first < 0 ? digit : first * 10 + digit;
+				}
+				if (Math.max(first, second) > Integer.MAX_VALUE) {
+					return -1;
+				}
+			}
+			else if (c == '-' && !range && first >= 0) {
+				range = true;
+			}
+			else if (!Character.isWhitespace(c)) {
+				return -1;
+			}
+		}
+		if (first < 0) {
+			return -1;
+		}
+		if (!range) {
+			return findPrefix((int) first, results);
+		}
+		return findRange((int) first, second >= 0 ? (int) second : Integer.MAX_VALUE, results);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.ColonySet.ChangeListener#colonyAdded(org.samcrow.data.Colony)
+	 */
+	@Override
+	public synchronized void colonyAdded(Colony colony) {
+		stale = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.ColonySet.ChangeListener#colonyRemoved(org.samcrow.data.Colony)
+	 */
+	@Override
+	public synchronized void colonyRemoved(Colony colony) {
+		stale = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.ColonySet.ChangeListener#colonyChanged(org.samcrow.data.Colony)
+	 */
+	@Override
+	public void colonyChanged(Colony colony) {
+		//IDs do not change while a colony is in a set
+	}
+
+	/**
+	 * Copy the IDs from low to high, inclusive, into results starting at an
+	 * offset
+	 *
+	 * @return The offset plus the number of IDs in the range
+	 */
+	private int copyRange(int low, int high, int[] results, int offset) {
+		int start = lowerBound(low);
+		int end = lowerBound(high);
+		if (end < size && ids[end] == high) {
+			end++;
+		}
+		int count = end - start;
+		if (offset < results.length) {
+			System.arraycopy(ids, start, results, offset, Math.min(count, results.length - offset));
+		}
+		return offset + count;
+	}
+
+	/**
+	 * @return The index of the first ID that is greater than or equal to a
+	 *         value
+	 */
+	private int lowerBound(int value) {
+		int index = Arrays.binarySearch(ids, 0, size, value);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	private void rebuildIfStale() {
+		if (!stale) {
+			return;
+		}
+		stale = false;
+		if (colonies == null) {
+			size = 0;
+			return;
+		}
+		//Read from a snapshot, which needs no lock on the set
+		ColonySnapshot snapshot = colonies.snapshot();
+		int[] newIds = ids.length >= snapshot.size() ? ids : new int[snapshot.size()];
+		int count = 0;
+		for (Colony.Snapshot state : snapshot) {
+			newIds[count++] = state.getId();
+		}
+		Arrays.sort(newIds, 0, count);
+		//Remove duplicates
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || newIds[i] != newIds[unique - 1]) {
+				newIds[unique++] = newIds[i];
+			}
+		}
+		ids = newIds;
+		size = unique;
+	}
+}
@@ -0,0 +1,351 @@
+package org.samcrow.data;
+
+import java.util.Arrays;
+
+/**
+ * A region quadtree of colonies, used to find the colonies inside a
+ * rectangle, such as the part of the map that is visible on the screen.
+ * <p>
+ * Each node covers a square. A leaf holds up to {@link #kLeafCapacity}
+ * colonies; when it has more, it is split into four quadrants. When colonies
+ * are removed or move away, quadrants are merged back together. The root
+ * grows outward as needed, so there is no fixed extent.
+ * </p>
+ * <p>
+ * A quadtree can follow a {@link ColonySet} with {@link #track(ColonySet)}.
+ * It is then updated incrementally whenever a colony in the set is added,
+ * removed or moved, so the cost of a query depends on the number of colonies
+ * near the rectangle and not on the number of colonies in the set.
+ * </p>
+ * <p>
+ * Colonies with a coordinate that is not finite, or farther than
+ * {@link #kMaxCoordinate} from the origin, are kept outside the tree and are
+ * never found by queries. Growing the root toward them would never finish.
+ * </p>
+ * Queries do not allocate memory. All methods are synchronized.
+ *
+ * @author Sam Crow
+ */
+public class ColonyQuadtree extends AbstractColonyIndex<ColonyQuadtree.Entry> {
+
+	/** The maximum number of colonies in a leaf, unless it is too small to split */
+	private static final int kLeafCapacity = 8;
+
+	/**
+	 * Leaves this size or smaller, in meters, are never split. This keeps
+	 * colonies at the same location from splitting nodes forever.
+	 */
+	private static final double kMinNodeSize = 0.25;
+
+	/** The size of the root node when the first colony is added, in meters */
+	private static final double kInitialSize = 64;
+
+	/** Colonies with a coordinate larger than this, in meters, are not put in the tree */
+	private static final double kMaxCoordinate = 1e9;
+
+	/** The root node, or null if no colony has been added */
+	private Node root;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#createEntry()
+	 */
+	@Override
+	Entry createEntry() {
+		return new Entry();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#updateEntry(org.samcrow.data.AbstractColonyIndex.Entry, org.samcrow.data.Colony.Snapshot, boolean)
+	 */
+	@Override
+	void updateEntry(Entry entry, Colony.Snapshot state, boolean added) {
+		double x = state.getX();
+		double y = state.getY();
+
+		if (entry.leaf != null) {
+			if (entry.leaf.contains(x, y)) {
+				//Still in the same leaf, so the tree does not change
+				entry.x = x;
+				entry.y = y;
+				return;
+			}
+			detach(entry);
+		}
+		entry.x = x;
+		entry.y = y;
+		if (inRange(x) && inRange(y)) {
+			insert(entry);
+		}
+	}
+
+	/**
+	 * Determine if a coordinate can be put in the tree
+	 */
+	private static boolean inRange(double coordinate) {
+		//False for NaN, because every comparison with it is false
+		return coordinate >= -kMaxCoordinate && coordinate <= kMaxCoordinate;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#removeEntry(org.samcrow.data.AbstractColonyIndex.Entry)
+	 */
+	@Override
+	void removeEntry(Entry entry) {
+		if (entry.leaf != null) {
+			detach(entry);
+		}
+	}
+
+	/**
+	 * Find the colonies inside a rectangle. Colonies on the edges are
+	 * included.
+	 *
+	 * @param minX
+	 *            The minimum X-coordinate of the rectangle, in meters
+	 * @param minY
+	 *            The minimum Y-coordinate of the rectangle, in meters
+	 * @param maxX
+	 *            The maximum X-coordinate of the rectangle, in meters
+	 * @param maxY
+	 *            The maximum Y-coordinate of the rectangle, in meters
+	 * @param results
+	 *            An array that will be filled with the colonies found, in no
+	 *            particular order
+	 * @return The number of colonies inside the rectangle. If this is greater
+	 *         than the length of results, only the first results.length
+	 *         colonies were stored, and the query should be repeated with a
+	 *         larger array.
+	 */
+	public synchronized int query(double minX, double minY, double maxX, double maxY, Colony[] results) {
+		if (root == null) {
+			return 0;
+		}
+		return query(root, minX, minY, maxX, maxY, results, 0);
+	}
+
+	private static int query(Node node, double minX, double minY, double maxX, double maxY, Colony[] results,
+			int found) {
+		if (node.count == 0 || node.minX > maxX || node.minY > maxY || node.minX + node.size < minX
+				|| node.minY + node.size < minY) {
+			return found;
+		}
+		if (node.children != null) {
+			for (Node child : node.children) {
+				found = query(child, minX, minY, maxX, maxY, results, found);
+			}
+			return found;
+		}
+		for (int i = 0; i < node.count; i++) {
+			Entry entry = node.entries[i];
+			if (entry.x >= minX && entry.x <= maxX && entry.y >= minY && entry.y <= maxY) {
+				if (found < results.length) {
+					results[found] = entry.colony;
+				}
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Put an entry into the leaf that covers its location, growing the root
+	 * and splitting the leaf as needed
+	 */
+	private void insert(Entry entry) {
+		if (root == null) {
+			root = new Node(null, entry.x - kInitialSize / 2, entry.y - kInitialSize / 2, kInitialSize);
+		}
+		while (!root.contains(entry.x, entry.y)) {
+			growToward(entry.x, entry.y);
+		}
+		Node node = root;
+		while (true) {
+			node.count++;
+			if (node.children == null) {
+				break;
+			}
+			node = node.childFor(entry.x, entry.y);
+		}
+		node.add(entry);
+		if (node.count > kLeafCapacity && node.size > kMinNodeSize) {
+			node.split();
+		}
+	}
+
+	/**
+	 * Replace the root with a node twice as large that contains it as one
+	 * quadrant, extending toward a point
+	 */
+	private void growToward(double x, double y) {
+		double size = root.size;
+		double minX = x < root.minX ? root.minX - size : root.minX;
+		double minY = y < root.minY ? root.minY - size : root.minY;
+		//The quadrant of the new root that the old root becomes
+		int rootIndex = (x < root.minX ? 1 : 0) | (y < root.minY ? 2 : 0);
+		Node parent = new Node(null, minX, minY, size * 2);
+		parent.children = new Node[4];
+		for (int i = 0; i < 4; i++) {
+			if (i == rootIndex) {
+				root.parent = parent;
+				parent.children[i] = root;
+			}
+			else {
+				//Offset from the old root, so that the quadrants line up exactly
+				double childX = root.minX + ((i & 1) - (rootIndex & 1)) * size;
+				double childY = root.minY + (((i & 2) - (rootIndex & 2)) >> 1) * size;
+				parent.children[i] = new Node(parent, childX, childY, size);
+			}
+		}
+		parent.count = root.count;
+		parent.entries = null;
+		root = parent;
+	}
+
+	/**
+	 * Take an entry out of its leaf, merging quadrants that have become
+	 * nearly empty
+	 */
+	private void detach(Entry entry) {
+		Node leaf = entry.leaf;
+		leaf.remove(entry);
+		entry.leaf = null;
+		//Merge at the highest ancestor that has become small enough
+		Node mergeInto = null;
+		for (Node node = leaf.parent; node != null; node = node.parent) {
+			node.count--;
+			if (node.count <= kLeafCapacity / 2) {
+				mergeInto = node;
+			}
+		}
+		if (mergeInto != null) {
+			mergeInto.merge();
+		}
+	}
+
+	/**
+	 * The location of one colony in the tree
+	 */
+	static class Entry extends AbstractColonyIndex.Entry {
+		double x;
+		double y;
+		/** The leaf that contains this entry, or null if it is outside the tree */
+		Node leaf;
+		/** The index of this entry in its leaf */
+		int index;
+	}
+
+	/**
+	 * A square region of the tree
+	 */
+	private static class Node {
+		Node parent;
+		final double minX;
+		final double minY;
+		final double size;
+		/** The four quadrants, indexed by (y half &lt;&lt; 1) | x half, or null for a leaf */
+		Node[] children;
+		/** The entries in a leaf, or null for an internal node */
+		Entry[] entries = new Entry[kLeafCapacity + 1];
+		/** The number of entries in this node and all its descendants */
+		int count;
+
+		Node(Node parent, double minX, double minY, double size) {
+			this.parent = parent;
+			this.minX = minX;
+			this.minY = minY;
+			this.size = size;
+		}
+
+		boolean contains(double x, double y) {
+			return x >= minX && x < minX + size && y >= minY && y < minY + size;
+		}
+
+		Node childFor(double x, double y) {
+			double half = size / 2;
+			int index = (x >= minX + half ? 1 : 0) | (y >= minY + half ? 2 : 0);
+			return children[index];
+		}
+
+		/**
+		 * Add an entry to this leaf. The count must already include it.
+		 */
+		void add(Entry entry) {
+			int index = count - 1;
+			if (index == entries.length) {
+				entries = Arrays.copyOf(entries, entries.length * 2);
+			}
+			entries[index] = entry;
+			entry.leaf = this;
+			entry.index = index;
+		}
+
+		/**
+		 * Remove an entry from this leaf and update the count
+		 */
+		void remove(Entry entry) {
+			//Move the last entry into the removed entry's place
+			Entry last = entries[--count];
+			entries[entry.index] = last;
+			last.index = entry.index;
+			entries[count] = null;
+		}
+
+		/**
+		 * Turn this leaf into an internal node with four leaf children
+		 */
+		void split() {
+			double half = size / 2;
+			children = new Node[4];
+			for (int i = 0; i < 4; i++) {
+				children[i] = new Node(this, minX + ((i & 1) != 0 ? half : 0), minY + ((i & 2) != 0 ? half : 0), half);
+			}
+			Entry[] old = entries;
+			int oldCount = count;
+			entries = null;
+			for (int i = 0; i < oldCount; i++) {
+				Node child = childFor(old[i].x, old[i].y);
+				child.count++;
+				child.add(old[i]);
+			}
+			for (Node child : children) {
+				if (child.count > kLeafCapacity && child.size > kMinNodeSize) {
+					child.split();
+				}
+			}
+		}
+
+		/**
+		 * Turn this node into a leaf holding all the entries of its descendants
+		 */
+		void merge() {
+			if (children == null) {
+				return;
+			}
+			Entry[] collected = new Entry[Math.max(count, kLeafCapacity) + 1];
+			int collectedCount = collect(this, collected, 0);
+			children = null;
+			entries = collected;
+			for (int i = 0; i < collectedCount; i++) {
+				collected[i].leaf = this;
+				collected[i].index = i;
+			}
+		}
+
+		private static int collect(Node node, Entry[] out, int index) {
+			if (node.children == null) {
+				System.arraycopy(node.entries, 0, out, index, node.count);
+				return index + node.count;
+			}
+			for (Node child : node.children) {
+				index = collect(child, out, index);
+			}
+			return index;
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package org.samcrow.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Merges two sets of colonies, such as the colonies from the CSV file and
+ * the colonies from the JSON file, and records every conflict.
+ * <p>
+ * A colony that is in only one of the sets is used as it is. When both sets
+ * contain a colony with the same ID, a {@link Policy} decides which state to
+ * use. Each set is passed over once, and colonies are matched by ID with
+ * {@link ColonySet#getById(int)}, which takes constant time, so merging
+ * takes time proportional to the number of colonies.
+ * </p>
+ * <p>
+ * After each merge, {@link #getReport()} describes how many colonies came
+ * from each set and lists the colonies whose two copies disagreed.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+public class ColonyReconciler {
+
+	/**
+	 * Decides which state to use for a colony that is in both sets
+	 */
+	public static interface Policy {
+		/**
+		 * Choose the state of a colony
+		 * @param base The copy from the base set
+		 * @param supplement The copy from the supplement set, with the same ID
+		 * @return The colony to put in the merged set. This may be base,
+		 * supplement, or a new colony.
+		 */
+		public Colony resolve(Colony base, Colony supplement);
+	}
+
+	/**
+	 * Always uses the copy from the supplement. This is how the colonies from
+	 * the CSV and JSON files were merged before this class was written.
+	 */
+	public static final Policy SUPPLEMENT_WINS = new Policy() {
+		@Override
+		public Colony resolve(Colony base, Colony supplement) {
+			return supplement;
+		}
+	};
+
+	/**
+	 * Uses the copy that was modified most recently. A colony that has never
+	 * been modified is older than any colony that has. If both were modified
+	 * at the same time, the supplement is used.
+	 */
+	public static final Policy NEWEST_WINS = new Policy() {
+		@Override
+		public Colony resolve(Colony base, Colony supplement) {
+			//NOT_MODIFIED is Long.MIN_VALUE, so it is older than any time
+			return base.getModifiedTime() > supplement.getModifiedTime() ? base : supplement;
+		}
+	};
+
+	/**
+	 * Combines the two copies field by field, for a base set of surveyed
+	 * colonies and a supplement of census observations:
+	 * <ul>
+	 * <li>The location comes from the base, which has the surveyed positions</li>
+	 * <li>Active status comes from the supplement, where it is recorded</li>
+	 * <li>The colony is visited if either copy has been visited</li>
+	 * <li>The modified time is the later of the two</li>
+	 * </ul>
+	 * Focus status comes from the supplement.
+	 */
+	public static final Policy MERGE_FIELDS = new Policy() {
+		@Override
+		public Colony resolve(Colony base, Colony supplement) {
+			Colony.Snapshot baseState = base.snapshot();
+			Colony.Snapshot supplementState = supplement.snapshot();
+			int flags = (supplementState.getFlags() & (Colony.ACTIVE | Colony.FOCUS))
+					| ((baseState.getFlags() | supplementState.getFlags()) & Colony.VISITED);
+			long modified = Math.max(baseState.getModifiedTime(), supplementState.getModifiedTime());
+			return new Colony(baseState.getId(), baseState.getX(), baseState.getY(), flags, modified);
+		}
+	};
+
+	/** The policy for colonies in both sets */
+	private final Policy policy;
+
+	/** The report of the last merge */
+	private Report report = new Report();
+
+	/**
+	 * Constructor
+	 * @param policy The policy that decides the state of colonies that are in both sets
+	 */
+	public ColonyReconciler(Policy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Merge two sets of colonies into a new set. The new set contains:
+	 * <ul>
+	 * <li>Every colony in the base but not the supplement, as it is</li>
+	 * <li>Every colony in the supplement but not the base, as it is</li>
+	 * <li>For every colony in both, the colony chosen by the policy</li>
+	 * </ul>
+	 * Colonies from the base come first, in the order of the base, followed by
+	 * the colonies only in the supplement, in the order of the supplement.
+	 * Colonies with the same ID are the same colony.
+	 * @param base The base set of colonies
+	 * @param supplement The supplement set of colonies
+	 * @return A new set. It contains the same colony objects as the input sets,
+	 * except for any new colonies created by the policy.
+	 */
+	public ColonySet reconcile(ColonySet base, ColonySet supplement) {
+		Report newReport = new Report();
+		ColonySet merged = new ColonySet(Math.max((int) ((base.size() + supplement.size()) / .75f) + 1, 16));
+
+		for(Colony baseColony : base) {
+			Colony supplementColony = supplement.getById(baseColony.getId());
+			if(supplementColony == null) {
+				merged.add(baseColony);
+				newReport.baseOnly++;
+				continue;
+			}
+			Colony.Snapshot baseState = baseColony.snapshot();
+			Colony.Snapshot supplementState = supplementColony.snapshot();
+			Colony chosen = policy.resolve(baseColony, supplementColony);
+			merged.add(chosen);
+			if(sameState(baseState, supplementState)) {
+				newReport.identical++;
+			}
+			else {
+				newReport.conflicts.add(new Conflict(baseState, supplementState, chosen.snapshot()));
+			}
+		}
+		for(Colony supplementColony : supplement) {
+			if(base.getById(supplementColony.getId()) == null) {
+				merged.add(supplementColony);
+				newReport.supplementOnly++;
+			}
+		}
+
+		report = newReport;
+		return merged;
+	}
+
+	/**
+	 * @return A report of the last merge
+	 */
+	public Report getReport() {
+		return report;
+	}
+
+	/**
+	 * Determine if two states of a colony have the same stored fields.
+	 * Focus status is not stored, so it is ignored.
+	 */
+	private static boolean sameState(Colony.Snapshot a, Colony.Snapshot b) {
+		return a.getX() == b.getX() && a.getY() == b.getY()
+				&& (a.getFlags() & ~Colony.FOCUS) == (b.getFlags() & ~Colony.FOCUS)
+				&& a.getModifiedTime() == b.getModifiedTime();
+	}
+
+	/**
+	 * A colony whose copies in the two sets disagreed
+	 */
+	public static class Conflict {
+		private final Colony.Snapshot base;
+		private final Colony.Snapshot supplement;
+		private final Colony.Snapshot chosen;
+
+		Conflict(Colony.Snapshot base, Colony.Snapshot supplement, Colony.Snapshot chosen) {
+			this.base = base;
+			this.supplement = supplement;
+			this.chosen = chosen;
+		}
+
+		/**
+		 * @return The ID of the colony
+		 */
+		public int getId() {
+			return base.getId();
+		}
+
+		/**
+		 * @return The state of the copy in the base set
+		 */
+		public Colony.Snapshot getBase() {
+			return base;
+		}
+
+		/**
+		 * @return The state of the copy in the supplement set
+		 */
+		public Colony.Snapshot getSupplement() {
+			return supplement;
+		}
+
+		/**
+		 * @return The state that was put in the merged set
+		 */
+		public Colony.Snapshot getChosen() {
+			return chosen;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append("Colony #").append(getId()).append(':');
+			if(base.getX() != supplement.getX() || base.getY() != supplement.getY()) {
+				text.append(" location (").append(base.getX()).append(", ").append(base.getY())
+				.append(") / (").append(supplement.getX()).append(", ").append(supplement.getY()).append(')');
+			}
+			if(base.isActive() != supplement.isActive()) {
+				text.append(" active ").append(base.isActive()).append(" / ").append(supplement.isActive());
+			}
+			if(base.isVisited() != supplement.isVisited()) {
+				text.append(" visited ").append(base.isVisited()).append(" / ").append(supplement.isVisited());
+			}
+			if(base.getModifiedTime() != supplement.getModifiedTime()) {
+				text.append(" modified ").append(formatTime(base.getModifiedTime()))
+				.append(" / ").append(formatTime(supplement.getModifiedTime()));
+			}
+			text.append(", used ").append(chosen.getX()).append(", ").append(chosen.getY())
+			.append(chosen.isActive() ? ", active" : ", inactive")
+			.append(chosen.isVisited() ? ", visited" : ", not visited");
+			return text.toString();
+		}
+
+		private static String formatTime(long time) {
+			return time == Colony.NOT_MODIFIED ? "never" : Long.toString(time);
+		}
+	}
+
+	/**
+	 * Describes the result of a merge
+	 */
+	public static class Report {
+		private int baseOnly = 0;
+		private int supplementOnly = 0;
+		private int identical = 0;
+		private final List<Conflict> conflicts = new ArrayList<Conflict>();
+
+		/**
+		 * @return The number of colonies that were only in the base set
+		 */
+		public int getBaseOnlyCount() {
+			return baseOnly;
+		}
+
+		/**
+		 * @return The number of colonies that were only in the supplement set
+		 */
+		public int getSupplementOnlyCount() {
+			return supplementOnly;
+		}
+
+		/**
+		 * @return The number of colonies that were the same in both sets
+		 */
+		public int getIdenticalCount() {
+			return identical;
+		}
+
+		/**
+		 * @return The colonies that were different in the two sets, in the order of the base set
+		 */
+		public List<Conflict> getConflicts() {
+			return Collections.unmodifiableList(conflicts);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return baseOnly + " colonies only in base, " + supplementOnly + " only in supplement, "
+					+ identical + " identical, " + conflicts.size() + " conflicting";
+		}
+	}
+}
@@ -1,30 +1,86 @@
 package org.samcrow.data;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.samcrow.util.IntHashMap;
 
 /**
  * A set of colonies, with additional methods
- * for accessing colonies by various criteria
+ * for accessing colonies by various criteria.
+ * 
+ * This set keeps an index of its colonies by ID, so {@link #getById(int)}
+ * takes constant time. Iteration is still in insertion order.
+ * The ID of a colony must not be changed while the colony is in a set.
+ * 
+ * Colonies notify the sets that contain them when they change, so a set can
+ * provide an up-to-date immutable {@link ColonySnapshot} of its colonies
+ * with {@link #snapshot()}, and can list the colonies that have changed
+ * since a version with {@link #changedSince(long)}. Other objects can
+ * also be notified of changes with a {@link ChangeListener}.
+ * Modifying the set is not thread-safe, but snapshots can be read from any
+ * thread without locking.
  * @author Sam Crow
  */
 public class ColonySet extends LinkedHashSet<Colony> {
 
+	/**
+	 * Maps colony IDs to colonies. If more than one colony in this set
+	 * has the same ID, this holds the one that was added first.
+	 */
+	private transient IntHashMap<Colony> index;
+
+	/**
+	 * The number of colonies in this set that share their ID with a colony
+	 * in the index. This is almost always zero, and allows removal
+	 * to skip searching for another colony with the same ID.
+	 */
+	private transient int duplicateIds = 0;
+
+	/**
+	 * The latest snapshot of this set, or null if none has been requested yet.
+	 * Once a snapshot has been requested, each change publishes a new one.
+	 * Changes to this field are made while synchronized on this set.
+	 */
+	private transient volatile ColonySnapshot snapshot;
+
+	/** The snapshot slot that will be assigned to the next colony added */
+	private transient int nextSlot = 0;
+
+	/**
+	 * The memberships of the colonies in this set, in a doubly linked list
+	 * in order of the version when they last changed. Accessed while
+	 * synchronized on this set.
+	 */
+	private transient Colony.Membership leastRecentlyChanged, mostRecentlyChanged;
+
+	/** The objects that will be notified of changes */
+	private transient CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
 
 	public ColonySet() {
 		super();
+		index = new IntHashMap<Colony>();
 	}
 
 	public ColonySet(Collection<? extends Colony> collection) {
-		super(collection);
+		super(Math.max((int) (collection.size() / .75f) + 1, 16));
+		index = new IntHashMap<Colony>(collection.size());
+		addAll(collection);
 	}
 
 	public ColonySet(int capacity, float loadFactor) {
 		super(capacity, loadFactor);
+		index = new IntHashMap<Colony>(capacity);
 	}
 
 	public ColonySet(int capacity) {
 		super(capacity);
+		index = new IntHashMap<Colony>(capacity);
 	}
 
 	private static final long serialVersionUID = -4336476707706103141L;
@@ -35,13 +91,421 @@ public class ColonySet extends LinkedHashSet<Colony> {
 	 * @return The colony with that ID, or null if no such colony was found
 	 */
 	public Colony getById(int id) {
+		return index.get(id);
+	}
+
+	/**
+	 * Get an immutable snapshot of the current state of the colonies in
+	 * this set. The snapshot will not change when this set or its colonies
+	 * change.
+	 * The first call takes O(n) time. After that, this set keeps its
+	 * snapshot up to date in O(log n) time per change, and this method
+	 * returns immediately without locking.
+	 * @return The latest snapshot
+	 */
+	public ColonySnapshot snapshot() {
+		ColonySnapshot current = snapshot;
+		if(current == null) {
+			synchronized(this) {
+				current = snapshot;
+				if(current == null) {
+					current = buildSnapshot(0);
+					snapshot = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Get the colonies in this set that have been added or changed since a
+	 * version. This takes time proportional to the number of colonies
+	 * returned, not the size of the set. Colonies that have been removed
+	 * are not included.
+	 * 
+	 * To track changes, get the version with {@link Colony#currentVersion()},
+	 * process the colonies, and later call this method with that version.
+	 * @param version A version from {@link Colony#currentVersion()}
+	 * @return An iterator over the changed colonies, in the order that they
+	 * changed. It is not affected by later changes to this set.
+	 */
+	public synchronized Iterator<Colony> changedSince(long version) {
+		//Walk back from the most recent change to find the first one after the version
+		int count = 0;
+		Colony.Membership first = null;
+		for(Colony.Membership m = mostRecentlyChanged; m != null && m.changeVersion > version; m = m.changedBefore) {
+			first = m;
+			count++;
+		}
+		Colony[] changed = new Colony[count];
+		int i = 0;
+		for(Colony.Membership m = first; i < count; m = m.changedAfter) {
+			changed[i++] = m.colony;
+		}
+		return Arrays.asList(changed).iterator();
+	}
+
+	/**
+	 * Add an object to be notified when colonies are added to, removed from,
+	 * or changed in this set
+	 * @param listener The listener to add
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Remove a listener
+	 * @param listener The listener to remove
+	 * @return True if the listener was removed, false if it had not been added
+	 */
+	public boolean removeChangeListener(ChangeListener listener) {
+		return listeners.remove(listener);
+	}
+
+	@Override
+	public boolean add(Colony colony) {
+		boolean added = super.add(colony);
+		if(added) {
+			Colony existing = index.get(colony.getId());
+			if(existing == null) {
+				index.put(colony.getId(), colony);
+			}
+			else {
+				duplicateIds++;
+			}
+			join(colony);
+			for(ChangeListener listener : listeners) {
+				listener.colonyAdded(colony);
+			}
+		}
+		return added;
+	}
+
+	@Override
+	public boolean remove(Object object) {
+		if(!(object instanceof Colony)) {
+			return false;
+		}
+		//The colony in this set may be a different object that is equal to the argument
+		Colony stored = find((Colony) object);
+		if(stored == null) {
+			return false;
+		}
+		if(!super.remove(stored)) {
+			//The colony has moved or changed status since it was added, so its hash
+			//code has changed. Find it by identity instead.
+			Iterator<Colony> iterator = super.iterator();
+			while(iterator.hasNext()) {
+				if(iterator.next() == stored) {
+					iterator.remove();
+					break;
+				}
+			}
+		}
+		unindex(stored);
+		return true;
+	}
+
+	/**
+	 * Find the colony in this set that is the same as, or equal to, a colony
+	 * @param colony The colony to look for
+	 * @return The colony in this set, or null if there is none
+	 */
+	private Colony find(Colony colony) {
+		Colony indexed = index.get(colony.getId());
+		if(indexed == null) {
+			return null;
+		}
+		if(indexed == colony || (duplicateIds == 0 && indexed.equals(colony))) {
+			return indexed;
+		}
+		//Look through the colonies with the same ID, preferring the same object
+		Colony equal = indexed.equals(colony) ? indexed : null;
+		if(duplicateIds > 0) {
+			for(Colony other : this) {
+				if(other == colony) {
+					return other;
+				}
+				if(equal == null && other.getId() == colony.getId() && other.equals(colony)) {
+					equal = other;
+				}
+			}
+		}
+		return equal;
+	}
+
+	@Override
+	public void clear() {
+		synchronized(this) {
+			for(Colony colony : this) {
+				Colony.Membership membership = colony.leave(this);
+				if(membership != null) {
+					membership.slot = -1;
+				}
+				for(ChangeListener listener : listeners) {
+					listener.colonyRemoved(colony);
+				}
+			}
+			nextSlot = 0;
+			leastRecentlyChanged = null;
+			mostRecentlyChanged = null;
+			if(snapshot != null) {
+				snapshot = snapshot.cleared();
+			}
+		}
+		super.clear();
+		index.clear();
+		duplicateIds = 0;
+	}
+
+	@Override
+	public Iterator<Colony> iterator() {
+		final Iterator<Colony> iterator = super.iterator();
+		return new Iterator<Colony>() {
+
+			private Colony current;
+
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public Colony next() {
+				current = iterator.next();
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				iterator.remove();
+				unindex(current);
+			}
+		};
+	}
+
+	/**
+	 * Update the index after a colony has been removed from this set
+	 * @param colony The colony that was removed
+	 */
+	private void unindex(Colony colony) {
+		leave(colony);
+		for(ChangeListener listener : listeners) {
+			listener.colonyRemoved(colony);
+		}
+		int id = colony.getId();
+		if(index.get(id) != colony) {
+			//Another colony with this ID is indexed, so this one was a duplicate
+			duplicateIds--;
+			return;
+		}
+		index.remove(id);
+		if(duplicateIds > 0) {
+			//Promote the next colony with the same ID, if there is one
+			for(Colony other : this) {
+				if(other.getId() == id) {
+					index.put(id, other);
+					duplicateIds--;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called by a colony in this set after its state has changed
+	 * @param colony The colony that changed
+	 * @param membership The colony's membership in this set
+	 */
+	void colonyChanged(Colony colony, Colony.Membership membership) {
+		synchronized(this) {
+			if(membership.slot == -1) {
+				//Removed from this set
+				return;
+			}
+			unlinkChange(membership);
+			linkChange(membership);
+			//Publish the colony's latest state. If several threads change
+			//the colony at once, the last one to get here publishes the final state.
+			if(snapshot != null) {
+				snapshot = snapshot.with(membership.slot, colony.snapshot());
+			}
+		}
+		for(ChangeListener listener : listeners) {
+			listener.colonyChanged(colony);
+		}
+	}
+
+	/**
+	 * Stamp a membership with a new version and append it to the list of changes
+	 * @param membership The membership
+	 */
+	private void linkChange(Colony.Membership membership) {
+		//Use a new version rather than the colony's own version. Notifications
+		//can arrive out of order, and this keeps the list sorted.
+		membership.changeVersion = Colony.nextVersion();
+		membership.changedBefore = mostRecentlyChanged;
+		membership.changedAfter = null;
+		if(mostRecentlyChanged != null) {
+			mostRecentlyChanged.changedAfter = membership;
+		}
+		else {
+			leastRecentlyChanged = membership;
+		}
+		mostRecentlyChanged = membership;
+	}
+
+	/**
+	 * Remove a membership from the list of changes
+	 * @param membership The membership
+	 */
+	private void unlinkChange(Colony.Membership membership) {
+		if(membership.changedBefore != null) {
+			membership.changedBefore.changedAfter = membership.changedAfter;
+		}
+		else {
+			leastRecentlyChanged = membership.changedAfter;
+		}
+		if(membership.changedAfter != null) {
+			membership.changedAfter.changedBefore = membership.changedBefore;
+		}
+		else {
+			mostRecentlyChanged = membership.changedBefore;
+		}
+		membership.changedBefore = null;
+		membership.changedAfter = null;
+	}
+
+	/**
+	 * Assign a slot to a colony that has just been added
+	 * @param colony The colony
+	 */
+	private synchronized void join(Colony colony) {
+		int slot = nextSlot++;
+		Colony.Membership membership = colony.join(this, slot);
+		linkChange(membership);
+		if(snapshot != null) {
+			snapshot = snapshot.with(slot, colony.snapshot());
+		}
+	}
+
+	/**
+	 * Release the slot of a colony that has just been removed
+	 * @param colony The colony
+	 */
+	private synchronized void leave(Colony colony) {
+		Colony.Membership membership = colony.leave(this);
+		if(membership == null) {
+			return;
+		}
+		int slot = membership.slot;
+		membership.slot = -1;
+		unlinkChange(membership);
+		if(snapshot != null) {
+			snapshot = snapshot.with(slot, null);
+		}
+		//Renumber the slots once most of them are empty
+		if(nextSlot > 2 * size() + 32) {
+			renumberSlots();
+		}
+	}
+
+	/**
+	 * Assign consecutive slots to the colonies and rebuild the snapshot
+	 */
+	private void renumberSlots() {
+		int slot = 0;
+		for(Colony colony : this) {
+			colony.membershipIn(this).slot = slot++;
+		}
+		nextSlot = slot;
+		if(snapshot != null) {
+			snapshot = buildSnapshot(snapshot.getVersion() + 1);
+		}
+	}
+
+	/**
+	 * Build a new snapshot from the current states of the owned colonies
+	 * @param version The version to give the snapshot
+	 * @return The snapshot
+	 */
+	private ColonySnapshot buildSnapshot(long version) {
+		Colony.Snapshot[] states = new Colony.Snapshot[nextSlot];
 		for(Colony colony : this) {
-			if(colony.getId() == id) {
-				return colony;
+			states[colony.membershipIn(this).slot] = colony.snapshot();
+		}
+		return ColonySnapshot.build(states, nextSlot, version);
+	}
+
+	@Override
+	public Object clone() {
+		ColonySet copy = (ColonySet) super.clone();
+		//The superclass copies the colonies but would share the index
+		copy.snapshot = null;
+		copy.nextSlot = 0;
+		copy.leastRecentlyChanged = null;
+		copy.mostRecentlyChanged = null;
+		copy.listeners = new CopyOnWriteArrayList<ChangeListener>();
+		copy.rebuildIndex();
+		for(Colony colony : copy) {
+			copy.join(colony);
+		}
+		return copy;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		//The superclass has already read the colonies without calling add()
+		listeners = new CopyOnWriteArrayList<ChangeListener>();
+		rebuildIndex();
+		for(Colony colony : this) {
+			join(colony);
+		}
+	}
+
+	/**
+	 * Replace the index with a new one built from the colonies in this set
+	 */
+	private void rebuildIndex() {
+		index = new IntHashMap<Colony>(size());
+		duplicateIds = 0;
+		for(Colony colony : this) {
+			if(index.get(colony.getId()) == null) {
+				index.put(colony.getId(), colony);
+			}
+			else {
+				duplicateIds++;
 			}
 		}
+	}
+
+	/**
+	 * An interface for a class that is notified when the colonies in a
+	 * {@link ColonySet} change.
+	 * Methods are called on the thread that made the change, after the change
+	 * has been made. They should return quickly.
+	 * @author Sam Crow
+	 */
+	public static interface ChangeListener {
+
+		/**
+		 * Called when a colony has been added to the set
+		 * @param colony The colony
+		 */
+		public void colonyAdded(Colony colony);
+
+		/**
+		 * Called when a colony has been removed from the set
+		 * @param colony The colony
+		 */
+		public void colonyRemoved(Colony colony);
 
-		return null;
+		/**
+		 * Called when the state of a colony in the set has changed
+		 * @param colony The colony
+		 */
+		public void colonyChanged(Colony colony);
 	}
 
 }
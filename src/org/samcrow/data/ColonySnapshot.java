@@ -0,0 +1,302 @@
+package org.samcrow.data;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable, versioned copy of the states of a set of colonies.
+ * <p>
+ * Snapshots are persistent: changing one colony creates a new snapshot that
+ * shares all but O(log n) of its structure with the previous one, so
+ * publishing a change does not copy the whole set. Any thread can iterate
+ * a snapshot without locking, and it will never change underneath it.
+ * </p>
+ * <p>
+ * Colony states are stored in slots. {@link ColonySet} assigns each colony a
+ * slot when it is added, so iteration follows the order in which the colonies
+ * were added. Internally, the slots are the leaves of a 32-way trie.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+public final class ColonySnapshot implements Iterable<Colony.Snapshot> {
+
+	/** The number of bits of a slot number used at each level of the trie */
+	private static final int kBits = 5;
+	/** The number of children of each trie node */
+	private static final int kWidth = 1 << kBits;
+	private static final int kMask = kWidth - 1;
+
+	/** A snapshot with no colonies */
+	public static final ColonySnapshot EMPTY = new ColonySnapshot(new Object[kWidth], 0, 0, 0, 0);
+
+	/**
+	 * The root of the trie. Internal nodes are arrays of child nodes; leaves
+	 * are arrays of {@link Colony.Snapshot}s. Empty subtrees are null.
+	 */
+	private final Object[] root;
+	/** The number of bits to shift a slot number by to index the root */
+	private final int shift;
+	/** One more than the highest slot that may be occupied */
+	private final int length;
+	/** The number of occupied slots */
+	private final int size;
+	/** The version of this snapshot */
+	private final long version;
+
+	private ColonySnapshot(Object[] root, int shift, int length, int size, long version) {
+		this.root = root;
+		this.shift = shift;
+		this.length = length;
+		this.size = size;
+		this.version = version;
+	}
+
+	/**
+	 * Build a snapshot from an array of states
+	 *
+	 * @param states
+	 *            The state for each slot. Empty slots are null.
+	 * @param length
+	 *            The number of slots to use from the array
+	 * @param version
+	 *            The version of the new snapshot
+	 * @return A new snapshot
+	 */
+	static ColonySnapshot build(Colony.Snapshot[] states, int length, long version) {
+		int size = 0;
+		//Build the leaves
+		int nodeCount = Math.max((length + kMask) >>> kBits, 1);
+		Object[] level = new Object[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			Object[] leaf = new Object[kWidth];
+			int count = Math.min(kWidth, length - i * kWidth);
+			if (count > 0) {
+				System.arraycopy(states, i * kWidth, leaf, 0, count);
+			}
+			for (int j = 0; j < count; j++) {
+				if (leaf[j] != null) {
+					size++;
+				}
+			}
+			level[i] = leaf;
+		}
+		//Build internal nodes until there is only one
+		int shift = 0;
+		while (level.length > 1) {
+			int parentCount = (level.length + kMask) >>> kBits;
+			Object[] parents = new Object[parentCount];
+			for (int i = 0; i < parentCount; i++) {
+				Object[] parent = new Object[kWidth];
+				System.arraycopy(level, i * kWidth, parent, 0, Math.min(kWidth, level.length - i * kWidth));
+				parents[i] = parent;
+			}
+			level = parents;
+			shift += kBits;
+		}
+		return new ColonySnapshot((Object[]) level[0], shift, length, size, version);
+	}
+
+	/**
+	 * @return The version of this snapshot. Each change to a set of colonies
+	 *         produces a snapshot with a higher version.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The number of colonies in this snapshot
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return True if this snapshot has no colonies
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the state in a slot
+	 *
+	 * @param slot
+	 *            The slot number
+	 * @return The state, or null if the slot is empty
+	 */
+	Colony.Snapshot get(int slot) {
+		if (slot < 0 || slot >= length) {
+			return null;
+		}
+		Object[] leaf = leafFor(slot);
+		return leaf != null ? (Colony.Snapshot) leaf[slot & kMask] : null;
+	}
+
+	/**
+	 * Create a new snapshot with the state in one slot replaced
+	 *
+	 * @param slot
+	 *            The slot number
+	 * @param state
+	 *            The new state, or null to empty the slot
+	 * @return A new snapshot with a higher version
+	 */
+	ColonySnapshot with(int slot, Colony.Snapshot state) {
+		if (slot < 0) {
+			throw new IndexOutOfBoundsException("Negative slot " + slot);
+		}
+		Object[] newRoot = root;
+		int newShift = shift;
+		//Add levels until the trie is big enough to hold the slot
+		while ((slot >>> newShift) > kMask) {
+			Object[] parent = new Object[kWidth];
+			parent[0] = newRoot;
+			newRoot = parent;
+			newShift += kBits;
+		}
+		Colony.Snapshot old = get(slot);
+		newRoot = copyPath(newRoot, newShift, slot, state);
+
+		int newSize = size;
+		if (old == null && state != null) {
+			newSize++;
+		}
+		else if (old != null && state == null) {
+			newSize--;
+		}
+		return new ColonySnapshot(newRoot, newShift, Math.max(length, slot + 1), newSize, version + 1);
+	}
+
+	/**
+	 * Create an empty snapshot with a version higher than this one
+	 *
+	 * @return The new snapshot
+	 */
+	ColonySnapshot cleared() {
+		return new ColonySnapshot(new Object[kWidth], 0, 0, 0, version + 1);
+	}
+
+	private static Object[] copyPath(Object[] node, int level, int slot, Colony.Snapshot state) {
+		Object[] copy = node != null ? node.clone() : new Object[kWidth];
+		int index = (slot >>> level) & kMask;
+		if (level == 0) {
+			copy[index] = state;
+		}
+		else {
+			copy[index] = copyPath((Object[]) copy[index], level - kBits, slot, state);
+		}
+		return copy;
+	}
+
+	/**
+	 * Find the leaf that contains a slot
+	 *
+	 * @return The leaf, or null if it does not exist
+	 */
+	private Object[] leafFor(int slot) {
+		if ((slot >>> shift) > kMask) {
+			return null;
+		}
+		Object[] node = root;
+		for (int level = shift; level > 0 && node != null; level -= kBits) {
+			node = (Object[]) node[(slot >>> level) & kMask];
+		}
+		return node;
+	}
+
+	/**
+	 * Iterate over the colony states in this snapshot, in slot order
+	 */
+	@Override
+	public Iterator<Colony.Snapshot> iterator() {
+		return new Iterator<Colony.Snapshot>() {
+
+			/** The slot of the next state to return */
+			private int slot = -1;
+			/** The leaf containing {@link #slot} */
+			private Object[] leaf;
+
+			{
+				advance();
+			}
+
+			private void advance() {
+				while (++slot < length) {
+					if ((slot & kMask) == 0 || leaf == null) {
+						leaf = leafFor(slot);
+						if (leaf == null) {
+							//Skip the whole empty leaf
+							slot |= kMask;
+							continue;
+						}
+					}
+					if (leaf[slot & kMask] != null) {
+						return;
+					}
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return slot < length;
+			}
+
+			@Override
+			public Colony.Snapshot next() {
+				if (slot >= length) {
+					throw new NoSuchElementException();
+				}
+				Colony.Snapshot state = (Colony.Snapshot) leaf[slot & kMask];
+				advance();
+				return state;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("Snapshots are immutable");
+			}
+		};
+	}
+
+	/**
+	 * Get a read-only set view of this snapshot as colonies. Each colony
+	 * returned by the set's iterator is a new copy, detached from any
+	 * {@link ColonySet}, so changing it has no effect.
+	 *
+	 * @return A set of colonies
+	 */
+	public Set<Colony> asColonies() {
+		return new AbstractSet<Colony>() {
+
+			@Override
+			public Iterator<Colony> iterator() {
+				final Iterator<Colony.Snapshot> states = ColonySnapshot.this.iterator();
+				return new Iterator<Colony>() {
+					@Override
+					public boolean hasNext() {
+						return states.hasNext();
+					}
+
+					@Override
+					public Colony next() {
+						return new Colony(states.next());
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException("Snapshots are immutable");
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+}
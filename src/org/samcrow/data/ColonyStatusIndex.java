@@ -0,0 +1,248 @@
+package org.samcrow.data;
+
+import java.util.Arrays;
+
+import org.samcrow.util.CompressedBitmap;
+
+/**
+ * Indexes colonies by their status flags ({@link Colony#ACTIVE},
+ * {@link Colony#VISITED} and {@link Colony#FOCUS}) so that questions like
+ * "which focus colonies have not been visited?" can be answered without
+ * looking at every colony.
+ * <p>
+ * Each colony is given a small, dense ordinal. For each flag, a
+ * {@link CompressedBitmap} records the ordinals of the colonies that have
+ * the flag. Counting the colonies with one flag takes constant time, and
+ * combinations of flags are found by intersecting the bitmaps 64 colonies at
+ * a time. Ordinals of removed colonies are reused, so the bitmaps stay dense.
+ * </p>
+ * <p>
+ * An index can follow a {@link ColonySet} with {@link #track(ColonySet)}.
+ * It is then updated whenever a colony in the set is added, removed or
+ * changed, including changes made by the colony's setters and by
+ * {@link org.samcrow.data.io.FocusColonyFinder}.
+ * </p>
+ * All methods are synchronized.
+ *
+ * @author Sam Crow
+ */
+public class ColonyStatusIndex extends AbstractColonyIndex<ColonyStatusIndex.Entry> {
+
+	/** The flags that are indexed, in the order of {@link #flagBitmaps} */
+	private static final int[] kFlags = { Colony.ACTIVE, Colony.VISITED, Colony.FOCUS };
+
+	/** Ordinals of all colonies in this index */
+	private final CompressedBitmap present = new CompressedBitmap();
+
+	/** Ordinals of the colonies with each flag, in the order of {@link #kFlags} */
+	private final CompressedBitmap[] flagBitmaps = new CompressedBitmap[kFlags.length];
+
+	/** Entries by ordinal. Unused ordinals are null. */
+	private Entry[] byOrdinal = new Entry[64];
+
+	/** Ordinals that have been released and can be reused */
+	private int[] freeOrdinals = new int[16];
+	private int freeCount = 0;
+
+	/** One more than the highest ordinal ever assigned */
+	private int nextOrdinal = 0;
+
+	/** Holds ordinals found by a query. Grows as needed. */
+	private int[] ordinalBuffer = new int[64];
+
+	/**
+	 * Constructor
+	 */
+	public ColonyStatusIndex() {
+		for (int i = 0; i < flagBitmaps.length; i++) {
+			flagBitmaps[i] = new CompressedBitmap();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#createEntry()
+	 */
+	@Override
+	Entry createEntry() {
+		return new Entry();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#updateEntry(org.samcrow.data.AbstractColonyIndex.Entry, org.samcrow.data.Colony.Snapshot, boolean)
+	 */
+	@Override
+	void updateEntry(Entry entry, Colony.Snapshot state, boolean added) {
+		if (added) {
+			entry.ordinal = allocateOrdinal();
+			byOrdinal[entry.ordinal] = entry;
+			present.set(entry.ordinal);
+		}
+		int flags = state.getFlags();
+		int changed = flags ^ entry.flags;
+		if (changed != 0) {
+			for (int i = 0; i < kFlags.length; i++) {
+				if ((changed & kFlags[i]) != 0) {
+					flagBitmaps[i].set(entry.ordinal, (flags & kFlags[i]) != 0);
+				}
+			}
+			entry.flags = flags;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.samcrow.data.AbstractColonyIndex#removeEntry(org.samcrow.data.AbstractColonyIndex.Entry)
+	 */
+	@Override
+	void removeEntry(Entry entry) {
+		present.clear(entry.ordinal);
+		for (CompressedBitmap bitmap : flagBitmaps) {
+			bitmap.clear(entry.ordinal);
+		}
+		byOrdinal[entry.ordinal] = null;
+		releaseOrdinal(entry.ordinal);
+	}
+
+	/**
+	 * Count the colonies that have some flags and do not have others.
+	 * This takes constant time when at most one flag is given and none are
+	 * excluded, or when no flags are required and one is excluded.
+	 *
+	 * @param requiredFlags
+	 *            Flags that a colony must have to be counted
+	 * @param excludedFlags
+	 *            Flags that a colony must not have to be counted
+	 * @return The number of matching colonies
+	 */
+	public synchronized int count(int requiredFlags, int excludedFlags) {
+		if (excludedFlags == 0) {
+			if (requiredFlags == 0) {
+				return present.cardinality();
+			}
+			int single = bitmapIndex(requiredFlags);
+			if (single >= 0) {
+				return flagBitmaps[single].cardinality();
+			}
+		}
+		else if (requiredFlags == 0) {
+			int single = bitmapIndex(excludedFlags);
+			if (single >= 0) {
+				return present.cardinality() - flagBitmaps[single].cardinality();
+			}
+		}
+		return selectOrdinals(requiredFlags, excludedFlags, new int[0]);
+	}
+
+	/**
+	 * Find the colonies that have some flags and do not have others
+	 *
+	 * @param requiredFlags
+	 *            Flags that a colony must have to be included
+	 * @param excludedFlags
+	 *            Flags that a colony must not have to be included
+	 * @param results
+	 *            An array that will be filled with the matching colonies
+	 * @return The number of matching colonies. If this is greater than the
+	 *         length of results, only the first results.length colonies were
+	 *         stored, and the query should be repeated with a larger array.
+	 */
+	public synchronized int select(int requiredFlags, int excludedFlags, Colony[] results) {
+		if (ordinalBuffer.length < results.length) {
+			ordinalBuffer = new int[results.length];
+		}
+		int found = selectOrdinals(requiredFlags, excludedFlags, ordinalBuffer);
+		int stored = Math.min(found, results.length);
+		for (int i = 0; i < stored; i++) {
+			results[i] = byOrdinal[ordinalBuffer[i]].colony;
+		}
+		return found;
+	}
+
+	/**
+	 * Find the ordinals of the colonies that match a flag pattern
+	 *
+	 * @return The number of matching ordinals
+	 */
+	private int selectOrdinals(int requiredFlags, int excludedFlags, int[] results) {
+		if ((requiredFlags & excludedFlags) != 0) {
+			//No colony can both have and not have a flag
+			return 0;
+		}
+		int requiredCount = Integer.bitCount(requiredFlags & allFlags());
+		int excludedCount = Integer.bitCount(excludedFlags & allFlags());
+		CompressedBitmap[] required = new CompressedBitmap[requiredCount];
+		CompressedBitmap[] excluded = new CompressedBitmap[excludedCount];
+		int r = 0, e = 0;
+		for (int i = 0; i < kFlags.length; i++) {
+			if ((requiredFlags & kFlags[i]) != 0) {
+				required[r++] = flagBitmaps[i];
+			}
+			else if ((excludedFlags & kFlags[i]) != 0) {
+				excluded[e++] = flagBitmaps[i];
+			}
+		}
+		if (required.length == 0) {
+			return present.select(required, excluded, results);
+		}
+		//Start from the smallest required bitmap, because only its blocks are visited
+		int smallest = 0;
+		for (int i = 1; i < required.length; i++) {
+			if (required[i].cardinality() < required[smallest].cardinality()) {
+				smallest = i;
+			}
+		}
+		CompressedBitmap base = required[smallest];
+		required[smallest] = required[required.length - 1];
+		return base.select(Arrays.copyOf(required, required.length - 1), excluded, results);
+	}
+
+	private static int allFlags() {
+		return Colony.ACTIVE | Colony.VISITED | Colony.FOCUS;
+	}
+
+	/**
+	 * Get the index in {@link #flagBitmaps} for a single flag
+	 *
+	 * @return The index, or -1 if flags is not exactly one indexed flag
+	 */
+	private static int bitmapIndex(int flags) {
+		for (int i = 0; i < kFlags.length; i++) {
+			if (flags == kFlags[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int allocateOrdinal() {
+		if (freeCount != 0) {
+			//Reuse the most recently released ordinal
+			return freeOrdinals[--freeCount];
+		}
+		if (nextOrdinal == byOrdinal.length) {
+			byOrdinal = Arrays.copyOf(byOrdinal, byOrdinal.length * 2);
+		}
+		return nextOrdinal++;
+	}
+
+	private void releaseOrdinal(int ordinal) {
+		if (freeCount == freeOrdinals.length) {
+			freeOrdinals = Arrays.copyOf(freeOrdinals, freeOrdinals.length * 2);
+		}
+		freeOrdinals[freeCount++] = ordinal;
+	}
+
+	/**
+	 * The indexed state of one colony
+	 */
+	static class Entry extends AbstractColonyIndex.Entry {
+		int ordinal;
+		/** The flags that are currently recorded in the bitmaps */
+		int flags;
+	}
+}
@@ -0,0 +1,200 @@
+package org.samcrow.data.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replaces the contents of a file so that, even if the application or device
+ * stops at any point, the file has either its old contents or its new
+ * contents, never a mix or nothing.
+ * <p>
+ * New contents are written to a temporary file next to the target, flushed
+ * to the storage device with {@link java.io.FileDescriptor#sync()}, and then
+ * renamed over the target. Renaming within a directory is atomic. A
+ * temporary file left behind by an interrupted write is never read, and is
+ * replaced by the next write.
+ * </p>
+ * <p>
+ * Writes use group commit. Each write replaces the whole file, so when
+ * several threads request writes while one is in progress, only the most
+ * recently requested contents are written next, with one sync, and every
+ * waiting thread returns when that write is done.
+ * </p>
+ * Use {@link #forFile(File)} to get the instance for a file, so that all
+ * writers of the same file share one group.
+ *
+ * @author Sam Crow
+ */
+public class AtomicFile {
+
+	/**
+	 * Writes the contents of a file
+	 */
+	public static interface Contents {
+		/**
+		 * Write the contents
+		 * @param out The stream to write to. It is buffered. Do not close it.
+		 * @throws IOException if the contents could not be written
+		 */
+		public void writeTo(OutputStream out) throws IOException;
+	}
+
+	/** Instances by absolute path */
+	private static final Map<String, AtomicFile> kInstances = new HashMap<String, AtomicFile>();
+
+	/** The file whose contents are replaced */
+	private final File file;
+
+	/** The file that new contents are written to before being renamed */
+	private final File tempFile;
+
+	/** The most recently requested contents that have not started being written */
+	private Contents latest;
+	/** The number of writes requested */
+	private long requested = 0;
+	/** The number of requested writes covered by a finished write, successful or not */
+	private long finished = 0;
+	/** The number of requested writes covered by a successful write */
+	private long succeeded = 0;
+	/** The error from the most recent failed write */
+	private IOException lastError;
+	/** True while a thread is writing */
+	private boolean writing = false;
+
+	/**
+	 * Constructor. Use {@link #forFile(File)} instead, unless the file will
+	 * only ever be written through this object.
+	 * @param file The file to write
+	 */
+	public AtomicFile(File file) {
+		this.file = file;
+		this.tempFile = new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Get the shared instance for a file
+	 * @param file The file
+	 * @return The instance that all writers of the file should use
+	 */
+	public static AtomicFile forFile(File file) {
+		String path = file.getAbsolutePath();
+		synchronized(kInstances) {
+			AtomicFile instance = kInstances.get(path);
+			if(instance == null) {
+				instance = new AtomicFile(file);
+				kInstances.put(path, instance);
+			}
+			return instance;
+		}
+	}
+
+	/**
+	 * @return The file whose contents are replaced
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Replace the contents of the file, and wait until the new contents, or
+	 * contents requested later, are safely stored
+	 * @param contents The new contents
+	 * @throws IOException if the contents could not be written. The file then
+	 * still has its previous contents.
+	 */
+	public void write(Contents contents) throws IOException {
+		long ticket;
+		long batchEnd;
+		synchronized(this) {
+			latest = contents;
+			ticket = ++requested;
+			while(true) {
+				if(succeeded >= ticket) {
+					//A write that included these contents, or later ones, succeeded
+					return;
+				}
+				if(finished >= ticket) {
+					throw lastError;
+				}
+				if(!writing) {
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting to write " + file);
+				}
+			}
+			//Write the newest contents for everyone who is waiting
+			writing = true;
+			contents = latest;
+			latest = null;
+			batchEnd = requested;
+		}
+
+		IOException error = null;
+		try {
+			writeNow(contents);
+		} catch (IOException e) {
+			error = e;
+		} catch (RuntimeException e) {
+			error = new IOException("Could not write " + file + ": " + e);
+		}
+
+		synchronized(this) {
+			writing = false;
+			finished = batchEnd;
+			if(error == null) {
+				succeeded = batchEnd;
+			}
+			else {
+				lastError = error;
+			}
+			notifyAll();
+		}
+		if(error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Write contents to the temporary file, sync it, and rename it over the
+	 * target
+	 */
+	private void writeNow(Contents contents) throws IOException {
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			OutputStream out = new BufferedOutputStream(fileOut);
+			contents.writeTo(out);
+			out.flush();
+			//Make sure that the data is on the storage device before it replaces the old file
+			fileOut.getFD().sync();
+		}
+		catch (IOException e) {
+			fileOut.close();
+			tempFile.delete();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			fileOut.close();
+			tempFile.delete();
+			throw e;
+		}
+		fileOut.close();
+
+		if(!tempFile.renameTo(file)) {
+			//Some file systems do not replace an existing file when renaming.
+			//Android and other POSIX systems do, so this non-atomic fallback is rarely used.
+			file.delete();
+			if(!tempFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tempFile + " to " + file);
+			}
+		}
+	}
+}
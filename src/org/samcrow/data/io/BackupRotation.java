@@ -0,0 +1,418 @@
+package org.samcrow.data.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Keeps compressed copies of past versions of a file, such as colonies.json.
+ * <p>
+ * Each backup holds the contents of the file compressed with deflate at
+ * {@link Deflater#BEST_SPEED}, which uses little processor time and still
+ * makes JSON text several times smaller. Backups are numbered in the order
+ * that they were made. The number and the SHA-1 hash of the contents are part
+ * of the name of each backup file, for example
+ * colonies.json.12.3f786850e387550fdab836ed7e6dc881de23001b.z, so no separate
+ * index is needed.
+ * </p>
+ * <p>
+ * A {@link Digester} chooses what part of the contents is hashed. By default,
+ * every byte is. A file that has parts that change with every write, such as
+ * a time stamp, should have a digester that leaves them out.
+ * If the file has the same hash as the newest backup, no backup is made.
+ * When the total size of the backups is more than a limit, the oldest backups
+ * are deleted. The newest backup is always kept.
+ * </p>
+ * <p>
+ * {@link #backupLater()} makes a backup on a low-priority background thread,
+ * so that it does not delay the thread that wrote the file. Requests made
+ * while a backup is waiting to start are combined into one.
+ * </p>
+ * Any version can be read with {@link #open(Version)}, or written back with
+ * {@link #restore(Version, File)}. Restoring a file that an application has
+ * loaded does not change the colonies that it has in memory.
+ *
+ * @author Sam Crow
+ */
+public class BackupRotation {
+
+	/** The extension of backup files */
+	private static final String kExtension = ".z";
+
+	/** The size of the buffers used to copy data */
+	private static final int kBufferSize = 16 * 1024;
+
+	/** The file to back up */
+	private final File source;
+
+	/** The directory that holds the backups */
+	private final File dir;
+
+	/** The maximum total size, in bytes, of the backup files */
+	private final long maxTotalBytes;
+
+	/** Chooses the contents that are hashed */
+	private final Digester digester;
+
+	/** The beginning of the name of each backup file */
+	private final String prefix;
+
+	/** The backups, oldest first, or null if the directory has not been read yet */
+	private List<Version> versions;
+
+	/** True if a backup has been requested and has not started yet */
+	private final AtomicBoolean backupPending = new AtomicBoolean();
+
+	/** Runs backups requested by {@link #backupLater()} */
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "Backup writer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	/**
+	 * Constructor
+	 * @param source The file to back up
+	 * @param dir The directory that holds the backups. It is created if it does not exist.
+	 * @param maxTotalBytes The maximum total size, in bytes, of the backup files
+	 */
+	public BackupRotation(File source, File dir, long maxTotalBytes) {
+		this(source, dir, maxTotalBytes, kAllBytes);
+	}
+
+	/**
+	 * Constructor
+	 * @param source The file to back up
+	 * @param dir The directory that holds the backups. It is created if it does not exist.
+	 * @param maxTotalBytes The maximum total size, in bytes, of the backup files
+	 * @param digester Chooses the contents that are hashed to tell if the file has changed
+	 */
+	public BackupRotation(File source, File dir, long maxTotalBytes, Digester digester) {
+		this.source = source;
+		this.dir = dir;
+		this.maxTotalBytes = maxTotalBytes;
+		this.digester = digester;
+		this.prefix = source.getName() + ".";
+	}
+
+	/**
+	 * Request a backup of the file on a background thread. This returns immediately.
+	 */
+	public void backupLater() {
+		if(!backupPending.compareAndSet(false, true)) {
+			//Already waiting. That backup will read the latest contents.
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				backupPending.set(false);
+				try {
+					backup();
+				} catch (IOException e) {
+					System.err.println("Could not back up " + source);
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Back up the file now, if its contents are different from the newest backup
+	 * @return The new backup, or null if the file does not exist or has the
+	 * same contents as the newest backup
+	 * @throws IOException if the file could not be read or the backup could not be written
+	 */
+	public synchronized Version backup() throws IOException {
+		List<Version> current = getVersionList();
+
+		final FileInputStream in;
+		try {
+			in = new FileInputStream(source);
+		} catch (IOException e) {
+			//Nothing to back up
+			return null;
+		}
+		try {
+			//The file is read twice through the same stream, so that if it is replaced
+			//in the meantime, the hash and the backup both have the old contents
+			String hash = hash(in);
+			if(!current.isEmpty() && current.get(current.size() - 1).hash.equals(hash)) {
+				return null;
+			}
+			in.getChannel().position(0);
+
+			int number = current.isEmpty() ? 1 : current.get(current.size() - 1).number + 1;
+			File backupFile = new File(dir, prefix + number + "." + hash + kExtension);
+			dir.mkdirs();
+			new AtomicFile(backupFile).write(new AtomicFile.Contents() {
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+					try {
+						DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, kBufferSize);
+						copy(in, deflated, new byte[kBufferSize]);
+						deflated.finish();
+						deflated.flush();
+					}
+					finally {
+						deflater.end();
+					}
+				}
+			});
+
+			Version version = new Version(number, hash, backupFile);
+			current.add(version);
+			prune(current);
+			return version;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return The backups, oldest first
+	 */
+	public synchronized List<Version> getVersions() {
+		return new ArrayList<Version>(getVersionList());
+	}
+
+	/**
+	 * Open a backup for reading
+	 * @param version The backup
+	 * @return A stream of the original, uncompressed contents. The caller must close it.
+	 * @throws IOException if the backup could not be opened
+	 */
+	public InputStream open(Version version) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(version.file), kBufferSize);
+		final Inflater inflater = new Inflater();
+		return new InflaterInputStream(in, inflater, kBufferSize) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}
+				finally {
+					//Not done by the stream when it is given an inflater
+					inflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Replace a file with the contents of a backup. The file is replaced atomically.
+	 * @param version The backup
+	 * @param target The file to replace, usually the file that was backed up
+	 * @throws IOException if the backup could not be read or the file could not be written.
+	 * The file is not changed.
+	 */
+	public void restore(final Version version, File target) throws IOException {
+		AtomicFile.forFile(target).write(new AtomicFile.Contents() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				InputStream in = open(version);
+				try {
+					copy(in, out, new byte[kBufferSize]);
+				}
+				finally {
+					in.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Delete the oldest backups until the total size is within the limit,
+	 * keeping at least the newest
+	 */
+	private void prune(List<Version> current) {
+		long total = 0;
+		for(Version version : current) {
+			total += version.size;
+		}
+		while(total > maxTotalBytes && current.size() > 1) {
+			Version oldest = current.remove(0);
+			total -= oldest.size;
+			if(!oldest.file.delete()) {
+				System.err.println("Could not delete old backup " + oldest.file);
+			}
+		}
+	}
+
+	/**
+	 * Get the list of backups, reading the directory the first time
+	 */
+	private List<Version> getVersionList() {
+		if(versions == null) {
+			versions = new ArrayList<Version>();
+			File[] files = dir.listFiles();
+			if(files != null) {
+				for(File file : files) {
+					Version version = parseName(file);
+					if(version != null) {
+						versions.add(version);
+					}
+				}
+			}
+			Collections.sort(versions, new Comparator<Version>() {
+				@Override
+				public int compare(Version a, Version b) {
+					return a.number < b.number ? -1 : (a.number == b.number ? 0 : 1);
+				}
+			});
+		}
+		return versions;
+	}
+
+	/**
+	 * Get the backup that a file holds from its name
+	 * @return The backup, or null if the file is not a backup of this file
+	 */
+	private Version parseName(File file) {
+		String name = file.getName();
+		if(!name.startsWith(prefix) || !name.endsWith(kExtension)) {
+			return null;
+		}
+		String middle = name.substring(prefix.length(), name.length() - kExtension.length());
+		int dot = middle.indexOf('.');
+		if(dot <= 0) {
+			return null;
+		}
+		try {
+			return new Version(Integer.parseInt(middle.substring(0, dot)), middle.substring(dot + 1), file);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read a stream and calculate the SHA-1 hash of the contents that the
+	 * digester chooses
+	 * @return The hash, in lowercase hexadecimal
+	 */
+	private String hash(InputStream in) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform provides SHA-1
+			throw new IllegalStateException(e);
+		}
+		digester.update(in, digest);
+		StringBuilder hex = new StringBuilder(40);
+		for(byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+		int count;
+		while((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+	}
+
+	/**
+	 * An interface for a class that chooses the contents of a file that are
+	 * hashed to tell if it has changed since the newest backup
+	 */
+	public static interface Digester {
+		/**
+		 * Read the contents of a file and add the ones that matter to a digest
+		 * @param in The contents of the file. This must not close it.
+		 * @param digest The digest to update
+		 * @throws IOException if the contents could not be read
+		 */
+		public void update(InputStream in, MessageDigest digest) throws IOException;
+	}
+
+	/** Hashes every byte of a file */
+	public static final Digester kAllBytes = new Digester() {
+		@Override
+		public void update(InputStream in, MessageDigest digest) throws IOException {
+			byte[] buffer = new byte[kBufferSize];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		}
+	};
+
+	/**
+	 * One backup
+	 */
+	public static class Version {
+		private final int number;
+		private final String hash;
+		private final File file;
+		private final long size;
+
+		Version(int number, String hash, File file) {
+			this.number = number;
+			this.hash = hash;
+			this.file = file;
+			this.size = file.length();
+		}
+
+		/**
+		 * @return The number of this backup. Later backups have higher numbers.
+		 */
+		public int getNumber() {
+			return number;
+		}
+
+		/**
+		 * @return The SHA-1 hash of the contents chosen by the {@link Digester}, in lowercase hexadecimal
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * @return The compressed size of this backup, in bytes
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return The time when this backup was made, in milliseconds since the epoch
+		 */
+		public long getTime() {
+			return file.lastModified();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Backup " + number + ", " + size + " bytes, SHA-1 " + hash;
+		}
+	}
+}
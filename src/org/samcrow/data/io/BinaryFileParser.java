@@ -0,0 +1,314 @@
+package org.samcrow.data.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.samcrow.data.Colony;
+
+/**
+ * Reads/writes colonies to/from files in a compact binary format, which
+ * loads much faster than JSON.
+ * <p>
+ * The file has a header, one fixed-width record for each colony, and a
+ * checksum. All numbers are big-endian.
+ * </p>
+ * <pre>
+ * Header (41 bytes):
+ *   int   magic number, {@link #kMagic}
+ *   int   format version, {@link #kVersion}
+ *   int   record size in bytes, {@link #kRecordSize}
+ *   int   number of records
+ *   fingerprint of the source file, in the format of {@link SourceFingerprint} (25 bytes)
+ * Record (32 bytes):
+ *   int    ID
+ *   int    status flags ({@link Colony#ACTIVE}, {@link Colony#VISITED})
+ *   double X-coordinate
+ *   double Y-coordinate
+ *   long   modified time in milliseconds, or {@link Colony#NOT_MODIFIED}
+ * Trailer (4 bytes):
+ *   int   CRC-32 of the header and all the records
+ * </pre>
+ * <p>
+ * Focus status is not stored, because it comes from the focus colonies file
+ * each time the colonies are loaded, as with JSON files.
+ * </p>
+ * <p>
+ * A binary file is a copy of another file, such as a JSON file. When it is
+ * written, the length and modification time of that source file are stored in
+ * the header. When it is read, the source file must still have that length and
+ * modification time, or the binary file is out of date and is not used.
+ * </p>
+ * <p>
+ * Reading maps the file into memory and decodes it in one pass, checking the
+ * checksum along the way. A file that is damaged, truncated or of a different
+ * version produces an empty set.
+ * </p>
+ * @author Sam Crow
+ */
+public class BinaryFileParser implements FileParser<Colony> {
+
+	/** The magic number at the start of every file: "CNCB" */
+	private static final int kMagic = 0x434E4342;
+
+	/** The version of the format */
+	private static final int kVersion = 2;
+
+	/** The size of the header in bytes */
+	private static final int kHeaderSize = 41;
+
+	/** The position of the source fingerprint in the header */
+	private static final int kFingerprintOffset = 16;
+
+	/** The size of each record in bytes */
+	private static final int kRecordSize = 32;
+
+	/** The size of the trailer in bytes */
+	private static final int kTrailerSize = 4;
+
+	/** The flags that are stored */
+	private static final int kStoredFlags = Colony.ACTIVE | Colony.VISITED;
+
+	/** The number of records decoded from each block copied out of the mapped file */
+	private static final int kRecordsPerBlock = 256;
+
+	protected File file;
+
+	/** The file that the binary file is a copy of, or null */
+	protected File source;
+
+	/**
+	 * Constructor
+	 * @param file The file to read from and write to
+	 */
+	public BinaryFileParser(File file) {
+		this(file, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param file The file to read from and write to
+	 * @param source The file that the binary file is a copy of. The binary file is
+	 * read only if this file has not changed since the binary file was written.
+	 */
+	public BinaryFileParser(File file, File source) {
+		this.file = file;
+		this.source = source;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.samcrow.data.io.FileParser#parse()
+	 */
+	@Override
+	public Set<Colony> parse() {
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				long length = channel.size();
+				if(length < kHeaderSize + kTrailerSize || length > Integer.MAX_VALUE) {
+					System.err.println(file + " is not a colony file");
+					return new LinkedHashSet<Colony>();
+				}
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				return decode(mapped);
+			}
+			finally {
+				//The mapping stays valid after the channel is closed
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return new LinkedHashSet<Colony>();
+	}
+
+	/**
+	 * Decode a whole file
+	 * @param buffer The contents of the file
+	 * @return The colonies, or an empty set if the contents are not valid
+	 */
+	private Set<Colony> decode(ByteBuffer buffer) {
+		int length = buffer.remaining();
+		byte[] block = new byte[kRecordSize * kRecordsPerBlock];
+		ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+		CRC32 crc = new CRC32();
+
+		buffer.get(block, 0, kHeaderSize);
+		crc.update(block, 0, kHeaderSize);
+		int magic = blockBuffer.getInt(0);
+		int version = blockBuffer.getInt(4);
+		int recordSize = blockBuffer.getInt(8);
+		int count = blockBuffer.getInt(12);
+		if(magic != kMagic || version != kVersion || recordSize != kRecordSize) {
+			System.err.println(file + " is not a colony file of version " + kVersion);
+			return new LinkedHashSet<Colony>();
+		}
+		if(count < 0 || (long) kHeaderSize + (long) count * kRecordSize + kTrailerSize != length) {
+			System.err.println(file + " is truncated or damaged");
+			return new LinkedHashSet<Colony>();
+		}
+		if(source != null) {
+			try {
+				SourceFingerprint fingerprint = SourceFingerprint.readFrom(new DataInputStream(
+						new ByteArrayInputStream(block, kFingerprintOffset, kHeaderSize - kFingerprintOffset)));
+				if(!fingerprint.matches(source)) {
+					System.err.println(file + " is out of date: " + source + " has changed");
+					return new LinkedHashSet<Colony>();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return new LinkedHashSet<Colony>();
+			}
+		}
+
+		List<Colony> colonies = new ArrayList<Colony>(count);
+		int remaining = count;
+		while(remaining > 0) {
+			int records = Math.min(remaining, kRecordsPerBlock);
+			int bytes = records * kRecordSize;
+			buffer.get(block, 0, bytes);
+			crc.update(block, 0, bytes);
+			for(int offset = 0; offset < bytes; offset += kRecordSize) {
+				colonies.add(decodeRecord(blockBuffer, offset));
+			}
+			remaining -= records;
+		}
+
+		int checksum = buffer.getInt();
+		if(checksum != (int) crc.getValue()) {
+			System.err.println(file + " is damaged: checksum does not match");
+			return new LinkedHashSet<Colony>();
+		}
+
+		Set<Colony> result = new LinkedHashSet<Colony>(count * 4 / 3 + 1);
+		result.addAll(colonies);
+		return result;
+	}
+
+	/**
+	 * Decode one record
+	 * @param buffer The buffer that contains the record
+	 * @param offset The position of the record in the buffer
+	 * @return The colony
+	 */
+	private static Colony decodeRecord(ByteBuffer buffer, int offset) {
+		int id = buffer.getInt(offset);
+		int flags = buffer.getInt(offset + 4) & kStoredFlags;
+		double x = buffer.getDouble(offset + 8);
+		double y = buffer.getDouble(offset + 16);
+		long modified = buffer.getLong(offset + 24);
+		return new Colony(id, x, y, flags, modified);
+	}
+
+	/**
+	 * Encode one record
+	 * @param out The stream to write to
+	 * @param colony The colony
+	 */
+	private static void encodeRecord(DataOutputStream out, Colony colony) throws IOException {
+		Colony.Snapshot state = colony.snapshot();
+		out.writeInt(state.getId());
+		out.writeInt(state.getFlags() & kStoredFlags);
+		out.writeDouble(state.getX());
+		out.writeDouble(state.getY());
+		out.writeLong(state.getModifiedTime());
+	}
+
+	/**
+	 * Write the colonies to the file. The file is replaced atomically, so if writing
+	 * is interrupted the file keeps its previous contents.
+	 */
+	@Override
+	public boolean write(final Set<Colony> values) {
+		try {
+			AtomicFile.forFile(file).write(new AtomicFile.Contents() {
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					CRC32 crc = new CRC32();
+					DataOutputStream data = new DataOutputStream(new CheckedOutputStream(out, crc));
+
+					//Copy the colonies first, so that the count matches the records even if the set changes
+					Colony[] colonies = values.toArray(new Colony[values.size()]);
+					SourceFingerprint fingerprint = source != null ? SourceFingerprint.of(source, false) : SourceFingerprint.none();
+
+					data.writeInt(kMagic);
+					data.writeInt(kVersion);
+					data.writeInt(kRecordSize);
+					data.writeInt(colonies.length);
+					fingerprint.writeTo(data);
+					for(Colony colony : colonies) {
+						encodeRecord(data, colony);
+					}
+					data.flush();
+
+					//The checksum itself is not checksummed
+					new DataOutputStream(out).writeInt((int) crc.getValue());
+				}
+			});
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Decode a colony from the hexadecimal text produced by {@link #encodeOne(Colony)}
+	 */
+	@Override
+	public Colony parseOne(String oneString) {
+		if(oneString == null || oneString.length() != kRecordSize * 2) {
+			return null;
+		}
+		byte[] record = new byte[kRecordSize];
+		for(int i = 0; i < kRecordSize; i++) {
+			int high = Character.digit(oneString.charAt(i * 2), 16);
+			int low = Character.digit(oneString.charAt(i * 2 + 1), 16);
+			if(high < 0 || low < 0) {
+				return null;
+			}
+			record[i] = (byte) ((high << 4) | low);
+		}
+		return decodeRecord(ByteBuffer.wrap(record), 0);
+	}
+
+	/**
+	 * Encode a colony as the hexadecimal text of its binary record
+	 */
+	@Override
+	public String encodeOne(Colony value) {
+		Colony.Snapshot state = value.snapshot();
+		ByteBuffer record = ByteBuffer.allocate(kRecordSize);
+		record.putInt(state.getId());
+		record.putInt(state.getFlags() & kStoredFlags);
+		record.putDouble(state.getX());
+		record.putDouble(state.getY());
+		record.putLong(state.getModifiedTime());
+
+		StringBuilder text = new StringBuilder(kRecordSize * 2);
+		for(byte b : record.array()) {
+			text.append(Character.forDigit((b >> 4) & 0xF, 16));
+			text.append(Character.forDigit(b & 0xF, 16));
+		}
+		return text.toString();
+	}
+
+}
@@ -1,12 +1,13 @@
 package org.samcrow.data.io;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.Reader;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
@@ -28,27 +29,35 @@ public class CSVFileParser extends CSVParser implements FileParser<Colony> {
 		this.file = file;
 	}
 
+	/**
+	 * Read the colonies from the file. Lines that are not valid, such as
+	 * headings, are skipped and reported with their line and column numbers.
+	 */
 	@Override
 	public Set<Colony> parse() {
 
 		Set<Colony> colonies = new LinkedHashSet<Colony>();
 
 		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+			//The tokenizer has its own buffer
+			Reader reader = new InputStreamReader(new FileInputStream(file));
+			CSVTokenizer tokenizer = new CSVTokenizer(reader);
 
 			//Parse each line
-			while(true) {
-				String line = reader.readLine();
-				if(line == null) {
-					break;
+			while(tokenizer.nextLine()) {
+				if(tokenizer.isBlank()) {
+					continue;
 				}
 
-				Colony colony = parseOne(line);
+				Colony colony = parseColony(tokenizer);
 				//colony might be null if the line couldn't be parsed.
 				//Add it only if it was parsed successfully.
 				if(colony != null) {
 					colonies.add(colony);
 				}
+				else {
+					System.err.println(file.getName()+": "+tokenizer.getErrorMessage());
+				}
 
 			}
 
@@ -62,27 +71,33 @@ public class CSVFileParser extends CSVParser implements FileParser<Colony> {
 		return colonies;
 	}
 
+	/**
+	 * Write the colonies to the file. The file is replaced atomically, so if writing
+	 * is interrupted the file keeps its previous contents.
+	 */
 	@Override
-	public void write(Set<Colony> values) {
-		//Delete the file, if it exists, so that it can be rewritten from the beginning
-		file.delete();
-		try {
-			file.createNewFile();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-
+	public boolean write(final Set<Colony> values) {
 		try {
-			PrintStream stream = new PrintStream(file);
-
-			for(Colony colony : values) {
-				stream.println(encodeOne(colony));
-			}
-
-			stream.close();
-
-		} catch (FileNotFoundException e) {
+			AtomicFile.forFile(file).write(new AtomicFile.Contents() {
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					PrintStream stream = new PrintStream(out);
+
+					for(Colony colony : values) {
+						stream.println(encodeOne(colony));
+					}
+
+					stream.flush();
+					if(stream.checkError()) {
+						//PrintStream hides exceptions, so make sure that a failed write is not committed
+						throw new IOException("Could not write "+file);
+					}
+				}
+			});
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
 
 	}
@@ -19,25 +19,39 @@ public class CSVParser implements Parser<Colony> {
 	 */
 	@Override
 	public Colony parseOne(String line) {
+		CSVTokenizer tokenizer = new CSVTokenizer();
+		tokenizer.setLine(line);
+		return parseColony(tokenizer);
+	}
 
-		//Split the line into parts separated by commas
-		String[] parts = line.split("\\s*,\\s*");
-		try {
-			assert parts.length >= 3;//Require 3 parts: number, X, Y
-
-			int colonyNumber = Integer.valueOf(parts[0]);
-			int x = Integer.valueOf(parts[1]);
-			int y = Integer.valueOf(parts[2]);
-
-			//Ignore active, assume each colony is inactive for the census
-			//			//Active if part 3 is A (case insensitive), otherwise false
-			//			boolean active = parts[3].compareToIgnoreCase("A") == 0;
-
-			return new Colony(colonyNumber, x, y, false);
-		} catch(Throwable e) {
-			//If anything went wrong, return null
+	/**
+	 * Parse the current line of a tokenizer into a colony object.
+	 * The line must contain the fields id, x, y. This does not create any
+	 * objects other than the colony.
+	 * @param tokenizer The tokenizer
+	 * @return The colony, or null if the line is not valid. The tokenizer
+	 * then describes the problem.
+	 */
+	protected Colony parseColony(CSVTokenizer tokenizer) {
+		//Require 3 parts: number, X, Y
+		if(!tokenizer.parseInt(0)) {
 			return null;
 		}
+		int colonyNumber = tokenizer.getInt();
+		if(!tokenizer.parseDouble(1)) {
+			return null;
+		}
+		double x = tokenizer.getDouble();
+		if(!tokenizer.parseDouble(2)) {
+			return null;
+		}
+		double y = tokenizer.getDouble();
+
+		//Ignore active, assume each colony is inactive for the census
+		//			//Active if part 3 is A (case insensitive), otherwise false
+		//			boolean active = parts[3].compareToIgnoreCase("A") == 0;
+
+		return new Colony(colonyNumber, x, y, false);
 	}
 
 	/* (non-Javadoc)
@@ -45,14 +59,13 @@ public class CSVParser implements Parser<Colony> {
 	 */
 	@Override
 	public String encodeOne(Colony colony) {
+		Colony.Snapshot state = colony.snapshot();
 
-		int xInt = (int) Math.round(colony.getX());
-		int yInt = (int) Math.round(colony.getY());
-
-		char activeChar = colony.isActive() ? 'A' : ' ';
+		char activeChar = (state.getFlags() & Colony.ACTIVE) != 0 ? 'A' : ' ';
 
 		//Format: id,x,y,active,,
-		return String.valueOf(colony.getId()) + separator + xInt + separator + yInt + separator + activeChar + separator + separator;
+		//The coordinates are written in full, so that parseOne reads back the same values
+		return String.valueOf(state.getId()) + separator + state.getX() + separator + state.getY() + separator + activeChar + separator + separator;
 	}
 
 }
@@ -0,0 +1,470 @@
+package org.samcrow.data.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits comma-separated text into lines and fields, and parses numbers from
+ * the fields, without creating objects for each line or field.
+ * <p>
+ * Text is read from a {@link Reader} into a reusable buffer. Each call to
+ * {@link #nextLine()} finds the fields of the next line, with spaces and
+ * tabs around each field trimmed. {@link #parseInt(int)} and
+ * {@link #parseDouble(int)} parse a field directly from the buffer. They do
+ * not throw exceptions: if a field is not a valid number, they return false
+ * and record the line and column of the problem, which
+ * {@link #getErrorMessage()} describes.
+ * </p>
+ * Fields are not quoted, so a field cannot contain a comma.
+ * This class is not thread-safe.
+ *
+ * @author Sam Crow
+ */
+public class CSVTokenizer {
+
+	/** The character that separates fields */
+	private static final char kSeparator = ',';
+
+	/** Powers of ten that can be represented exactly as doubles */
+	private static final double[] kPowersOfTen = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+	};
+
+	/** The largest integer that a double represents exactly */
+	private static final long kMaxExactMantissa = 1L << 53;
+
+	/** The source of text, or null if the text was set with {@link #setLine(CharSequence)} */
+	private final Reader reader;
+
+	/** Text read from the reader and not yet split into lines */
+	private final char[] readBuffer = new char[8192];
+	private int readPosition = 0;
+	private int readLimit = 0;
+	/** True if the reader has no more text */
+	private boolean endOfInput = false;
+	/** True if the last line ended with a carriage return, so a following line feed is part of the same line ending */
+	private boolean afterCarriageReturn = false;
+
+	/** The characters of the current line */
+	private char[] line = new char[128];
+	/** The number of characters in the current line */
+	private int lineLength = 0;
+	/** The number of the current line, starting at 1 */
+	private int lineNumber = 0;
+
+	/** The start of each field in {@link #line}, after trimming */
+	private int[] fieldStarts = new int[8];
+	/** The end of each field in {@link #line}, after trimming */
+	private int[] fieldEnds = new int[8];
+	/** The number of fields in the current line */
+	private int fieldCount = 0;
+
+	/** The value parsed by the last successful call to {@link #parseInt(int)} */
+	private int intValue;
+	/** The value parsed by the last successful call to {@link #parseDouble(int)} */
+	private double doubleValue;
+
+	/** A description of the last error, or null if there has been no error on this line */
+	private String error;
+	/** The column, starting at 1, of the last error */
+	private int errorColumn;
+
+	/**
+	 * Constructor
+	 * @param reader The reader to read text from
+	 */
+	public CSVTokenizer(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Constructor for a tokenizer with no reader. Use
+	 * {@link #setLine(CharSequence)} to give it text.
+	 */
+	public CSVTokenizer() {
+		this.reader = null;
+	}
+
+	/**
+	 * Read the next line and split it into fields
+	 * @return True if a line was read, false if there are no more lines
+	 * @throws IOException if the reader could not be read
+	 */
+	public boolean nextLine() throws IOException {
+		if(reader == null) {
+			return false;
+		}
+		lineLength = 0;
+		boolean readAny = false;
+		while(true) {
+			if(readPosition == readLimit) {
+				if(endOfInput || !fill()) {
+					if(!readAny) {
+						return false;
+					}
+					break;
+				}
+			}
+			char c = readBuffer[readPosition++];
+			if(afterCarriageReturn) {
+				afterCarriageReturn = false;
+				if(c == '\n') {
+					continue;
+				}
+			}
+			readAny = true;
+			if(c == '\n') {
+				break;
+			}
+			if(c == '\r') {
+				afterCarriageReturn = true;
+				break;
+			}
+			if(lineLength == line.length) {
+				line = Arrays.copyOf(line, line.length * 2);
+			}
+			line[lineLength++] = c;
+		}
+		lineNumber++;
+		split();
+		return true;
+	}
+
+	/**
+	 * Use some text as the current line, and split it into fields
+	 * @param text The text. It should not contain line breaks.
+	 */
+	public void setLine(CharSequence text) {
+		int length = text.length();
+		if(line.length < length) {
+			line = new char[Math.max(length, line.length * 2)];
+		}
+		for(int i = 0; i < length; i++) {
+			line[i] = text.charAt(i);
+		}
+		lineLength = length;
+		lineNumber++;
+		split();
+	}
+
+	/**
+	 * @return The number of the current line, starting at 1
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return The number of fields in the current line. A blank line has one empty field.
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * @return True if the current line contains only whitespace
+	 */
+	public boolean isBlank() {
+		return fieldCount == 1 && fieldStarts[0] == fieldEnds[0];
+	}
+
+	/**
+	 * Determine if a field is empty
+	 * @param field The index of the field, starting at 0
+	 * @return True if the field is empty or the line does not have that many fields
+	 */
+	public boolean isEmpty(int field) {
+		return field >= fieldCount || fieldStarts[field] == fieldEnds[field];
+	}
+
+	/**
+	 * Get the first character of a field
+	 * @param field The index of the field, starting at 0
+	 * @return The first character, or 0 if the field is empty
+	 */
+	public char firstChar(int field) {
+		return isEmpty(field) ? 0 : line[fieldStarts[field]];
+	}
+
+	/**
+	 * Get the text of a field. This creates a string, so it is not suitable
+	 * for fields that are read from every line.
+	 * @param field The index of the field, starting at 0
+	 * @return The text, or an empty string if the line does not have that many fields
+	 */
+	public String getString(int field) {
+		if(field >= fieldCount) {
+			return "";
+		}
+		return new String(line, fieldStarts[field], fieldEnds[field] - fieldStarts[field]);
+	}
+
+	/**
+	 * Parse a field as a decimal integer. If this succeeds, the value is
+	 * available from {@link #getInt()}.
+	 * @param field The index of the field, starting at 0
+	 * @return True if the field is a valid integer, false otherwise
+	 */
+	public boolean parseInt(int field) {
+		if(!checkField(field)) {
+			return false;
+		}
+		int position = fieldStarts[field];
+		int end = fieldEnds[field];
+		boolean negative = false;
+		char first = line[position];
+		if(first == '-' || first == '+') {
+			negative = first == '-';
+			position++;
+		}
+		if(position == end) {
+			return fail(position, "expected digits");
+		}
+		long value = 0;
+		for(; position < end; position++) {
+			int digit = line[position] - '0';
+			if(digit < 0 || digit > 9) {
+				return fail(position, "expected a digit");
+			}
+			value = value * 10 + digit;
+			if(value > (long) Integer.MAX_VALUE + 1) {
+				return fail(fieldStarts[field], "integer is too large");
+			}
+		}
+		if(negative) {
+			value = -value;
+		}
+		if(value > Integer.MAX_VALUE) {
+			return fail(fieldStarts[field], "integer is too large");
+		}
+		intValue = (int) value;
+		return true;
+	}
+
+	/**
+	 * Parse a field as a decimal number, with an optional fraction and
+	 * exponent. If this succeeds, the value is available from
+	 * {@link #getDouble()}.
+	 * @param field The index of the field, starting at 0
+	 * @return True if the field is a valid number that fits in a double, false otherwise
+	 */
+	public boolean parseDouble(int field) {
+		if(!checkField(field)) {
+			return false;
+		}
+		int start = fieldStarts[field];
+		int end = fieldEnds[field];
+		int position = start;
+		boolean negative = false;
+		char first = line[position];
+		if(first == '-' || first == '+') {
+			negative = first == '-';
+			position++;
+		}
+
+		long mantissa = 0;
+		//The number of digits that did not fit in the mantissa
+		int droppedDigits = 0;
+		//The power of ten that the mantissa must be multiplied by
+		int exponent = 0;
+		int digits = 0;
+		boolean inFraction = false;
+		for(; position < end; position++) {
+			char c = line[position];
+			if(c >= '0' && c <= '9') {
+				digits++;
+				if(mantissa < (Long.MAX_VALUE - 9) / 10) {
+					mantissa = mantissa * 10 + (c - '0');
+					if(inFraction) {
+						exponent--;
+					}
+				}
+				else {
+					droppedDigits++;
+					if(!inFraction) {
+						exponent++;
+					}
+				}
+			}
+			else if(c == '.' && !inFraction) {
+				inFraction = true;
+			}
+			else {
+				break;
+			}
+		}
+		if(digits == 0) {
+			return fail(position, "expected a number");
+		}
+		if(position < end) {
+			char c = line[position];
+			if(c != 'e' && c != 'E') {
+				return fail(position, "expected a digit");
+			}
+			position++;
+			boolean negativeExponent = false;
+			if(position < end && (line[position] == '-' || line[position] == '+')) {
+				negativeExponent = line[position] == '-';
+				position++;
+			}
+			if(position == end) {
+				return fail(position, "expected an exponent");
+			}
+			int explicitExponent = 0;
+			for(; position < end; position++) {
+				int digit = line[position] - '0';
+				if(digit < 0 || digit > 9) {
+					return fail(position, "expected a digit");
+				}
+				if(explicitExponent < 10000) {
+					explicitExponent = explicitExponent * 10 + digit;
+				}
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+
+		double value;
+		if(droppedDigits == 0 && mantissa <= kMaxExactMantissa && Math.abs(exponent) < kPowersOfTen.length) {
+			//The mantissa and the power of ten are exact, so one operation gives a correctly rounded result
+			value = exponent >= 0 ? mantissa * kPowersOfTen[exponent] : mantissa / kPowersOfTen[-exponent];
+		}
+		else {
+			//Rare: too many digits or a large exponent
+			value = Double.parseDouble(new String(line, start, end - start));
+			negative = false;
+			if(Double.isInfinite(value)) {
+				return fail(start, "number is too large");
+			}
+		}
+		doubleValue = negative ? -value : value;
+		return true;
+	}
+
+	/**
+	 * @return The value parsed by the last successful call to {@link #parseInt(int)}
+	 */
+	public int getInt() {
+		return intValue;
+	}
+
+	/**
+	 * @return The value parsed by the last successful call to {@link #parseDouble(int)}
+	 */
+	public double getDouble() {
+		return doubleValue;
+	}
+
+	/**
+	 * @return True if parsing a field of the current line has failed
+	 */
+	public boolean hasError() {
+		return error != null;
+	}
+
+	/**
+	 * @return The column, starting at 1, of the last error on the current line
+	 */
+	public int getErrorColumn() {
+		return errorColumn;
+	}
+
+	/**
+	 * @return A description of the last error on the current line, without
+	 * its position, or null if there was no error
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return A description of the last error on the current line, including
+	 * its line and column, or null if there was no error
+	 */
+	public String getErrorMessage() {
+		if(error == null) {
+			return null;
+		}
+		return "Line " + lineNumber + ", column " + errorColumn + ": " + error;
+	}
+
+	/**
+	 * Find the fields in the current line
+	 */
+	private void split() {
+		error = null;
+		fieldCount = 0;
+		int fieldStart = 0;
+		for(int i = 0; i <= lineLength; i++) {
+			if(i == lineLength || line[i] == kSeparator) {
+				addField(fieldStart, i);
+				fieldStart = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Add a field, trimming whitespace from both ends
+	 */
+	private void addField(int start, int end) {
+		while(start < end && isWhitespace(line[start])) {
+			start++;
+		}
+		while(end > start && isWhitespace(line[end - 1])) {
+			end--;
+		}
+		if(fieldCount == fieldStarts.length) {
+			fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+			fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+		}
+		fieldStarts[fieldCount] = start;
+		fieldEnds[fieldCount] = end;
+		fieldCount++;
+	}
+
+	/**
+	 * Make sure that a field exists and is not empty, recording an error if it is not
+	 */
+	private boolean checkField(int field) {
+		if(field >= fieldCount) {
+			return fail(lineLength, "expected " + (field + 1) + " fields, found " + fieldCount);
+		}
+		if(fieldStarts[field] == fieldEnds[field]) {
+			return fail(fieldStarts[field], "field " + (field + 1) + " is empty");
+		}
+		return true;
+	}
+
+	/**
+	 * Record an error
+	 * @param position The position in the line of the error
+	 * @param message A description of the error
+	 * @return False
+	 */
+	private boolean fail(int position, String message) {
+		error = message;
+		errorColumn = position + 1;
+		return false;
+	}
+
+	/**
+	 * Read more text into the read buffer
+	 * @return True if any text was read
+	 */
+	private boolean fill() throws IOException {
+		int count = reader.read(readBuffer, 0, readBuffer.length);
+		if(count <= 0) {
+			endOfInput = true;
+			readPosition = readLimit = 0;
+			return false;
+		}
+		readPosition = 0;
+		readLimit = count;
+		return true;
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t';
+	}
+}
@@ -0,0 +1,275 @@
+package org.samcrow.data.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.samcrow.data.Colony;
+import org.samcrow.data.ColonySet;
+
+/**
+ * An append-only log of colony edits, kept next to a full snapshot of the
+ * colonies.
+ * <p>
+ * Each edit appends one line to the journal file, containing the JSON
+ * representation of the edited colony. This costs the same no matter how
+ * many colonies there are. When the colonies are loaded, the journal is
+ * replayed on top of the snapshot. Each record holds the complete state of
+ * a colony, so replaying a record more than once has no extra effect.
+ * </p>
+ * <p>
+ * Appended records are synced to the storage device before the append
+ * methods return. {@link #appendAll(Collection)} writes a batch of records
+ * with one sync, so that a burst of edits costs one sync instead of one per
+ * edit.
+ * </p>
+ * <p>
+ * {@link #compact(ColonySet, FileParser)} folds the journal into a new
+ * snapshot. It first moves the journal aside so that edits made during
+ * compaction go to a new, empty journal, then writes the snapshot, then
+ * deletes the old journal. If compaction is interrupted or the snapshot
+ * cannot be written, the moved journal is kept and is replayed before the
+ * current one at the next load, so no edit is lost.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+public class ColonyJournal {
+
+	/** The journal file */
+	private final File file;
+
+	/** The file that the journal is moved to during compaction */
+	private final File compactingFile;
+
+	/** The open journal file, or null if it is not open */
+	private FileOutputStream fileOut;
+	/** Writes to {@link #fileOut}, or null if it is not open */
+	private Writer out;
+
+	/** The number of records in the journal file */
+	private int records = 0;
+
+	/** Held for the whole of a compaction, so that only one runs at a time */
+	private final Object compactionLock = new Object();
+
+	/**
+	 * Constructor
+	 * @param file The journal file. It does not need to exist.
+	 */
+	public ColonyJournal(File file) {
+		this.file = file;
+		this.compactingFile = new File(file.getPath() + ".compacting");
+	}
+
+	/**
+	 * Apply the records in the journal to a set of colonies. Records for
+	 * colonies that are in the set update them; records for other colonies
+	 * add new colonies to the set. An incomplete last record, left by a
+	 * write that was interrupted, is ignored.
+	 * @param colonies The colonies to update
+	 * @return The number of records applied
+	 */
+	public synchronized int replay(ColonySet colonies) {
+		int applied = 0;
+		//Replay a journal left by an interrupted compaction first, because its edits are older
+		if(compactingFile.exists()) {
+			applied += replay(compactingFile, colonies);
+		}
+		if(file.exists()) {
+			records = replay(file, colonies);
+			applied += records;
+		}
+		return applied;
+	}
+
+	private static int replay(File journalFile, ColonySet colonies) {
+		int applied = 0;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+			try {
+				while(true) {
+					String line = reader.readLine();
+					if(line == null) {
+						break;
+					}
+					if(line.length() == 0) {
+						continue;
+					}
+					JSONObject record;
+					try {
+						record = new JSONObject(line);
+					}
+					catch (JSONException e) {
+						//Incomplete or damaged record. Skip it.
+						System.err.println("Skipping unreadable journal record in "+journalFile);
+						continue;
+					}
+					if(!record.has("id")) {
+						continue;
+					}
+					Colony colony = colonies.getById(record.optInt("id"));
+					if(colony != null) {
+						colony.fromJSON(record);
+					}
+					else {
+						colony = new Colony();
+						colony.fromJSON(record);
+						colonies.add(colony);
+					}
+					applied++;
+				}
+			}
+			finally {
+				reader.close();
+			}
+		} catch (FileNotFoundException e) {
+			//Nothing to replay
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return applied;
+	}
+
+	/**
+	 * Append a record of a colony's current state to the journal
+	 * @param colony The colony that was edited
+	 * @return The number of records in the journal, including this one
+	 * @throws IOException if the record could not be written
+	 */
+	public synchronized int append(Colony colony) throws IOException {
+		return appendAll(Collections.singleton(colony));
+	}
+
+	/**
+	 * Append records of several colonies' current states to the journal,
+	 * with one sync for all of them
+	 * @param colonies The colonies that were edited
+	 * @return The number of records in the journal, including these
+	 * @throws IOException if the records could not be written
+	 */
+	public synchronized int appendAll(Collection<Colony> colonies) throws IOException {
+		if(out == null) {
+			fileOut = new FileOutputStream(file, true);
+			out = new BufferedWriter(new OutputStreamWriter(fileOut, "UTF-8"));
+		}
+		for(Colony colony : colonies) {
+			out.write(colony.toJSON().toString());
+			out.write('\n');
+		}
+		out.flush();
+		//Make sure that the records are on the storage device
+		fileOut.getFD().sync();
+		records += colonies.size();
+		return records;
+	}
+
+	/**
+	 * @return The number of records in the journal
+	 */
+	public synchronized int size() {
+		return records;
+	}
+
+	/**
+	 * Write a new snapshot of the colonies and empty the journal.
+	 * This does the file writing without holding the lock used by
+	 * {@link #append(Colony)}, so it can run on a background thread while
+	 * edits continue.
+	 * @param colonies The colonies to write
+	 * @param snapshotParser The parser that writes the snapshot file
+	 * @return True if the snapshot was written
+	 */
+	public boolean compact(ColonySet colonies, FileParser<Colony> snapshotParser) {
+		synchronized(compactionLock) {
+			synchronized(this) {
+				closeQuietly();
+				if(compactingFile.exists()) {
+					//An earlier compaction did not finish. Keep its journal until
+					//this snapshot is written, followed by the current journal.
+					try {
+						appendFile(file, compactingFile);
+					} catch (IOException e) {
+						e.printStackTrace();
+						return false;
+					}
+					file.delete();
+				}
+				//Move the journal aside
+				else if(file.exists() && !file.renameTo(compactingFile)) {
+					System.err.println("Could not move journal "+file+" aside for compaction");
+					return false;
+				}
+				records = 0;
+			}
+			//Every edit in the moved journal has already been applied to the
+			//colonies, so this snapshot includes all of them
+			Set<Colony> snapshot = colonies.snapshot().asColonies();
+			if(snapshotParser.write(snapshot)) {
+				compactingFile.delete();
+				return true;
+			}
+			//Otherwise keep the moved journal, so that its edits are replayed at the next load
+			return false;
+		}
+	}
+
+	/**
+	 * Append the contents of one file, if it exists, to another, and sync the
+	 * second file
+	 */
+	private static void appendFile(File source, File destination) throws IOException {
+		if(!source.exists()) {
+			return;
+		}
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream destinationOut = new FileOutputStream(destination, true);
+			try {
+				byte[] buffer = new byte[8192];
+				int length;
+				while((length = in.read(buffer)) != -1) {
+					destinationOut.write(buffer, 0, length);
+				}
+				destinationOut.getFD().sync();
+			}
+			finally {
+				destinationOut.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Close the journal file. It will be reopened by the next append.
+	 */
+	public synchronized void close() {
+		closeQuietly();
+	}
+
+	private void closeQuietly() {
+		if(out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			out = null;
+			fileOut = null;
+		}
+	}
+}
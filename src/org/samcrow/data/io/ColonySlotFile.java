@@ -0,0 +1,400 @@
+package org.samcrow.data.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.samcrow.data.Colony;
+import org.samcrow.data.ColonySet;
+import org.samcrow.util.IntIntHashMap;
+
+/**
+ * A memory-mapped file of fixed-size slots holding the states of colonies,
+ * that is updated in place.
+ * <p>
+ * Each colony that is written gets a pair of slots the first time. Writes
+ * alternate between the two slots of the pair, and each write is numbered
+ * with a sequence number that increases with every write to the file. A table
+ * from colony IDs to the slot with the latest write is kept in memory.
+ * Writing a colony therefore changes only 40 bytes of the file, no matter
+ * how many colonies there are, and the file never grows larger than two slots
+ * for each colony.
+ * </p>
+ * <pre>
+ * Header (20 bytes):
+ *   int   magic number, {@link #kMagic}
+ *   int   format version, {@link #kVersion}
+ *   int   slot size in bytes, {@link #kSlotSize}
+ *   int   number of slot pairs in use
+ *   int   sequence number of the last write before the file was last cleared
+ * Slot (40 bytes):
+ *   int    ID
+ *   int    status flags ({@link Colony#ACTIVE}, {@link Colony#VISITED})
+ *   double X-coordinate
+ *   double Y-coordinate
+ *   long   modified time in milliseconds, or {@link Colony#NOT_MODIFIED}
+ *   int    sequence number
+ *   int    CRC-32 of the preceding 36 bytes of the slot
+ * </pre>
+ * <p>
+ * A slot that was being written when the application or device stopped
+ * fails its checksum. {@link #load(ColonySet)} then uses the other slot of
+ * the pair, which still holds the colony's previous write, so a torn write
+ * loses only the edit that was being written. Slots with sequence numbers
+ * from before the file was last cleared are ignored.
+ * </p>
+ * All methods are synchronized.
+ *
+ * @author Sam Crow
+ */
+public class ColonySlotFile {
+
+	/** The magic number at the start of the file: "CNCS" */
+	private static final int kMagic = 0x434E4353;
+
+	/** The version of the format */
+	private static final int kVersion = 2;
+
+	/** The version of the format with one slot for each colony, which is converted when opened */
+	private static final int kSingleSlotVersion = 1;
+
+	/** The size of the header in bytes in the format with one slot for each colony */
+	private static final int kSingleSlotHeaderSize = 16;
+
+	/** The size of the header in bytes */
+	private static final int kHeaderSize = 20;
+
+	/** The size of each slot in bytes */
+	private static final int kSlotSize = 40;
+
+	/** The number of bytes in each slot covered by its checksum */
+	private static final int kCheckedSize = kSlotSize - 4;
+
+	/** The position of the sequence number in each slot */
+	private static final int kSequenceOffset = 32;
+
+	/** The position of the number of slot pairs in use in the header */
+	private static final int kCountOffset = 12;
+
+	/** The position of the sequence number of the last clear in the header */
+	private static final int kClearedOffset = 16;
+
+	/** The number of slot pairs that the file has room for when it is created */
+	private static final int kInitialCapacity = 128;
+
+	/** The flags that are stored */
+	private static final int kStoredFlags = Colony.ACTIVE | Colony.VISITED;
+
+	/** The slot file */
+	private final File file;
+
+	/** The open file, or null if it is not open */
+	private RandomAccessFile randomAccess;
+	/** The whole file, mapped into memory, or null if it is not open */
+	private MappedByteBuffer mapped;
+
+	/** The number of slot pairs that the mapped region has room for */
+	private int capacity = 0;
+	/** The number of slot pairs in use */
+	private int count = 0;
+
+	/** The sequence number of the last write */
+	private int sequence = 0;
+	/** The sequence number of the last write before the file was last cleared */
+	private int cleared = 0;
+
+	/** Maps colony IDs to the slot numbers of their latest writes */
+	private final IntIntHashMap slots = new IntIntHashMap();
+
+	/** Holds one slot while it is encoded or checked */
+	private final byte[] slotBytes = new byte[kSlotSize];
+	private final ByteBuffer slotBuffer = ByteBuffer.wrap(slotBytes);
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Constructor
+	 * @param file The slot file. It does not need to exist.
+	 */
+	public ColonySlotFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Apply the colonies stored in the file to a set of colonies. Stored
+	 * colonies that are in the set update them; others are added to the set.
+	 * For each colony, the valid slot with the latest write is used.
+	 * @param colonies The colonies to update
+	 * @return The number of colonies applied
+	 * @throws IOException if the file could not be opened
+	 */
+	public synchronized int load(ColonySet colonies) throws IOException {
+		open();
+		int applied = 0;
+		int damaged = 0;
+		for(int pair = 0; pair < count; pair++) {
+			int first = pair * 2;
+			boolean firstValid = readCurrentSlot(first);
+			int firstSequence = slotBuffer.getInt(kSequenceOffset);
+			boolean secondValid = readCurrentSlot(first + 1);
+			int secondSequence = slotBuffer.getInt(kSequenceOffset);
+			//If one slot was never written, or its write was torn, the other is used
+			int slot;
+			if(firstValid && (!secondValid || firstSequence > secondSequence)) {
+				slot = first;
+				readSlot(slot);
+			}
+			else if(secondValid) {
+				//Already in slotBuffer
+				slot = first + 1;
+			}
+			else {
+				damaged++;
+				continue;
+			}
+			int id = slotBuffer.getInt(0);
+			int flags = slotBuffer.getInt(4) & kStoredFlags;
+			double x = slotBuffer.getDouble(8);
+			double y = slotBuffer.getDouble(16);
+			long modified = slotBuffer.getLong(24);
+
+			slots.put(id, slot);
+			Colony colony = colonies.getById(id);
+			if(colony != null) {
+				colony.restore(x, y, flags, modified);
+			}
+			else {
+				colonies.add(new Colony(id, x, y, flags, modified));
+			}
+			applied++;
+		}
+		if(damaged != 0) {
+			System.err.println("Skipped "+damaged+" colonies with no valid slot in "+file);
+		}
+		return applied;
+	}
+
+	/**
+	 * Write the current states of some colonies into their slots, and make
+	 * sure that they are on the storage device. Each colony is written to the
+	 * slot that does not hold its latest write.
+	 * @param colonies The colonies to write
+	 * @throws IOException if the colonies could not be written
+	 */
+	public synchronized void write(Collection<Colony> colonies) throws IOException {
+		open();
+		int[] ids = new int[colonies.size()];
+		int[] written = new int[colonies.size()];
+		int i = 0;
+		for(Colony colony : colonies) {
+			Colony.Snapshot state = colony.snapshot();
+			int latest = slots.get(state.getId(), -1);
+			//A new colony starts with the first slot of a new pair
+			int slot = latest != -1 ? latest ^ 1 : allocate() * 2;
+			writeSlot(slot, state, ++sequence);
+			ids[i] = state.getId();
+			written[i] = slot;
+			i++;
+		}
+		mapped.force();
+		//Only now are the new slots the latest good ones
+		for(i = 0; i < ids.length; i++) {
+			slots.put(ids[i], written[i]);
+		}
+	}
+
+	/**
+	 * Empty the file. This should be called after all the colonies have been
+	 * written somewhere else, such as to a snapshot.
+	 * @throws IOException if the file could not be emptied
+	 */
+	public synchronized void clear() throws IOException {
+		open();
+		slots.clear();
+		count = 0;
+		cleared = sequence;
+		mapped.putInt(kCountOffset, 0);
+		mapped.putInt(kClearedOffset, cleared);
+		mapped.force();
+	}
+
+	/**
+	 * @return The number of colonies with slots
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Close the file. It will be reopened when it is next used.
+	 */
+	public synchronized void close() {
+		if(randomAccess != null) {
+			try {
+				randomAccess.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			randomAccess = null;
+			mapped = null;
+			capacity = 0;
+		}
+	}
+
+	/**
+	 * Open and map the file, if it is not already open. A new file, or a
+	 * file in a different format, is started over with no slots in use.
+	 */
+	private void open() throws IOException {
+		if(mapped != null) {
+			return;
+		}
+		randomAccess = new RandomAccessFile(file, "rw");
+		long length = randomAccess.length();
+		int version = 0;
+		boolean valid = length >= kSingleSlotHeaderSize
+				&& randomAccess.readInt() == kMagic
+				&& ((version = randomAccess.readInt()) == kVersion || version == kSingleSlotVersion)
+				&& randomAccess.readInt() == kSlotSize;
+		if(!valid || version == kSingleSlotVersion || length < kHeaderSize) {
+			List<Colony> colonies = new ArrayList<Colony>();
+			if(valid && version == kSingleSlotVersion) {
+				//Keep the edits in the old slots
+				readSingleSlots(length, colonies);
+			}
+			else if(length != 0) {
+				System.err.println(file+" is not a colony slot file. Starting a new one.");
+			}
+			//Start over with no old slots left in the file
+			randomAccess.setLength(0);
+			map(kInitialCapacity);
+			mapped.putInt(0, kMagic);
+			mapped.putInt(4, kVersion);
+			mapped.putInt(8, kSlotSize);
+			mapped.putInt(kCountOffset, 0);
+			mapped.putInt(kClearedOffset, 0);
+			count = 0;
+			sequence = 0;
+			cleared = 0;
+			slots.clear();
+			for(Colony colony : colonies) {
+				int slot = allocate() * 2;
+				writeSlot(slot, colony.snapshot(), ++sequence);
+				slots.put(colony.getId(), slot);
+			}
+			mapped.force();
+			return;
+		}
+		int pairsInFile = (int) Math.min((length - kHeaderSize) / (2 * kSlotSize), Integer.MAX_VALUE);
+		map(Math.max(pairsInFile, kInitialCapacity));
+		//A count that is too large was written before its slots; those slots are ignored
+		count = Math.max(0, Math.min(mapped.getInt(kCountOffset), pairsInFile));
+		cleared = mapped.getInt(kClearedOffset);
+		//New writes must be numbered after every write in the file, including
+		//writes in slots that are not in use
+		sequence = cleared;
+		for(int slot = 0; slot < pairsInFile * 2; slot++) {
+			if(readSlot(slot)) {
+				sequence = Math.max(sequence, slotBuffer.getInt(kSequenceOffset));
+			}
+		}
+	}
+
+	/**
+	 * Read the valid slots of a file in the format with one slot for each
+	 * colony, which has no sequence numbers
+	 * @param length The length of the file
+	 * @param colonies The list to add the colonies to
+	 */
+	private void readSingleSlots(long length, List<Colony> colonies) throws IOException {
+		randomAccess.seek(kCountOffset);
+		long slotsInFile = (length - kSingleSlotHeaderSize) / kSlotSize;
+		int slotCount = (int) Math.max(0, Math.min(randomAccess.readInt(), slotsInFile));
+		randomAccess.seek(kSingleSlotHeaderSize);
+		for(int slot = 0; slot < slotCount; slot++) {
+			randomAccess.readFully(slotBytes);
+			crc.reset();
+			crc.update(slotBytes, 0, kCheckedSize);
+			if(slotBuffer.getInt(kCheckedSize) != (int) crc.getValue()) {
+				continue;
+			}
+			colonies.add(new Colony(slotBuffer.getInt(0), slotBuffer.getDouble(8), slotBuffer.getDouble(16),
+					slotBuffer.getInt(4) & kStoredFlags, slotBuffer.getLong(24)));
+		}
+	}
+
+	/**
+	 * Map the file with room for a number of slot pairs, extending it if necessary
+	 */
+	private void map(int pairCapacity) throws IOException {
+		long length = kHeaderSize + (long) pairCapacity * 2 * kSlotSize;
+		if(randomAccess.length() < length) {
+			randomAccess.setLength(length);
+		}
+		mapped = randomAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		capacity = pairCapacity;
+	}
+
+	/**
+	 * Assign the next free slot pair to a colony
+	 * @return The pair number
+	 */
+	private int allocate() throws IOException {
+		if(count == capacity) {
+			//Make changes to the old mapping durable before replacing it
+			mapped.force();
+			map(capacity * 2);
+		}
+		return count++;
+	}
+
+	/**
+	 * Encode a colony's state into a slot. The count of slot pairs in use is
+	 * updated after the slot is written.
+	 */
+	private void writeSlot(int slot, Colony.Snapshot state, int slotSequence) {
+		slotBuffer.putInt(0, state.getId());
+		slotBuffer.putInt(4, state.getFlags() & kStoredFlags);
+		slotBuffer.putDouble(8, state.getX());
+		slotBuffer.putDouble(16, state.getY());
+		slotBuffer.putLong(24, state.getModifiedTime());
+		slotBuffer.putInt(kSequenceOffset, slotSequence);
+		crc.reset();
+		crc.update(slotBytes, 0, kCheckedSize);
+		slotBuffer.putInt(kCheckedSize, (int) crc.getValue());
+
+		mapped.position(kHeaderSize + slot * kSlotSize);
+		mapped.put(slotBytes);
+		int pair = slot / 2;
+		if(pair >= mapped.getInt(kCountOffset)) {
+			mapped.putInt(kCountOffset, pair + 1);
+		}
+	}
+
+	/**
+	 * Copy a slot into {@link #slotBytes} and check that its checksum matches
+	 * and that it was written after the file was last cleared
+	 * @return True if the slot holds a current write
+	 */
+	private boolean readCurrentSlot(int slot) {
+		return readSlot(slot) && slotBuffer.getInt(kSequenceOffset) > cleared;
+	}
+
+	/**
+	 * Copy a slot into {@link #slotBytes} and check its checksum
+	 * @return True if the checksum matches
+	 */
+	private boolean readSlot(int slot) {
+		mapped.position(kHeaderSize + slot * kSlotSize);
+		mapped.get(slotBytes);
+		crc.reset();
+		crc.update(slotBytes, 0, kCheckedSize);
+		return slotBuffer.getInt(kCheckedSize) == (int) crc.getValue();
+	}
+}
@@ -0,0 +1,441 @@
+package org.samcrow.data.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.samcrow.data.Colony;
+import org.samcrow.util.IntHashMap;
+
+/**
+ * Writes colony changes on one background thread, some time after they are
+ * made.
+ * <p>
+ * Callers submit changed colonies with {@link #submit(Colony)}, or request
+ * that everything be written with {@link #submitAll()}. These methods return
+ * immediately. The worker thread waits until no change has been submitted
+ * for the debounce interval, so that a burst of edits is written together,
+ * and then passes everything that is pending to a {@link Target}. A colony
+ * submitted several times before it is written is written once.
+ * </p>
+ * <p>
+ * The queue is bounded: if more than the capacity of distinct colonies are
+ * waiting, they are replaced by one request to write everything. Writes
+ * never overlap, because there is only one worker thread.
+ * </p>
+ * <p>
+ * If a write fails, the changes in it are put back in the queue and written
+ * again after {@link #kMaxDelayFactor} debounce intervals, together with any
+ * changes made in the meantime. They are not counted as written until a write
+ * succeeds.
+ * </p>
+ * <p>
+ * {@link #flush(long)} writes everything that is pending without waiting for
+ * the debounce interval, and waits until it has been written. It should be
+ * called when the application is paused.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+public class ColonyWriteBehind {
+
+	/**
+	 * Something that colony changes are written to
+	 */
+	public static interface Target {
+		/**
+		 * Write changes to some colonies
+		 * @param colonies The changed colonies, each one once
+		 * @throws IOException if the changes could not be written
+		 */
+		public void writeColonies(Collection<Colony> colonies) throws IOException;
+
+		/**
+		 * Write all the colonies
+		 * @throws IOException if the colonies could not be written
+		 */
+		public void writeAll() throws IOException;
+	}
+
+	/** The longest a write is delayed, as a multiple of the debounce interval, while changes keep arriving */
+	private static final int kMaxDelayFactor = 5;
+
+	private final Target target;
+
+	/** The maximum number of distinct colonies waiting to be written */
+	private final int capacity;
+
+	/** Nanoseconds without a new change before pending changes are written */
+	private volatile long debounceNanos;
+
+	/** Colonies waiting to be written, by ID */
+	private final IntHashMap<Colony> pending = new IntHashMap<Colony>();
+	/** The colonies in {@link #pending}, in the order they were first submitted */
+	private final List<Colony> pendingOrder = new ArrayList<Colony>();
+	/** True if everything should be written */
+	private boolean writeAllPending = false;
+
+	/** The time of the first change waiting to be written, from {@link System#nanoTime()} */
+	private long firstPendingTime;
+	/** The time of the most recent change, from {@link System#nanoTime()} */
+	private long lastSubmitTime;
+
+	/** The number of changes submitted */
+	private long submitted = 0;
+	/** The number of submitted changes that have been written */
+	private long written = 0;
+
+	/** The earliest time, from {@link System#nanoTime()}, to try again after a failed write */
+	private long retryTime;
+	/** True if the last write failed */
+	private boolean retryPending = false;
+
+	/** True if pending changes should be written without waiting */
+	private boolean flushRequested = false;
+	/** True if the worker should write everything pending and then stop */
+	private boolean stopped = false;
+
+	// Metrics
+	private long writeCount = 0;
+	private long failureCount = 0;
+	private long coalescedCount = 0;
+	private long lastWriteNanos = 0;
+	private long maxWriteNanos = 0;
+	private long totalWriteNanos = 0;
+
+	/**
+	 * Constructor. This starts the worker thread.
+	 * @param name A name for the worker thread
+	 * @param target The target to write changes to
+	 * @param debounceMillis Milliseconds without a new change before pending changes are written
+	 * @param capacity The maximum number of distinct colonies waiting to be written. When there
+	 * are more, everything is written instead.
+	 */
+	public ColonyWriteBehind(String name, Target target, long debounceMillis, int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		this.target = target;
+		this.capacity = capacity;
+		setDebounceMillis(debounceMillis);
+
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Set the debounce interval
+	 * @param debounceMillis Milliseconds without a new change before pending changes are written
+	 */
+	public void setDebounceMillis(long debounceMillis) {
+		if(debounceMillis < 0) {
+			throw new IllegalArgumentException("Debounce interval must not be negative");
+		}
+		debounceNanos = debounceMillis * 1000000L;
+	}
+
+	/**
+	 * @return Milliseconds without a new change before pending changes are written
+	 */
+	public long getDebounceMillis() {
+		return debounceNanos / 1000000L;
+	}
+
+	/**
+	 * Request that a changed colony be written
+	 * @param colony The colony
+	 */
+	public synchronized void submit(Colony colony) {
+		boolean idle = isIdle();
+		if(writeAllPending) {
+			//Already covered
+			coalescedCount++;
+		}
+		else if(!addPending(colony, true)) {
+			coalescedCount++;
+		}
+		else if(pending.size() > capacity) {
+			//Too many to keep track of individually
+			coalescedCount += pending.size() - 1;
+			clearPending();
+			writeAllPending = true;
+		}
+		submitted(idle);
+	}
+
+	/**
+	 * Request that all colonies be written
+	 */
+	public synchronized void submitAll() {
+		boolean idle = isIdle();
+		coalescedCount += pending.size() + (writeAllPending ? 1 : 0);
+		clearPending();
+		writeAllPending = true;
+		submitted(idle);
+	}
+
+	/**
+	 * Write everything that is pending now and wait for it to be written
+	 * @param timeoutMillis The maximum time to wait, in milliseconds
+	 * @return True if everything submitted before this call has been written,
+	 * false if the timeout expired first or a write failed
+	 */
+	public synchronized boolean flush(long timeoutMillis) {
+		final long goal = submitted;
+		if(written >= goal) {
+			return true;
+		}
+		flushRequested = true;
+		notifyAll();
+		final long failures = failureCount;
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while(written < goal) {
+			if(failureCount != failures) {
+				//The changes are still queued, and will be written later
+				return false;
+			}
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) {
+				return false;
+			}
+			try {
+				wait(Math.max(remaining / 1000000L, 1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write everything that is pending and then stop the worker thread.
+	 * Changes submitted after this are not written.
+	 */
+	public synchronized void shutdown() {
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of colonies waiting to be written, plus one if
+	 * everything is waiting to be written
+	 */
+	public synchronized int getQueueDepth() {
+		return pending.size() + (writeAllPending ? 1 : 0);
+	}
+
+	/**
+	 * @return The number of writes that have been made
+	 */
+	public synchronized long getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 * @return The number of writes that failed and were put back in the queue
+	 */
+	public synchronized long getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * @return The number of submitted changes that were combined with other
+	 * changes instead of being written separately
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	/**
+	 * @return The time taken by the most recent write, in milliseconds
+	 */
+	public synchronized double getLastWriteMillis() {
+		return lastWriteNanos / 1e6;
+	}
+
+	/**
+	 * @return The longest time taken by a write, in milliseconds
+	 */
+	public synchronized double getMaxWriteMillis() {
+		return maxWriteNanos / 1e6;
+	}
+
+	/**
+	 * @return The average time taken by a write, in milliseconds
+	 */
+	public synchronized double getAverageWriteMillis() {
+		return writeCount != 0 ? totalWriteNanos / 1e6 / writeCount : 0;
+	}
+
+	private boolean isIdle() {
+		return pending.isEmpty() && !writeAllPending;
+	}
+
+	/**
+	 * Add a colony to the colonies waiting to be written
+	 * @param colony The colony
+	 * @param replace True to replace a colony with the same ID that is already
+	 * waiting, false to keep it
+	 * @return True if no colony with the same ID was waiting
+	 */
+	private boolean addPending(Colony colony, boolean replace) {
+		int id = colony.getId();
+		if(pending.containsKey(id)) {
+			if(replace) {
+				pending.put(id, colony);
+			}
+			return false;
+		}
+		pending.put(id, colony);
+		pendingOrder.add(colony);
+		return true;
+	}
+
+	private void clearPending() {
+		pending.clear();
+		pendingOrder.clear();
+	}
+
+	/**
+	 * Record a submission and wake the worker
+	 * @param wasIdle True if nothing was pending before the submission
+	 */
+	private void submitted(boolean wasIdle) {
+		long now = System.nanoTime();
+		if(wasIdle) {
+			firstPendingTime = now;
+		}
+		lastSubmitTime = now;
+		submitted++;
+		notifyAll();
+	}
+
+	/**
+	 * Put the changes from a failed write back in the queue, so that they are
+	 * written with the next write
+	 * @param batch The colonies that were not written
+	 * @param all True if everything was not written
+	 */
+	private void requeue(List<Colony> batch, boolean all) {
+		long now = System.nanoTime();
+		if(isIdle()) {
+			firstPendingTime = now;
+			lastSubmitTime = now;
+		}
+		retryPending = true;
+		retryTime = now + kMaxDelayFactor * debounceNanos;
+		if(all || writeAllPending) {
+			clearPending();
+			writeAllPending = true;
+			return;
+		}
+		for(Colony colony : batch) {
+			//A newer submission of the same colony is the same object
+			addPending(colony, false);
+		}
+		if(pending.size() > capacity) {
+			//Too many to keep track of individually
+			clearPending();
+			writeAllPending = true;
+		}
+	}
+
+	/**
+	 * The worker thread's loop
+	 */
+	private void work() {
+		while(true) {
+			List<Colony> batch;
+			boolean all;
+			long goal;
+			synchronized(this) {
+				try {
+					//Wait until something is pending and the debounce interval has passed
+					while(true) {
+						if(isIdle()) {
+							if(stopped) {
+								return;
+							}
+							wait();
+							continue;
+						}
+						if(flushRequested || stopped) {
+							break;
+						}
+						long now = System.nanoTime();
+						long debounce = debounceNanos;
+						long due = Math.min(lastSubmitTime + debounce, firstPendingTime + kMaxDelayFactor * debounce);
+						if(retryPending && due - retryTime < 0) {
+							//Do not try a failed write again right away
+							due = retryTime;
+						}
+						if(now - due >= 0) {
+							break;
+						}
+						long waitNanos = due - now;
+						wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				batch = new ArrayList<Colony>(pendingOrder.size());
+				for(Colony colony : pendingOrder) {
+					//The latest colony submitted with each ID
+					batch.add(pending.get(colony.getId()));
+				}
+				all = writeAllPending;
+				clearPending();
+				writeAllPending = false;
+				flushRequested = false;
+				goal = submitted;
+			}
+
+			long start = System.nanoTime();
+			boolean succeeded = false;
+			try {
+				if(all) {
+					target.writeAll();
+				}
+				else {
+					target.writeColonies(batch);
+				}
+				succeeded = true;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (RuntimeException e) {
+				//Keep the worker alive for later writes
+				e.printStackTrace();
+			}
+			long elapsed = System.nanoTime() - start;
+
+			synchronized(this) {
+				if(succeeded) {
+					written = goal;
+					retryPending = false;
+				}
+				else {
+					failureCount++;
+					if(stopped) {
+						//Nothing will try again
+						System.err.println("Could not write colony changes before stopping");
+						return;
+					}
+					requeue(batch, all);
+				}
+				writeCount++;
+				lastWriteNanos = elapsed;
+				maxWriteNanos = Math.max(maxWriteNanos, elapsed);
+				totalWriteNanos += elapsed;
+				notifyAll();
+			}
+		}
+	}
+}
@@ -28,7 +28,8 @@ public interface FileParser<T> extends Parser<T> {
 	/**
 	 * Write all of a set of objects to the data source
 	 * @param values The colonies to write
+	 * @return True if the values were written, false if writing failed
 	 */
-	public void write(Set<T> values);
+	public boolean write(Set<T> values);
 
 }
@@ -4,12 +4,20 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 
+import org.samcrow.data.Colony;
 import org.samcrow.data.ColonySet;
 
 /**
  * Reads colony numbers, one per line, from the a file and marks
- * the identified colonies as focus colonies
+ * the identified colonies as focus colonies.
+ * 
+ * The finder remembers the colony numbers that it last read, so when the file
+ * changes, {@link #readChanges()} finds the colonies that were added to or removed
+ * from the file, and only those colonies need to be changed. {@link #hasChanged()}
+ * checks the modification time and length of the file, without reading it,
+ * so it can be polled.
  * @author samcrow
  *
  */
@@ -17,15 +25,87 @@ public class FocusColonyFinder {
 
 	private final ColonySet colonies;
 	private final File focusFile;
+
+	/**
+	 * The colony numbers that were in the file when it was last read,
+	 * in increasing order, without duplicates
+	 */
+	private int[] focusIds = new int[0];
+
+	/**
+	 * The modification time of the file when it was last read,
+	 * or Long.MIN_VALUE if it has not been read
+	 */
+	private long readModified = Long.MIN_VALUE;
+
+	/**
+	 * The length of the file when it was last read
+	 */
+	private long readLength = -1;
+	
+	/**
+	 * Constructor for a finder that does not change colonies itself.
+	 * Use {@link #readChanges()} and apply the changes to a set.
+	 * @param focusFile The file to read
+	 */
+	public FocusColonyFinder(File focusFile) {
+		this(focusFile, null);
+	}
 	
 	public FocusColonyFinder(File focusFile, ColonySet colonies) {
 		this.focusFile = focusFile;
 		this.colonies = colonies;
 	}
 	
-	/** Marks required colonies from the colony set as focused */
+	/**
+	 * Marks required colonies from the colony set as focused, and marks
+	 * colonies that have been removed from the file since it was last read
+	 * as not focused
+	 */
 	public void updateColonies() throws IOException {
-		
+		readChanges().applyTo(colonies);
+	}
+
+	/**
+	 * Determine if the file may have changed since it was last read by
+	 * {@link #readChanges()}. This does not read the file.
+	 * @return True if the modification time or length of the file is different
+	 */
+	public synchronized boolean hasChanged() {
+		return focusFile.lastModified() != readModified || focusFile.length() != readLength;
+	}
+
+	/**
+	 * Read the file and compare its colony numbers with the numbers from the last
+	 * time it was read. A file that does not exist contains no numbers.
+	 * @return The colony numbers that were added and removed. The first time, every
+	 * number in the file is added.
+	 * @throws IOException if the file could not be read. The numbers from the last
+	 * read are kept.
+	 */
+	public synchronized Changes readChanges() throws IOException {
+		//Taken before reading, so that a change during the read is found next time
+		long modified = focusFile.lastModified();
+		long length = focusFile.length();
+
+		int[] ids = focusFile.exists() ? sortUnique(readIds()) : new int[0];
+		Changes changes = new Changes(difference(ids, focusIds), difference(focusIds, ids));
+
+		focusIds = ids;
+		readModified = modified;
+		readLength = length;
+		return changes;
+	}
+
+	/**
+	 * Read the colony numbers from the file without changing any colonies.
+	 * Lines that are not numbers are skipped.
+	 * @return The colony numbers, in the order that they appear in the file
+	 * @throws IOException if the file could not be read
+	 */
+	public int[] readIds() throws IOException {
+		int[] ids = new int[64];
+		int count = 0;
 
 		BufferedReader reader = new BufferedReader(new FileReader(focusFile));
 		try {
@@ -39,9 +119,13 @@ public class FocusColonyFinder {
 				}
 				
 				try {
-					int colonyId = Integer.valueOf(line);
-					
-					colonies.getById(colonyId).setFocusColony(true);
+					int colonyId = Integer.parseInt(line);
+					if(count == ids.length) {
+						int[] larger = new int[ids.length * 2];
+						System.arraycopy(ids, 0, larger, 0, count);
+						ids = larger;
+					}
+					ids[count++] = colonyId;
 				
 				} catch (NumberFormatException ex) {
 					continue;
@@ -49,11 +133,110 @@ public class FocusColonyFinder {
 			}
 		}
 		finally {
-			if(reader != null) {
-				reader.close();
-			}
+			reader.close();
 		}
 		
+		int[] result = new int[count];
+		System.arraycopy(ids, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Sort an array of numbers and remove duplicates
+	 * @return The sorted numbers, in an array of the right size
+	 */
+	private static int[] sortUnique(int[] ids) {
+		Arrays.sort(ids);
+		int unique = 0;
+		for(int i = 0; i < ids.length; i++) {
+			if(unique == 0 || ids[i] != ids[unique - 1]) {
+				ids[unique++] = ids[i];
+			}
+		}
+		return unique == ids.length ? ids : Arrays.copyOf(ids, unique);
+	}
+
+	/**
+	 * Find the numbers in one sorted array that are not in another
+	 * @param a Numbers in increasing order, without duplicates
+	 * @param b Numbers in increasing order, without duplicates
+	 * @return The numbers in a that are not in b, in increasing order
+	 */
+	private static int[] difference(int[] a, int[] b) {
+		int[] result = new int[a.length];
+		int count = 0;
+		int j = 0;
+		for(int i = 0; i < a.length; i++) {
+			while(j < b.length && b[j] < a[i]) {
+				j++;
+			}
+			if(j == b.length || b[j] != a[i]) {
+				result[count++] = a[i];
+			}
+		}
+		return count == result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * The colony numbers that were added to and removed from the file
+	 * 
+	 * @author Sam Crow
+	 */
+	public static class Changes {
+		private final int[] added;
+		private final int[] removed;
+
+		Changes(int[] added, int[] removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+
+		/**
+		 * @return The numbers that were added, in increasing order. This array must not be modified.
+		 */
+		public int[] getAdded() {
+			return added;
+		}
+
+		/**
+		 * @return The numbers that were removed, in increasing order. This array must not be modified.
+		 */
+		public int[] getRemoved() {
+			return removed;
+		}
+
+		/**
+		 * @return True if no numbers were added or removed
+		 */
+		public boolean isEmpty() {
+			return added.length == 0 && removed.length == 0;
+		}
+
+		/**
+		 * Mark the added colonies as focus colonies and the removed colonies
+		 * as not focus colonies. Other colonies are not changed.
+		 * @param colonies The colonies to change
+		 * @return The number of colonies that were found in the set
+		 */
+		public int applyTo(ColonySet colonies) {
+			int changed = 0;
+			for(int colonyId : removed) {
+				Colony colony = colonies.getById(colonyId);
+				if(colony != null) {
+					colony.setFocusColony(false);
+					changed++;
+				}
+			}
+			for(int colonyId : added) {
+				Colony colony = colonies.getById(colonyId);
+				if(colony != null) {
+					//Any status indexes following the set see this change
+					colony.setFocusColony(true);
+					changed++;
+				}
+			}
+			return changed;
+		}
 	}
 
 }
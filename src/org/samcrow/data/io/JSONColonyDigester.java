@@ -0,0 +1,67 @@
+package org.samcrow.data.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import org.json.JSONException;
+import org.samcrow.data.Colony;
+
+/**
+ * Hashes only the colonies in a file written by {@link JSONFileParser}, for
+ * {@link BackupRotation}.
+ * <p>
+ * Each file that {@link JSONFileParser} writes has a comment with the time
+ * when it was written, so a hash of every byte changes with every write even
+ * if the colonies do not. This reads the colonies with a
+ * {@link JSONColonyReader} and hashes the ID, status, location and
+ * modification time of each one, in the order they appear in the file.
+ * </p>
+ * If the file is damaged, the colonies before the damage are hashed, followed
+ * by a marker, so that the damaged file does not match an earlier complete one.
+ *
+ * @author Sam Crow
+ */
+public class JSONColonyDigester implements BackupRotation.Digester {
+
+	/** The number of bytes hashed for each colony */
+	private static final int kRecordSize = 32;
+
+	/** The flags that are stored in the file */
+	private static final int kStoredFlags = Colony.ACTIVE | Colony.VISITED;
+
+	/** Hashed after the last colony that could be read from a damaged file */
+	private static final byte kDamaged = (byte) 0xFF;
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.samcrow.data.io.BackupRotation.Digester#update(java.io.InputStream, java.security.MessageDigest)
+	 */
+	@Override
+	public void update(InputStream in, MessageDigest digest) throws IOException {
+		//Not closed, because that would close the stream
+		JSONColonyReader reader = new JSONColonyReader(new BufferedReader(new InputStreamReader(in)));
+		ByteBuffer record = ByteBuffer.allocate(kRecordSize);
+		try {
+			while(true) {
+				Colony colony = reader.next();
+				if(colony == null) {
+					break;
+				}
+				Colony.Snapshot state = colony.snapshot();
+				record.clear();
+				record.putInt(state.getId());
+				record.putInt(state.getFlags() & kStoredFlags);
+				record.putDouble(state.getX());
+				record.putDouble(state.getY());
+				record.putLong(state.getModifiedTime());
+				digest.update(record.array(), 0, kRecordSize);
+			}
+		} catch (JSONException e) {
+			digest.update(kDamaged);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.samcrow.data.io;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.samcrow.data.Colony;
+
+/**
+ * Reads colonies one at a time from JSON text in the format written by
+ * {@link JSONFileParser}: an object with a "colonies" key whose value is an
+ * array of colony objects.
+ * <p>
+ * Each call to {@link #next()} reads just far enough to return the next
+ * colony, so only one colony object is held in memory at a time, no matter
+ * how large the text is. Other keys of the root object are skipped. Elements
+ * of the array that are not objects are skipped.
+ * </p>
+ * <p>
+ * Example:
+ * <pre>
+ * JSONColonyReader reader = new JSONColonyReader(new BufferedReader(new FileReader(file)));
+ * try {
+ *     Colony colony;
+ *     while((colony = reader.next()) != null) {
+ *         ...
+ *     }
+ * }
+ * finally {
+ *     reader.close();
+ * }
+ * </pre>
+ * </p>
+ * This class is not thread-safe.
+ *
+ * @author Sam Crow
+ */
+public class JSONColonyReader {
+
+	/** The key of the array of colonies in the root object */
+	private static final String kColoniesKey = "colonies";
+
+	private final Reader reader;
+	private final JSONTokener tokener;
+
+	/** True if the opening brace of the root object has been read */
+	private boolean started = false;
+	/** True if a key of the root object has been read */
+	private boolean readKey = false;
+	/** True if the reader is inside the colonies array */
+	private boolean inArray = false;
+	/** True if an element of the colonies array has been read */
+	private boolean readElement = false;
+	/** True if there are no more colonies */
+	private boolean done = false;
+
+	/**
+	 * Constructor
+	 * @param reader The reader to read from. It should be buffered.
+	 */
+	public JSONColonyReader(Reader reader) {
+		this.reader = reader;
+		this.tokener = new JSONTokener(reader);
+	}
+
+	/**
+	 * Read the next colony
+	 * @return The colony, or null if there are no more colonies
+	 * @throws JSONException if the text is not valid JSON in the expected format.
+	 * After this, the reader should not be used.
+	 */
+	public Colony next() throws JSONException {
+		if(done) {
+			return null;
+		}
+		if(!inArray) {
+			if(!findColonies()) {
+				done = true;
+				return null;
+			}
+			inArray = true;
+		}
+		while(true) {
+			char c = tokener.nextClean();
+			if(c == ']') {
+				done = true;
+				return null;
+			}
+			if(readElement) {
+				if(c != ',') {
+					throw tokener.syntaxError("Expected a ',' or ']'");
+				}
+			}
+			else {
+				tokener.back();
+			}
+			readElement = true;
+
+			Object value = tokener.nextValue();
+			if(value instanceof JSONObject) {
+				Colony colony = new Colony();
+				colony.fromJSON((JSONObject) value);
+				return colony;
+			}
+			//Not a colony. Move on to the next one.
+			System.err.println("Skipping colony array element that is not an object: "+value);
+		}
+	}
+
+	/**
+	 * Close the underlying reader
+	 * @throws IOException if the reader could not be closed
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Read keys of the root object, skipping their values, until the key of
+	 * the colonies array and the opening bracket of the array have been read
+	 * @return True if the array was found, false if the root object ended without it
+	 */
+	private boolean findColonies() throws JSONException {
+		if(!started) {
+			if(tokener.nextClean() != '{') {
+				throw tokener.syntaxError("A JSONObject text must begin with '{'");
+			}
+			started = true;
+		}
+		while(true) {
+			char c = tokener.nextClean();
+			if(c == '}') {
+				return false;
+			}
+			if(readKey) {
+				if(c != ',') {
+					throw tokener.syntaxError("Expected a ',' or '}'");
+				}
+			}
+			else {
+				tokener.back();
+			}
+			readKey = true;
+
+			Object key = tokener.nextValue();
+			if(tokener.nextClean() != ':') {
+				throw tokener.syntaxError("Expected a ':' after a key");
+			}
+			if(kColoniesKey.equals(key)) {
+				if(tokener.nextClean() != '[') {
+					throw tokener.syntaxError("Expected the colonies to be an array");
+				}
+				return true;
+			}
+			//Some other key, such as a comment
+			tokener.nextValue();
+		}
+	}
+}
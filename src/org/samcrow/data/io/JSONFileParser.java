@@ -1,19 +1,21 @@
 package org.samcrow.data.io;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 import org.samcrow.data.Colony;
 
 /**
@@ -22,6 +24,13 @@ import org.samcrow.data.Colony;
  */
 public class JSONFileParser extends JSONParser implements FileParser<Colony> {
 
+	/** The keys of the root object of a file, in the order that they were originally put */
+	private static final String[] kRootKeys = { "colonies", "comment" };
+	private static final int kColonies = 0;
+
+	/** Indexes into {@link #kRootKeys} in the order that {@link JSONObject} writes them */
+	private static final int[] kRootKeyOrder = keyOrder(kRootKeys);
+
 	protected File file;
 
 	/**
@@ -32,42 +41,28 @@ public class JSONFileParser extends JSONParser implements FileParser<Colony> {
 		this.file = file;
 	}
 
+	/**
+	 * Read the colonies from the file. They are read one at a time with a
+	 * {@link JSONColonyReader}, so the text of the file is never held in memory.
+	 * If the file is damaged, the colonies before the damage are returned.
+	 */
 	@Override
 	public Set<Colony> parse() {
 		Set<Colony> colonies = new LinkedHashSet<Colony>();
 
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(file));
-
-			//Read the whole text of the file into a string
-			String jsonText = "";
-			while(true) {
-				String line = reader.readLine();
-				if(line == null) {
-					break;
-				}
-
-				jsonText += line;
-			}
-			reader.close();
-
-			JSONObject jsonRoot = new JSONObject(jsonText);
-
-			JSONArray colonyArray = jsonRoot.getJSONArray("colonies");
-
-			for(int i = 0, max = colonyArray.length(); i < max; i++) {
-				try {
-					JSONObject colonyObject = colonyArray.getJSONObject(i);
-
-					Colony colony = new Colony();
-					colony.fromJSON(colonyObject);
+			JSONColonyReader reader = new JSONColonyReader(new BufferedReader(new FileReader(file)));
+			try {
+				while(true) {
+					Colony colony = reader.next();
+					if(colony == null) {
+						break;
+					}
 					colonies.add(colony);
 				}
-				catch(JSONException e) {
-					//If an error with this colony was encountered, move on to the next one
-					e.printStackTrace();
-					continue;
-				}
+			}
+			finally {
+				reader.close();
 			}
 
 		} catch (FileNotFoundException e) {
@@ -78,46 +73,52 @@ public class JSONFileParser extends JSONParser implements FileParser<Colony> {
 			e.printStackTrace();
 		}
 
-
 		return colonies;
 	}
 
+	/**
+	 * Write the colonies to the file. The file is replaced atomically, so if writing
+	 * is interrupted the file keeps its previous contents.
+	 * <p>
+	 * Colonies are written one at a time with a {@link JSONWriter}, so the memory used
+	 * does not depend on the number of colonies. The text is the same as that of a
+	 * {@link JSONObject} holding the same data.
+	 * </p>
+	 */
 	@Override
-	public void write(Set<Colony> values) {
-
-		boolean deleteResult = file.delete();
-		if(!deleteResult) {
-			System.err.println("Could not delete file!");
-		}
+	public boolean write(final Set<Colony> values) {
+		//Add a comment with some information for humans
+		final String comment = "Serialized into JSON by "+toString()+" at "+DateFormat.getDateTimeInstance().format(new Date())+".";
 
 		try {
-			file.createNewFile();
+			AtomicFile.forFile(file).write(new AtomicFile.Contents() {
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+					try {
+						JSONWriter json = new JSONWriter(writer);
+						json.object();
+						for(int key : kRootKeyOrder) {
+							json.key(kRootKeys[key]);
+							if(key == kColonies) {
+								writeAll(values, json);
+							}
+							else {
+								json.value(comment);
+							}
+						}
+						json.endObject();
+					} catch (JSONException e) {
+						throw new IOException("Could not write "+file+": "+e.getMessage());
+					}
+					writer.newLine();
+					writer.flush();
+				}
+			});
+			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
-		}
-
-		JSONObject jsonRoot = new JSONObject();
-
-		JSONArray colonyArray = new JSONArray();
-
-		for(Colony colony : values) {
-			colonyArray.put(colony.toJSON());
-		}
-
-		try {
-			jsonRoot.put("colonies", colonyArray);
-			//Add a comment with some information for humans
-			jsonRoot.put("comment", "Serialized into JSON by "+toString()+" at "+DateFormat.getDateTimeInstance().format(new Date())+".");
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			PrintStream stream = new PrintStream(file);
-			stream.println(jsonRoot.toString());
-			stream.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			return false;
 		}
 
 	}
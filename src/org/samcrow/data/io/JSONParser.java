@@ -1,12 +1,18 @@
 package org.samcrow.data.io;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
+import org.apache.ISO8601DateParser;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 import org.samcrow.data.Colony;
+import org.samcrow.data.ColonySnapshot;
 
 /**
  * Parses and encodes JSON
@@ -14,6 +20,50 @@ import org.samcrow.data.Colony;
  */
 public class JSONParser implements Parser<Colony> {
 
+	/** The keys of a colony object, in the order that {@link Colony#toJSON()} puts them */
+	private static final String[] kColonyKeys = { "id", "x", "y", "active", "visited", "modified" };
+	private static final int kId = 0;
+	private static final int kX = 1;
+	private static final int kY = 2;
+	private static final int kActive = 3;
+	private static final int kVisited = 4;
+	private static final int kModified = 5;
+
+	/**
+	 * Indexes into {@link #kColonyKeys} in the order that {@link JSONObject#toString()}
+	 * writes them, so that streamed colonies are identical to those written from a JSONObject
+	 */
+	private static final int[] kColonyKeyOrder = keyOrder(kColonyKeys);
+
+	/**
+	 * Find the order in which {@link JSONObject} writes a set of keys. This depends on
+	 * its internal hash table, so it is found by creating an object with the keys.
+	 * @param keys The keys, in the order that they are put into the object
+	 * @return Indexes into keys, in the order that the object writes them
+	 */
+	protected static int[] keyOrder(String[] keys) {
+		JSONObject probe = new JSONObject();
+		try {
+			for(String key : keys) {
+				probe.put(key, true);
+			}
+		} catch (JSONException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		int[] order = new int[keys.length];
+		int i = 0;
+		for(Iterator<?> iter = probe.keys(); iter.hasNext(); ) {
+			Object key = iter.next();
+			for(int k = 0; k < keys.length; k++) {
+				if(keys[k].equals(key)) {
+					order[i++] = k;
+					break;
+				}
+			}
+		}
+		return order;
+	}
+
 	@Override
 	public Colony parseOne(String oneString) {
 		Colony colony = new Colony();
@@ -53,16 +103,105 @@ public class JSONParser implements Parser<Colony> {
 	}
 
 	/**
-	 * Encode all the colonies in a set into a JSON array of data
+	 * Encode all the colonies in a set into a JSON array of data.
+	 * To send or store many colonies, {@link #writeAll(Collection, JSONWriter)}
+	 * uses less memory.
 	 * @param colonies The colonies to encode
 	 * @return The data in JSON array format
 	 */
 	public JSONArray encodeAll(Set<Colony> colonies) {
 		JSONArray array = new JSONArray();
 
+		for(Colony colony : colonies) {
+			array.put(colony.toJSON());
+		}
+
 		return array;
 	}
 
+	/**
+	 * Write colonies as a JSON array, one colony at a time, without building
+	 * the array in memory. The output is the same as the text of
+	 * {@link #encodeAll(Set)}.
+	 * @param colonies The colonies to write
+	 * @param writer The writer to write to
+	 * @throws JSONException if the colonies could not be written. The writer
+	 * wraps an {@link java.io.IOException} from the underlying stream in this.
+	 */
+	public void writeAll(Collection<Colony> colonies, JSONWriter writer) throws JSONException {
+		writer.array();
+		for(Colony colony : colonies) {
+			writeOne(colony, writer);
+		}
+		writer.endArray();
+	}
+
+	/**
+	 * Write the colonies in a snapshot as a JSON array, one colony at a time,
+	 * without creating a {@link Colony} for each one. The output is the same
+	 * as {@link #writeAll(Collection, JSONWriter)} with the same colonies.
+	 * @param snapshot The colonies to write
+	 * @param writer The writer to write to
+	 * @throws JSONException if the colonies could not be written
+	 */
+	public void writeAll(ColonySnapshot snapshot, JSONWriter writer) throws JSONException {
+		writer.array();
+		for(Colony.Snapshot state : snapshot) {
+			writeOne(state, writer);
+		}
+		writer.endArray();
+	}
+
+	/**
+	 * Write one colony as a JSON object. The output is the same as the text of
+	 * {@link Colony#toJSON()}.
+	 * @param colony The colony to write
+	 * @param writer The writer to write to
+	 * @throws JSONException if the colony could not be written
+	 */
+	public void writeOne(Colony colony, JSONWriter writer) throws JSONException {
+		writeOne(colony.snapshot(), writer);
+	}
+
+	/**
+	 * Write one colony state as a JSON object
+	 * @param current The state to write
+	 * @param writer The writer to write to
+	 * @throws JSONException if the state could not be written
+	 */
+	public void writeOne(Colony.Snapshot current, JSONWriter writer) throws JSONException {
+		writer.object();
+		for(int key : kColonyKeyOrder) {
+			writer.key(kColonyKeys[key]);
+			switch(key) {
+			case kId:
+				writer.value(current.getId());
+				break;
+			case kX:
+				writer.value(current.getX());
+				break;
+			case kY:
+				writer.value(current.getY());
+				break;
+			case kActive:
+				writer.value(current.isActive());
+				break;
+			case kVisited:
+				writer.value(current.isVisited());
+				break;
+			case kModified:
+				if(current.getModifiedTime() == Colony.NOT_MODIFIED) {
+					writer.value(JSONObject.NULL);
+				}
+				else {
+					writer.value(ISO8601DateParser.toString(new Date(current.getModifiedTime())));
+				}
+				break;
+			}
+		}
+		writer.endObject();
+	}
+
 	@Override
 	public String encodeOne(Colony value) {
 		return value.toJSON().toString();
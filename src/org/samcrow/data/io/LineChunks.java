@@ -0,0 +1,124 @@
+package org.samcrow.data.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Divides a text file into ranges of whole lines that can be read in parallel,
+ * for file formats with one record per line.
+ * <p>
+ * The file must use a character encoding in which a line feed byte is
+ * always a line feed, such as ASCII or UTF-8.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+final class LineChunks {
+
+	private LineChunks() {
+	}
+
+	/**
+	 * Divide a file into byte ranges of about equal size that begin after line breaks
+	 * @param file The file
+	 * @param chunkCount The maximum number of ranges
+	 * @param minChunkSize The smallest range, in bytes, worth reading separately
+	 * @return The start of each range, followed by the end of the file
+	 * @throws IOException if the file could not be read
+	 */
+	static long[] findBounds(File file, int chunkCount, long minChunkSize) throws IOException {
+		RandomAccessFile randomAccess = new RandomAccessFile(file, "r");
+		try {
+			long length = randomAccess.length();
+			int count = (int) Math.max(1, Math.min(chunkCount, length / minChunkSize));
+			long[] bounds = new long[count + 1];
+			int found = 1;
+			byte[] buffer = new byte[4096];
+			for(int i = 1; i < count; i++) {
+				long position = Math.max(length * i / count, bounds[found - 1]);
+				//Move forward to just after the next line feed
+				randomAccess.seek(position);
+				long lineStart = -1;
+				while(lineStart < 0) {
+					int read = randomAccess.read(buffer);
+					if(read <= 0) {
+						lineStart = length;
+						break;
+					}
+					for(int j = 0; j < read; j++) {
+						if(buffer[j] == '\n') {
+							lineStart = position + j + 1;
+							break;
+						}
+					}
+					position += read;
+				}
+				if(lineStart > bounds[found - 1] && lineStart < length) {
+					bounds[found++] = lineStart;
+				}
+			}
+			bounds[found++] = length;
+			if(found < bounds.length) {
+				long[] trimmed = new long[found];
+				System.arraycopy(bounds, 0, trimmed, 0, found);
+				bounds = trimmed;
+			}
+			return bounds;
+		}
+		finally {
+			randomAccess.close();
+		}
+	}
+
+	/**
+	 * Map a range of a file into memory
+	 * @param file The file
+	 * @param start The offset of the first byte
+	 * @param end The offset after the last byte
+	 * @return A stream of the bytes in the range. It does not need to be closed.
+	 * @throws IOException if the file could not be mapped
+	 */
+	static InputStream open(File file, long start, long end) throws IOException {
+		RandomAccessFile randomAccess = new RandomAccessFile(file, "r");
+		try {
+			//The mapping stays valid after the file is closed
+			return new ByteBufferInputStream(randomAccess.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start));
+		}
+		finally {
+			randomAccess.close();
+		}
+	}
+
+	/**
+	 * Reads bytes from a buffer
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if(length == 0) {
+				return 0;
+			}
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package org.samcrow.data.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+import org.samcrow.data.Colony;
+import org.samcrow.util.IntHashMap;
+
+/**
+ * Reads and writes colonies as newline-delimited JSON: each line of the file
+ * holds one colony object, in the same form as an element of the colonies
+ * array written by {@link JSONFileParser}.
+ * <p>
+ * Because each line stands alone:
+ * <ul>
+ * <li>Colonies can be added to the end of the file with {@link #append(Collection)},
+ * without rewriting it. When a colony ID is on more than one line, the last line is used.</li>
+ * <li>A damaged line is skipped and reported by {@link #getErrors()}. The other
+ * lines are still read.</li>
+ * <li>The file can be divided at any line break. If an {@link ExecutorService} is given,
+ * parts of the file are decoded in parallel, in the same way as {@link ParallelCSVImporter},
+ * which suits preparing data on a computer. Otherwise the file is read as a stream,
+ * one line at a time, which uses little memory on the device.</li>
+ * </ul>
+ * </p>
+ * The file is encoded in UTF-8.
+ *
+ * @author Sam Crow
+ */
+public class NDJSONFileParser extends JSONParser implements FileParser<Colony> {
+
+	/** The smallest part of the file, in bytes, worth decoding separately */
+	private static final long kMinChunkSize = 64 * 1024;
+
+	protected File file;
+
+	/** Decodes parts of the file, or null to decode it on the calling thread */
+	private final ExecutorService executor;
+
+	/** The maximum number of parts to divide the file into */
+	private final int chunkCount;
+
+	/** Errors from the last parse, in file order */
+	private final List<String> errors = new ArrayList<String>();
+
+	/**
+	 * Constructor for a parser that reads the file as a stream on the calling thread
+	 * @param file The file to read from and write to
+	 */
+	public NDJSONFileParser(File file) {
+		this.file = file;
+		this.executor = null;
+		this.chunkCount = 1;
+	}
+
+	/**
+	 * Constructor for a parser that decodes parts of the file in parallel
+	 * @param file The file to read from and write to
+	 * @param executor The executor that decodes parts of the file. It is not shut down
+	 * by this class.
+	 * @param chunkCount The maximum number of parts to divide the file into.
+	 * A small multiple of the number of threads of the executor works well.
+	 */
+	public NDJSONFileParser(File file, ExecutorService executor, int chunkCount) {
+		if(chunkCount < 1) {
+			throw new IllegalArgumentException("Chunk count must be at least 1");
+		}
+		this.file = file;
+		this.executor = executor;
+		this.chunkCount = chunkCount;
+	}
+
+	/**
+	 * Read the colonies from the file. Lines that could not be decoded are skipped,
+	 * and are reported by {@link #getErrors()} and on the standard error stream.
+	 */
+	@Override
+	public Set<Colony> parse() {
+		errors.clear();
+		List<Chunk> chunks;
+		try {
+			chunks = executor != null ? decodeParallel() : decodeStream();
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			return new LinkedHashSet<Colony>();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new LinkedHashSet<Colony>();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new LinkedHashSet<Colony>();
+		}
+
+		//Combine in file order. A later line for a colony replaces an earlier one.
+		int total = 0;
+		for(Chunk chunk : chunks) {
+			total += chunk.colonies.size();
+		}
+		List<Colony> ordered = new ArrayList<Colony>(total);
+		IntHashMap<Integer> positions = new IntHashMap<Integer>(total);
+		int firstLine = 1;
+		for(Chunk chunk : chunks) {
+			for(Colony colony : chunk.colonies) {
+				Integer position = positions.get(colony.getId());
+				if(position == null) {
+					positions.put(colony.getId(), ordered.size());
+					ordered.add(colony);
+				}
+				else {
+					ordered.set(position, colony);
+				}
+			}
+			for(LineError error : chunk.errors) {
+				String message = "Line " + (firstLine + error.line - 1) + ": " + error.message;
+				errors.add(message);
+				System.err.println(file.getName() + ": " + message);
+			}
+			firstLine += chunk.lineCount;
+		}
+		return new LinkedHashSet<Colony>(ordered);
+	}
+
+	/**
+	 * @return Descriptions of the lines that could not be decoded by the last
+	 * parse, in file order
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Write the colonies to the file, one per line. The file is replaced atomically,
+	 * so if writing is interrupted the file keeps its previous contents.
+	 */
+	@Override
+	public boolean write(final Set<Colony> values) {
+		try {
+			AtomicFile.forFile(file).write(new AtomicFile.Contents() {
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+					writeLines(values, writer);
+					writer.flush();
+				}
+			});
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Add colonies to the end of the file, one per line, and make sure that they
+	 * are on the storage device. When the file is read, these lines replace any
+	 * earlier lines for the same colonies.
+	 * If the last line of the file was left incomplete by an interrupted append,
+	 * it is ended first, so that it does not damage the new lines.
+	 * This must not be called while the file is being written by {@link #write(Set)}.
+	 * @param colonies The colonies to add
+	 * @throws IOException if the colonies could not be written
+	 */
+	public synchronized void append(Collection<Colony> colonies) throws IOException {
+		boolean endLine = false;
+		if(file.length() > 0) {
+			RandomAccessFile randomAccess = new RandomAccessFile(file, "r");
+			try {
+				randomAccess.seek(randomAccess.length() - 1);
+				endLine = randomAccess.read() != '\n';
+			}
+			finally {
+				randomAccess.close();
+			}
+		}
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			if(endLine) {
+				writer.write('\n');
+			}
+			writeLines(colonies, writer);
+			writer.flush();
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write colonies, each followed by a line feed
+	 */
+	private void writeLines(Collection<Colony> colonies, Writer writer) throws IOException {
+		try {
+			for(Colony colony : colonies) {
+				//A JSONWriter writes only one value
+				writeOne(colony, new JSONWriter(writer));
+				writer.write('\n');
+			}
+		} catch (JSONException e) {
+			throw new IOException("Could not write " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Decode the whole file on this thread
+	 */
+	private List<Chunk> decodeStream() throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			List<Chunk> chunks = new ArrayList<Chunk>(1);
+			chunks.add(decode(reader));
+			return chunks;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Divide the file at line breaks and decode the parts on the executor
+	 */
+	private List<Chunk> decodeParallel() throws IOException, InterruptedException {
+		if(!file.exists()) {
+			throw new FileNotFoundException(file + " does not exist");
+		}
+		long[] bounds = LineChunks.findBounds(file, chunkCount, kMinChunkSize);
+
+		List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>(bounds.length - 1);
+		for(int i = 0; i < bounds.length - 1; i++) {
+			final long start = bounds[i];
+			final long end = bounds[i + 1];
+			futures.add(executor.submit(new Callable<Chunk>() {
+				@Override
+				public Chunk call() throws IOException {
+					return decode(new InputStreamReader(LineChunks.open(file, start, end), "UTF-8"));
+				}
+			}));
+		}
+
+		List<Chunk> chunks = new ArrayList<Chunk>(futures.size());
+		try {
+			for(Future<Chunk> future : futures) {
+				chunks.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			for(Future<Chunk> future : futures) {
+				future.cancel(true);
+			}
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Could not parse " + file + ": " + cause);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Decode every line of some text. Blank lines are skipped.
+	 */
+	private Chunk decode(Reader reader) throws IOException {
+		Chunk chunk = new Chunk();
+		BufferedReader lines = new BufferedReader(reader, 16 * 1024);
+		while(true) {
+			String line = lines.readLine();
+			if(line == null) {
+				break;
+			}
+			chunk.lineCount++;
+			if(line.trim().length() == 0) {
+				continue;
+			}
+			try {
+				JSONObject json = new JSONObject(line);
+				if(!json.has("id")) {
+					chunk.errors.add(new LineError(chunk.lineCount, "No colony ID"));
+					continue;
+				}
+				Colony colony = new Colony();
+				colony.fromJSON(json);
+				chunk.colonies.add(colony);
+			} catch (JSONException e) {
+				chunk.errors.add(new LineError(chunk.lineCount, e.getMessage()));
+			}
+		}
+		return chunk;
+	}
+
+	/**
+	 * The results of decoding part of the file
+	 */
+	private static class Chunk {
+		final List<Colony> colonies = new ArrayList<Colony>();
+		final List<LineError> errors = new ArrayList<LineError>();
+		/** The number of lines in this part */
+		int lineCount;
+	}
+
+	/**
+	 * A line that could not be decoded
+	 */
+	private static class LineError {
+		/** The line number in the part, starting at 1 */
+		final int line;
+		final String message;
+
+		LineError(int line, String message) {
+			this.line = line;
+			this.message = message;
+		}
+	}
+}
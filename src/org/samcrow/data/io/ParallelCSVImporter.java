@@ -0,0 +1,195 @@
+package org.samcrow.data.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.samcrow.data.Colony;
+import org.samcrow.data.ColonySet;
+
+/**
+ * Imports a large CSV file of colonies by parsing parts of it in parallel.
+ * <p>
+ * The file is divided into byte ranges of about equal size. Each range
+ * begins just after a line break, so that no line is split. Each range is
+ * mapped into memory and parsed by a separate task on an
+ * {@link ExecutorService}, in the same way as
+ * {@link CSVFileParser#parse()}. The colonies from all ranges are then
+ * combined in the order that they appear in the file.
+ * </p>
+ * <p>
+ * Lines that could not be parsed are reported by {@link #getErrors()}, with
+ * the chunk, the line number in the whole file, and the column.
+ * </p>
+ * The file must use a character encoding in which a line feed byte is
+ * always a line feed, such as ASCII or UTF-8. See {@link LineChunks}.
+ *
+ * @author Sam Crow
+ */
+public class ParallelCSVImporter {
+
+	/** The smallest chunk, in bytes, worth parsing separately */
+	private static final long kMinChunkSize = 64 * 1024;
+
+	private final File file;
+
+	private final ExecutorService executor;
+
+	/** The maximum number of chunks to divide the file into */
+	private final int chunkCount;
+
+	/** Parses the lines of each chunk */
+	private final CSVParser parser = new CSVParser();
+
+	/** Errors from the last import, in file order */
+	private final List<String> errors = new ArrayList<String>();
+
+	/**
+	 * Constructor
+	 * @param file The CSV file to import
+	 * @param executor The executor that parses chunks. It is not shut down
+	 * by this class.
+	 * @param chunkCount The maximum number of chunks to divide the file into.
+	 * A small multiple of the number of threads of the executor works well.
+	 */
+	public ParallelCSVImporter(File file, ExecutorService executor, int chunkCount) {
+		if(chunkCount < 1) {
+			throw new IllegalArgumentException("Chunk count must be at least 1");
+		}
+		this.file = file;
+		this.executor = executor;
+		this.chunkCount = chunkCount;
+	}
+
+	/**
+	 * Parse the file
+	 * @return The colonies in the file, in file order
+	 * @throws IOException if the file could not be read
+	 * @throws InterruptedException if interrupted while waiting for the chunks to be parsed
+	 */
+	public ColonySet importColonies() throws IOException, InterruptedException {
+		errors.clear();
+		long[] bounds = LineChunks.findBounds(file, chunkCount, kMinChunkSize);
+
+		List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>(bounds.length - 1);
+		for(int i = 0; i < bounds.length - 1; i++) {
+			futures.add(executor.submit(new ChunkTask(i, bounds[i], bounds[i + 1])));
+		}
+
+		List<Chunk> chunks = new ArrayList<Chunk>(futures.size());
+		int total = 0;
+		try {
+			for(Future<Chunk> future : futures) {
+				Chunk chunk = future.get();
+				chunks.add(chunk);
+				total += chunk.colonies.size();
+			}
+		} catch (ExecutionException e) {
+			for(Future<Chunk> future : futures) {
+				future.cancel(true);
+			}
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Could not parse " + file + ": " + cause);
+		}
+
+		//Merge in file order
+		ColonySet colonies = new ColonySet(Math.max(total * 4 / 3 + 1, 16));
+		int firstLine = 1;
+		for(Chunk chunk : chunks) {
+			colonies.addAll(chunk.colonies);
+			for(ChunkError error : chunk.errors) {
+				errors.add("Chunk " + (chunk.index + 1) + ", line " + (firstLine + error.line - 1)
+						+ ", column " + error.column + ": " + error.message);
+			}
+			firstLine += chunk.lineCount;
+		}
+		return colonies;
+	}
+
+	/**
+	 * @return Descriptions of the lines that could not be parsed by the last
+	 * import, in file order
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * The results of parsing one chunk
+	 */
+	private static class Chunk {
+		/** The index of this chunk, starting at 0 */
+		final int index;
+		final List<Colony> colonies = new ArrayList<Colony>();
+		final List<ChunkError> errors = new ArrayList<ChunkError>();
+		/** The number of lines in this chunk */
+		int lineCount;
+
+		Chunk(int index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * A line in a chunk that could not be parsed
+	 */
+	private static class ChunkError {
+		/** The line number in the chunk, starting at 1 */
+		final int line;
+		final int column;
+		final String message;
+
+		ChunkError(int line, int column, String message) {
+			this.line = line;
+			this.column = column;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Parses one chunk
+	 */
+	private class ChunkTask implements Callable<Chunk> {
+		private final int index;
+		private final long start;
+		private final long end;
+
+		ChunkTask(int index, long start, long end) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public Chunk call() throws IOException {
+			Chunk chunk = new Chunk(index);
+			CSVTokenizer tokenizer = new CSVTokenizer(new InputStreamReader(LineChunks.open(file, start, end)));
+			while(tokenizer.nextLine()) {
+				if(tokenizer.isBlank()) {
+					continue;
+				}
+				Colony colony = parser.parseColony(tokenizer);
+				if(colony != null) {
+					chunk.colonies.add(colony);
+				}
+				else {
+					chunk.errors.add(new ChunkError(tokenizer.getLineNumber(), tokenizer.getErrorColumn(), tokenizer.getError()));
+				}
+			}
+			chunk.lineCount = tokenizer.getLineNumber();
+			return chunk;
+		}
+	}
+}
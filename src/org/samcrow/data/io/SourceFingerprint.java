@@ -0,0 +1,156 @@
+package org.samcrow.data.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Identifies the contents of a file by its length, modification time and,
+ * optionally, a hash of its contents, so that a program can tell if the file
+ * has changed since it was last read without reading it again.
+ * <p>
+ * {@link #matches(File)} compares the length and modification time first.
+ * Only if the length is the same but the modification time is different,
+ * as happens when the same file is copied onto the memory card again, is the
+ * file read to compare its hash.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+public class SourceFingerprint {
+
+	private final long length;
+	private final long lastModified;
+	/** The CRC-32 of the contents, valid if {@link #hasHash} is true */
+	private final long hash;
+	private final boolean hasHash;
+
+	private SourceFingerprint(long length, long lastModified, long hash, boolean hasHash) {
+		this.length = length;
+		this.lastModified = lastModified;
+		this.hash = hash;
+		this.hasHash = hasHash;
+	}
+
+	/**
+	 * Take the fingerprint of a file
+	 * @param file The file
+	 * @param withHash True to read the file and include a hash of its contents
+	 * @return The fingerprint
+	 * @throws IOException if the file could not be read
+	 */
+	public static SourceFingerprint of(File file, boolean withHash) throws IOException {
+		long length = file.length();
+		long lastModified = file.lastModified();
+		if(!withHash) {
+			return new SourceFingerprint(length, lastModified, 0, false);
+		}
+		return new SourceFingerprint(length, lastModified, hash(file), true);
+	}
+
+	/**
+	 * @return A fingerprint that does not match any file, for when there is
+	 * no file to take a fingerprint of
+	 */
+	public static SourceFingerprint none() {
+		return new SourceFingerprint(-1, 0, 0, false);
+	}
+
+	/**
+	 * Determine if a file still has the contents that this fingerprint was
+	 * taken from
+	 * @param file The file
+	 * @return True if the file has the same contents. If this fingerprint
+	 * has no hash, the file must also have the same modification time.
+	 * @throws IOException if the file had to be read, and could not be
+	 */
+	public boolean matches(File file) throws IOException {
+		if(!file.exists() || file.length() != length) {
+			return false;
+		}
+		if(file.lastModified() == lastModified) {
+			return true;
+		}
+		return hasHash && hash(file) == hash;
+	}
+
+	/**
+	 * Determine if a file has the modification time that this fingerprint
+	 * was taken with. If {@link #matches(File)} is true but this is false,
+	 * the file was read to compare its hash.
+	 * @param file The file
+	 * @return True if the file's modification time is the same
+	 */
+	public boolean sameTime(File file) {
+		return file.lastModified() == lastModified;
+	}
+
+	/**
+	 * Get a fingerprint with the same hash as this one, and the current
+	 * length and modification time of a file. This should be called only
+	 * after {@link #matches(File)} has returned true for the file.
+	 * @param file The file
+	 * @return The new fingerprint
+	 */
+	public SourceFingerprint withTimeOf(File file) {
+		return new SourceFingerprint(file.length(), file.lastModified(), hash, hasHash);
+	}
+
+	/**
+	 * Write this fingerprint to a stream
+	 * @param out The stream
+	 * @throws IOException if the fingerprint could not be written
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeLong(length);
+		out.writeLong(lastModified);
+		out.writeBoolean(hasHash);
+		out.writeLong(hash);
+	}
+
+	/**
+	 * Read a fingerprint written by {@link #writeTo(DataOutputStream)}
+	 * @param in The stream
+	 * @return The fingerprint
+	 * @throws IOException if the fingerprint could not be read
+	 */
+	public static SourceFingerprint readFrom(DataInputStream in) throws IOException {
+		long length = in.readLong();
+		long lastModified = in.readLong();
+		boolean hasHash = in.readBoolean();
+		long hash = in.readLong();
+		return new SourceFingerprint(length, lastModified, hash, hasHash);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return length + " bytes, modified " + lastModified + (hasHash ? ", CRC " + Long.toHexString(hash) : "");
+	}
+
+	/**
+	 * Calculate the CRC-32 of the contents of a file
+	 */
+	private static long hash(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, count);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
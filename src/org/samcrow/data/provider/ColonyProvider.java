@@ -1,7 +1,10 @@
 package org.samcrow.data.provider;
 
+import java.util.concurrent.Future;
+
 import org.samcrow.data.Colony;
 import org.samcrow.data.ColonySet;
+import org.samcrow.data.ColonySnapshot;
 
 /**
  * An interface for a class that can get colonies and update their information.
@@ -16,6 +19,27 @@ public interface ColonyProvider {
 	 */
 	public ColonySet getColonies();
 
+	/**
+	 * Get an immutable snapshot of the colonies.
+	 * The snapshot can be iterated from any thread without locking, and will
+	 * not change while it is being used. Call this method again to get a
+	 * snapshot reflecting later changes.
+	 * This method should not block.
+	 * @return The latest snapshot. If the colonies are not currently available,
+	 * this is {@link ColonySnapshot#EMPTY}.
+	 */
+	public ColonySnapshot getSnapshot();
+
+	/**
+	 * Get a future that completes when all the colonies have been loaded.
+	 * Until then, {@link #getColonies()} may return null or a set that is
+	 * still being filled.
+	 * This method should not block.
+	 * @return The future. Its value is the set of colonies. If the colonies could not
+	 * be loaded, it fails with the exception that stopped them.
+	 */
+	public Future<ColonySet> getReadyFuture();
+
 	/**
 	 * Take all the colonies (the same reference as returned by {@link #getColonies()})
 	 * and write them to this provider's persistence mechanism.
@@ -35,4 +59,27 @@ public interface ColonyProvider {
 	 * persistent storage
 	 */
 	public void updateColony(Colony colony) throws UnsupportedOperationException;
+
+	/**
+	 * Write any colony information that has been submitted with {@link #updateColonies()}
+	 * or {@link #updateColony(Colony)} but not yet written, and wait for it to be written.
+	 * This should be called when the application is paused.
+	 * This method may block for a short time.
+	 */
+	public void flush();
+
+	/**
+	 * Stop checking the data source for changes made outside this application,
+	 * until {@link #resumeWatching()} is called.
+	 * This should be called when the application is paused.
+	 */
+	public void pauseWatching();
+
+	/**
+	 * Start checking the data source for changes made outside this application
+	 * again, after {@link #pauseWatching()}. Changes made while watching was
+	 * paused are found soon after this is called.
+	 * This should be called when the application is resumed.
+	 */
+	public void resumeWatching();
 }
@@ -1,10 +1,15 @@
 package org.samcrow.data.provider;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.samcrow.data.Colony;
 import org.samcrow.data.ColonySet;
+import org.samcrow.data.ColonySnapshot;
 
 /**
  * Provides colonies from a hard-coded list.
@@ -58,6 +63,34 @@ public class HardCodedColonyProvider implements ColonyProvider {
 		return colonies;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.samcrow.data.provider.ColonyProvider#getSnapshot()
+	 */
+	@Override
+	public ColonySnapshot getSnapshot() {
+		return colonies.snapshot();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.samcrow.data.provider.ColonyProvider#getReadyFuture()
+	 */
+	@Override
+	public Future<ColonySet> getReadyFuture() {
+		//The colonies are always loaded
+		FutureTask<ColonySet> ready = new FutureTask<ColonySet>(new Callable<ColonySet>() {
+			@Override
+			public ColonySet call() {
+				return colonies;
+			}
+		});
+		ready.run();
+		return ready;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -86,6 +119,36 @@ public class HardCodedColonyProvider implements ColonyProvider {
 
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.samcrow.data.provider.ColonyProvider#flush()
+	 */
+	@Override
+	public void flush() {
+		//Nothing is ever written
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.samcrow.data.provider.ColonyProvider#pauseWatching()
+	 */
+	@Override
+	public void pauseWatching() {
+		//The colonies never change
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.samcrow.data.provider.ColonyProvider#resumeWatching()
+	 */
+	@Override
+	public void resumeWatching() {
+		//The colonies never change
+	}
+
 	//Singleton
 	private HardCodedColonyProvider() {}
 	public static final HardCodedColonyProvider instance = new HardCodedColonyProvider();
@@ -1,29 +1,149 @@
 package org.samcrow.data.provider;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.json.JSONException;
 
 import org.samcrow.data.Colony;
+import org.samcrow.data.ColonyReconciler;
 import org.samcrow.data.ColonySet;
+import org.samcrow.data.ColonySnapshot;
+import org.samcrow.data.io.AtomicFile;
+import org.samcrow.data.io.BackupRotation;
+import org.samcrow.data.io.BinaryFileParser;
 import org.samcrow.data.io.CSVFileParser;
+import org.samcrow.data.io.ColonyJournal;
+import org.samcrow.data.io.ColonySlotFile;
+import org.samcrow.data.io.ColonyWriteBehind;
 import org.samcrow.data.io.FileParser;
 import org.samcrow.data.io.FocusColonyFinder;
+import org.samcrow.data.io.JSONColonyDigester;
+import org.samcrow.data.io.JSONColonyReader;
 import org.samcrow.data.io.JSONFileParser;
+import org.samcrow.data.io.SourceFingerprint;
+import org.samcrow.util.IntHashMap;
 
 /**
  * Provides colonies from data stored on the memory card.
  * This class first looks for a CSV file named colonies.csv in the directory specified by {@link #kDir}.
  * It parses that data.
  * Then it looks for a JSON file named colonies.json in the same directory and parses that data.
- * In the event of any conflict between the two files, the version in colonies.json takes precedence.
+ * Conflicts between the two files are resolved by {@link #kMergePolicy}. With the default policy,
+ * the copy of a colony that was modified most recently takes precedence, which is usually the one
+ * in colonies.json.
  * 
  * When writing colony data, this implementation writes it to colonies.json. It does not modify colonies.csv.
  * 
+ * Edits to individual colonies are not written to colonies.json. They are stored in one of two ways,
+ * selected by {@link EditStorage}:
+ * <ul>
+ * <li>{@link EditStorage#SLOTS}, the default: each edited colony has a pair of fixed-size slots in a
+ * memory-mapped file, colonies.slots, which are overwritten in place in turn, so that an interrupted
+ * write leaves the previous edit. See {@link ColonySlotFile}.</li>
+ * <li>{@link EditStorage#JOURNAL}: each edit is appended to a journal, colonies.journal.
+ * When the journal grows past {@link #kCompactionThreshold} records, it is folded into colonies.json.</li>
+ * </ul>
+ * When the colonies are loaded, the journal and the slots are applied on top of colonies.json.
+ * Both are emptied each time colonies.json is written.
+ * 
+ * After colonies.csv and colonies.json are merged, their fingerprints are recorded in colonies.sources.
+ * If neither has changed at the next start, colonies.json already holds the merged colonies, so
+ * colonies.csv is not read and nothing is rewritten. See {@link SourceFingerprint}.
+ * 
+ * Each time colonies.json is written, the same colonies are also written to colonies.bin
+ * in the format of {@link BinaryFileParser}, which loads much faster. The length and
+ * modification time of colonies.json are stored in colonies.bin, which is read instead of
+ * colonies.json only if colonies.json still has them.
+ * 
+ * Colonies are loaded on a background thread, so the constructor returns immediately.
+ * The files are read at the same time, and colonies are added to the set in batches
+ * as they are read, so that a map can show the first colonies before the rest are loaded.
+ * {@link #getReadyFuture()} completes when every colony has been added.
+ * 
+ * After loading, focus_colonies.txt is checked for changes every {@link #kFocusPollMillis}
+ * milliseconds. When it changes, only the colonies added to or removed from it are changed.
+ * Checking stops between {@link #pauseWatching()} and {@link #resumeWatching()}.
+ * 
+ * Each new version of colonies.json is also kept, compressed, in the backups directory.
+ * Versions with the same colonies as the last are skipped, and the oldest are deleted
+ * when the backups take more than {@link #kMaxBackupBytes}. See {@link BackupRotation}.
+ * 
+ * All writing happens on one {@link ColonyWriteBehind} worker thread, which combines bursts of edits
+ * into one write. Call {@link #flush()} to write pending edits immediately. Until every colony
+ * has been loaded, colonies.json is not rewritten, and {@link #flush()} does not wait.
+ * 
  * @author Sam Crow
  */
 public class MemoryCardDataProvider implements ColonyProvider {
 
-	private ColonySet colonies = new ColonySet();
+	/**
+	 * Ways of storing edits to individual colonies
+	 */
+	public static enum EditStorage {
+		/** Overwrite a slot for each colony in a memory-mapped file */
+		SLOTS,
+		/** Append each edit to a journal */
+		JOURNAL
+	}
+
+	/**
+	 * The colonies. This set is never replaced. Colonies are added to it in
+	 * batches as they are loaded.
+	 */
+	private final ColonySet colonies = new ColonySet();
+
+	/**
+	 * Runs the tasks that add loaded colonies to {@link #colonies}
+	 */
+	private final Executor delivery;
+
+	/**
+	 * Completed when every colony has been added to {@link #colonies}
+	 */
+	private final FutureTask<ColonySet> ready = new FutureTask<ColonySet>(new Callable<ColonySet>() {
+		@Override
+		public ColonySet call() throws Exception {
+			if(loadFailure != null) {
+				throw loadFailure;
+			}
+			return colonies;
+		}
+	});
+
+	/**
+	 * The exception that stopped loading, or null if loading has not failed
+	 */
+	private volatile Exception loadFailure;
+
+	/**
+	 * The number of colonies added to {@link #colonies} in each delivery
+	 */
+	private static final int kLoadBatchSize = 256;
+
+	/**
+	 * The number of threads that read the CSV, JSON and focus files at the same time
+	 */
+	private static final int kReadThreads = 3;
 
 	/**
 	 * The absolute path to the folder where data should be read and written.
@@ -43,74 +163,162 @@ public class MemoryCardDataProvider implements ColonyProvider {
 	 */
 	private static final String kJsonFileName = "colonies.json";
 
-	public MemoryCardDataProvider() {
-		File dir = new File(kDir);
-		//Create the directory if it doesn't already exist
-		dir.mkdirs();
+	/**
+	 * The policy for colonies that are in both colonies.csv and colonies.json
+	 */
+	private static final ColonyReconciler.Policy kMergePolicy = ColonyReconciler.NEWEST_WINS;
 
-		File csvFile = new File(kDir+kCsvFileName);
-		File jsonFile = new File(kDir+kJsonFileName);
+	/**
+	 * The name, including the file extension, of the file that records the
+	 * fingerprints of colonies.csv and colonies.json when they were last merged
+	 */
+	private static final String kSourcesFileName = "colonies.sources";
 
-		//Verify that this application has permission to write each of the files
-		if(csvFile.exists()) assert csvFile.canWrite();
-		if(jsonFile.exists()) assert jsonFile.canWrite();
+	/**
+	 * The fingerprint of colonies.csv when it was last merged into colonies.json,
+	 * or null if it has not been merged
+	 */
+	private volatile SourceFingerprint csvFingerprint;
 
-		//Case 1: Application hasn't been run before
-		//colonies.csv exists, colonies.json does not
-		if(csvFile.exists() && !jsonFile.exists()) {
+	/**
+	 * The name, including the file extension, of the file listing the focus colonies
+	 */
+	private static final String kFocusFileName = "focus_colonies.txt";
 
-			//Read the CSV and get the colonies into memory
-			FileParser<Colony> csvParser = new CSVFileParser(csvFile);
-			colonies = new ColonySet(csvParser.parse());
+	/**
+	 * Milliseconds between checks for changes to the focus file
+	 */
+	private static final long kFocusPollMillis = 2000;
 
-			//Write the JSON file from memory
-			FileParser<Colony> jsonParser = new JSONFileParser(jsonFile);
-			jsonParser.write(colonies);
-		}
+	/**
+	 * Reads the focus file and finds changes to it
+	 */
+	private final FocusColonyFinder focusFinder = new FocusColonyFinder(new File(kDir+kFocusFileName));
 
-		//Case 2: both files exist
-		else if(csvFile.exists() && jsonFile.exists()) {
+	/**
+	 * Guards {@link #watching}, and is notified when it changes
+	 */
+	private final Object watchLock = new Object();
 
+	/**
+	 * False while the focus file is not being checked, because the application is paused
+	 */
+	private boolean watching = true;
 
-			FileParser<Colony> csvParser = new CSVFileParser(csvFile);
-			ColonySet csvColonies = new ColonySet(csvParser.parse());
+	/**
+	 * The name, including the file extension, of the binary copy of the JSON file
+	 */
+	private static final String kBinaryFileName = "colonies.bin";
 
-			//Write the JSON file from memory
-			FileParser<Colony> jsonParser = new JSONFileParser(jsonFile);
-			ColonySet jsonColonies = new ColonySet(jsonParser.parse());
+	/**
+	 * True if the colonies were loaded from the binary file
+	 */
+	private boolean loadedFromBinary = false;
 
-			//Put into memory the colonies from the CSV updated with colonies from the JSON file
-			colonies = extend(csvColonies, jsonColonies);
+	/**
+	 * The name of the directory, in {@link #kDir}, that holds the backups of colonies.json
+	 */
+	private static final String kBackupDirName = "backups";
 
-			//Write the JSON file from memory
-			jsonParser.write(colonies);
-		}
+	/**
+	 * The maximum total size, in bytes, of the backups of colonies.json
+	 */
+	private static final long kMaxBackupBytes = 16 * 1024 * 1024;
 
-		//Cases 3: CSV doesn't exist, JSON does
-		else if(!csvFile.exists() && jsonFile.exists()) {
-			//Use the JSON file
-			FileParser<Colony> jsonParser = new JSONFileParser(jsonFile);
-			colonies.clear();
-			colonies.addAll(jsonParser.parse());
-		}
+	/**
+	 * Keeps compressed versions of colonies.json
+	 */
+	private final BackupRotation backups = new BackupRotation(new File(kDir+kJsonFileName),
+			new File(kDir+kBackupDirName), kMaxBackupBytes, new JSONColonyDigester());
 
-		else {
-			String message = "Neither "+csvFile.getAbsolutePath()+" or "+jsonFile.getAbsolutePath()+" exists! Failed to get colonies from the memory card.";
-			System.err.println(message);
-		}
-		
-		//Look for focus_colonies.txt
-		File focusFile = new File(kDir+"focus_colonies.txt");
-		if(focusFile.exists() && focusFile.canRead()) {
-			try {
-				new FocusColonyFinder(focusFile, colonies).updateColonies();
-			} catch (IOException e) {
-				System.err.println("Could not read focus colonies file");
-				e.printStackTrace();
+	/**
+	 * The name, including the file extension, of the journal file to use
+	 */
+	private static final String kJournalFileName = "colonies.journal";
+
+	/**
+	 * The number of journal records at which the journal will be compacted
+	 */
+	private static final int kCompactionThreshold = 200;
+
+	/**
+	 * The journal of colony edits
+	 */
+	private final ColonyJournal journal = new ColonyJournal(new File(kDir+kJournalFileName));
+
+	/**
+	 * The name, including the file extension, of the slot file to use
+	 */
+	private static final String kSlotFileName = "colonies.slots";
+
+	/**
+	 * The slots of edited colonies
+	 */
+	private final ColonySlotFile slotFile = new ColonySlotFile(new File(kDir+kSlotFileName));
+
+	/**
+	 * How edits to individual colonies are stored
+	 */
+	private final EditStorage editStorage;
+
+	/**
+	 * Milliseconds without an edit before edits are written
+	 */
+	private static final long kDebounceMillis = 500;
+
+	/**
+	 * The maximum number of distinct colonies waiting to be written to the journal
+	 */
+	private static final int kWriteQueueCapacity = 100;
+
+	/**
+	 * The maximum time, in milliseconds, that {@link #flush()} waits for pending edits to be written
+	 */
+	private static final long kFlushTimeoutMillis = 5000;
+
+	/**
+	 * Writes edits on a background thread
+	 */
+	private final ColonyWriteBehind writer = new ColonyWriteBehind("Memory card writer", new FileWriteTarget(),
+			kDebounceMillis, kWriteQueueCapacity);
+
+	/**
+	 * Constructor. Edits are stored in slots, and colonies are added to the set
+	 * on the thread that loads them.
+	 */
+	public MemoryCardDataProvider() {
+		this(EditStorage.SLOTS);
+	}
+
+	/**
+	 * Constructor. Colonies are added to the set on the thread that loads them.
+	 * @param editStorage How edits to individual colonies should be stored
+	 */
+	public MemoryCardDataProvider(EditStorage editStorage) {
+		this(editStorage, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
 			}
-		}
+		});
 	}
 
+	/**
+	 * Constructor. This returns immediately. The colonies are loaded on a background
+	 * thread, and added to the set from {@link #getColonies()} in batches as they are loaded.
+	 * @param editStorage How edits to individual colonies should be stored
+	 * @param delivery Runs the tasks that add batches of colonies to the set. This should
+	 * run them on the thread that uses the set, such as the user interface thread,
+	 * because modifying the set is not thread-safe. Tasks must be run in order.
+	 */
+	public MemoryCardDataProvider(EditStorage editStorage, Executor delivery) {
+		this.editStorage = editStorage;
+		this.delivery = delivery;
+
+		Thread loader = new Thread(new Loader(), "Memory card loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
 
 	/* (non-Javadoc)
 	 * @see org.samcrow.data.provider.ColonyProvider#getColonies()
@@ -120,12 +328,28 @@ public class MemoryCardDataProvider implements ColonyProvider {
 		return colonies;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#getSnapshot()
+	 */
+	@Override
+	public ColonySnapshot getSnapshot() {
+		return colonies.snapshot();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#getReadyFuture()
+	 */
+	@Override
+	public Future<ColonySet> getReadyFuture() {
+		return ready;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.samcrow.data.provider.ColonyProvider#updateColonies()
 	 */
 	@Override
 	public void updateColonies() throws UnsupportedOperationException {
-		new FileWriteTask().start();
+		writer.submitAll();
 	}
 
 	/* (non-Javadoc)
@@ -134,77 +358,583 @@ public class MemoryCardDataProvider implements ColonyProvider {
 	@Override
 	public void updateColony(Colony colony)
 			throws UnsupportedOperationException {
-		new FileWriteTask().start();
+		writer.submit(colony);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#flush()
+	 */
+	@Override
+	public void flush() {
+		if(!ready.isDone()) {
+			//Loading finishes on the delivery thread, which may be this thread, so a write of
+			//every colony cannot happen until this returns. Start writing without waiting.
+			//Edits to single colonies go to the slots or the journal, which do not need to wait.
+			writer.flush(0);
+			return;
+		}
+		if(!writer.flush(kFlushTimeoutMillis)) {
+			System.err.println("Timed out waiting for colonies to be written");
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#pauseWatching()
+	 */
+	@Override
+	public void pauseWatching() {
+		synchronized(watchLock) {
+			watching = false;
+		}
+	}
 
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#resumeWatching()
+	 */
+	@Override
+	public void resumeWatching() {
+		synchronized(watchLock) {
+			watching = true;
+			//Check for changes made while paused now, instead of after the next interval
+			watchLock.notifyAll();
+		}
 	}
 
 	/**
-	 * Extend a set of colonies to reflect changes from a supplemental set
-	 * This is based on jQuery's <code>jQuery.extend()</code> function.
-	 * 
-	 * This method will create and return a new set with the following:
-	 * <ul>
-	 * <li>Every colony in supplement but not base included as-is</li>
-	 * <li>Every colony in base but not supplement included as-is</li>
-	 * <li>For every colony in both sets, the copy from base will be ignored
-	 * and the copy from supplement will be used</li>
-	 * </ul>
-	 * Colonies are considered equal if their IDs as returned by {@link Colony#getId()}
-	 * are the same.
+	 * @return The backups of colonies.json
+	 */
+	public BackupRotation getBackups() {
+		return backups;
+	}
+
+	/**
+	 * @return The worker that writes edits, which provides metrics on the writes
+	 */
+	public ColonyWriteBehind getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Determine if colonies.csv and colonies.json are the same as when they
+	 * were last merged. If so, {@link #csvFingerprint} is set.
+	 * If colonies.csv has the same contents but a new modification time,
+	 * the new time is recorded, so that it is not read again at the next start.
+	 * @return True if neither file has changed
+	 */
+	private boolean sourcesUnchanged(File csvFile, File jsonFile) {
+		File sourcesFile = new File(kDir+kSourcesFileName);
+		if(!sourcesFile.exists()) {
+			return false;
+		}
+		SourceFingerprint csvPrint;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sourcesFile)));
+			try {
+				csvPrint = SourceFingerprint.readFrom(in);
+				SourceFingerprint jsonPrint = SourceFingerprint.readFrom(in);
+				//The JSON fingerprint has no hash, so only the size and time are compared
+				if(!jsonPrint.matches(jsonFile) || !csvPrint.matches(csvFile)) {
+					return false;
+				}
+			}
+			finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		if(csvPrint.sameTime(csvFile)) {
+			csvFingerprint = csvPrint;
+		}
+		else {
+			//The same file was copied onto the card again, and had to be read for its hash
+			csvFingerprint = csvPrint.withTimeOf(csvFile);
+			recordJsonSource(jsonFile);
+		}
+		return true;
+	}
+
+	/**
+	 * Record the fingerprints of colonies.csv and colonies.json after they
+	 * have been merged
+	 */
+	private void recordSources(File csvFile, File jsonFile) {
+		try {
+			csvFingerprint = SourceFingerprint.of(csvFile, true);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		recordJsonSource(jsonFile);
+	}
+
+	/**
+	 * Record the fingerprint of colonies.json after it has been written, along
+	 * with the fingerprint of colonies.csv from when it was merged. This does
+	 * nothing if colonies.csv has not been merged.
+	 */
+	private void recordJsonSource(File jsonFile) {
+		final SourceFingerprint csvPrint = csvFingerprint;
+		if(csvPrint == null) {
+			return;
+		}
+		try {
+			//Reading colonies.json for a hash would cost as much as writing it
+			final SourceFingerprint jsonPrint = SourceFingerprint.of(jsonFile, false);
+			AtomicFile.forFile(new File(kDir+kSourcesFileName)).write(new AtomicFile.Contents() {
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					DataOutputStream data = new DataOutputStream(out);
+					csvPrint.writeTo(data);
+					jsonPrint.writeTo(data);
+					data.flush();
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Read the colonies from the JSON file, or from the binary file if it was written from
+	 * the current JSON file
+	 * @param jsonFile The JSON file
+	 * @return The colonies
+	 */
+	private Set<Colony> parseSnapshot(File jsonFile) {
+		File binaryFile = new File(kDir+kBinaryFileName);
+		if(binaryFile.exists()) {
+			Set<Colony> binaryColonies = new BinaryFileParser(binaryFile, jsonFile).parse();
+			//An empty set means that the binary file could not be read
+			if(!binaryColonies.isEmpty()) {
+				loadedFromBinary = true;
+				return binaryColonies;
+			}
+		}
+		return new JSONFileParser(jsonFile).parse();
+	}
+
+	/**
+	 * Loads the colonies on a background thread. The CSV file, the JSON file and the
+	 * focus file are read at the same time by a pool of threads. Edits from the journal
+	 * and slots and focus status are applied to each colony before it is delivered.
 	 * 
-	 * @param base The base set of colonies
-	 * @param supplement The supplement set of colonies
-	 * @return A new set of colonies reflecting the changes to base made by supplement.
-	 * This set will contain references to the same colony objects referred to by
-	 * the input sets.
+	 * @author Sam Crow
 	 */
-	private ColonySet extend(ColonySet base, ColonySet supplement) {
-		//Note: base and supplement contain references to different colony objects with the same IDs
+	private class Loader implements Runnable {
 
-		ColonySet finalSet = new ColonySet();
+		@Override
+		public void run() {
+			ExecutorService readers = Executors.newFixedThreadPool(kReadThreads);
+			try {
+				load(readers);
+			} catch (Exception e) {
+				System.err.println("Failed to load colonies from the memory card");
+				e.printStackTrace();
+				if(!ready.isDone()) {
+					//Colonies may be missing, so they must not be written
+					loadFailure = e;
+					delivery.execute(ready);
+				}
+			} finally {
+				readers.shutdown();
+			}
+		}
 
-		for(Colony colony : base) {
-			int id = colony.getId();
+		private void load(ExecutorService readers) throws Exception {
+			File dir = new File(kDir);
+			//Create the directory if it doesn't already exist
+			dir.mkdirs();
+
+			final File csvFile = new File(kDir+kCsvFileName);
+			final File jsonFile = new File(kDir+kJsonFileName);
+
+			//Verify that this application has permission to write each of the files
+			if(csvFile.exists()) assert csvFile.canWrite();
+			if(jsonFile.exists()) assert jsonFile.canWrite();
+
+			//Look for focus_colonies.txt
+			Future<int[]> focusIds = readers.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					try {
+						//Every colony in the file is new
+						return focusFinder.readChanges().getAdded();
+					} catch (IOException e) {
+						System.err.println("Could not read focus colonies file");
+						e.printStackTrace();
+						return new int[0];
+					}
+				}
+			});
+
+			//If neither file has changed since they were last merged, colonies.json
+			//already contains the merged colonies
+			boolean alreadyMerged = csvFile.exists() && jsonFile.exists() && sourcesUnchanged(csvFile, jsonFile);
+
+			Future<Set<Colony>> csvColonies = null;
+			Future<Set<Colony>> jsonColonies = null;
+			if(csvFile.exists() && !alreadyMerged) {
+				csvColonies = readers.submit(new Callable<Set<Colony>>() {
+					@Override
+					public Set<Colony> call() {
+						return new CSVFileParser(csvFile).parse();
+					}
+				});
+				if(jsonFile.exists()) {
+					jsonColonies = readers.submit(new Callable<Set<Colony>>() {
+						@Override
+						public Set<Colony> call() {
+							return parseSnapshot(jsonFile);
+						}
+					});
+				}
+			}
 
-			Colony supplementColony = supplement.getById(id);
-			if(supplementColony != null) {
-				//It's in the supplement set, so just use the version from the supplement
-				finalSet.add(supplementColony);
+			//Read edits made since colonies.json was last written while the files are read
+			//Both are read, in case the edit storage has changed since they were written
+			ColonySet edits = new ColonySet();
+			int replayed = journal.replay(edits);
+			int slotsApplied = 0;
+			try {
+				slotsApplied = slotFile.load(edits);
+			} catch (IOException e) {
+				System.err.println("Could not read slot file");
+				e.printStackTrace();
+			}
+
+			BatchFeeder feeder = new BatchFeeder(edits, focusIds.get());
+
+			//Case 1: Application hasn't been run before
+			//colonies.csv exists, colonies.json does not
+			if(csvFile.exists() && !jsonFile.exists()) {
+
+				//Read the CSV and get the colonies into memory
+				ColonySet loaded = new ColonySet(csvColonies.get());
+
+				//Write the JSON file from memory
+				FileParser<Colony> jsonParser = new JSONFileParser(jsonFile);
+				if(jsonParser.write(loaded)) {
+					recordSources(csvFile, jsonFile);
+					backups.backupLater();
+				}
+				feeder.addAll(loaded);
 			}
+
+			//Case 2: both files exist, and one has changed since they were last merged
+			else if(csvFile.exists() && jsonFile.exists() && !alreadyMerged) {
+
+				ColonySet csvSet = new ColonySet(csvColonies.get());
+				ColonySet jsonSet = new ColonySet(jsonColonies.get());
+
+				//Put into memory the colonies from the CSV updated with colonies from the JSON file
+				ColonyReconciler reconciler = new ColonyReconciler(kMergePolicy);
+				ColonySet merged = reconciler.reconcile(csvSet, jsonSet);
+				System.err.println("Merged "+csvFile.getName()+" and "+jsonFile.getName()+": "+reconciler.getReport());
+				csvSet.clear();
+				jsonSet.clear();
+
+				//Write the JSON file from memory
+				FileParser<Colony> jsonParser = new JSONFileParser(jsonFile);
+				if(jsonParser.write(merged)) {
+					recordSources(csvFile, jsonFile);
+					backups.backupLater();
+				}
+				//The binary file no longer matches the JSON file
+				loadedFromBinary = false;
+				feeder.addAll(merged);
+			}
+
+			//Cases 3: CSV doesn't exist, JSON does, or both exist and have already been merged
+			else if(jsonFile.exists()) {
+				//Use the JSON file, or its binary copy, delivering colonies as they are read
+				feedSnapshot(jsonFile, feeder);
+			}
+
 			else {
-				//This colony isn't in the supplement. Use the version from the base.
-				finalSet.add(colony);
+				String message = "Neither "+csvFile.getAbsolutePath()+" or "+jsonFile.getAbsolutePath()+" exists! Failed to get colonies from the memory card.";
+				System.err.println(message);
 			}
-		}
-		//Add every colony that's in the supplement
-		for(Colony supplementColony : supplement) {
-			int id = supplementColony.getId();
 
-			Colony baseColony = base.getById(id);
-			if(baseColony == null) {
-				//If this colony is in the base set, it's already been added.
-				//Here, it isn't in the base set, so it's added to the final set.
-				finalSet.add(supplementColony);
+			feeder.finish();
+			//Wait until every colony is in the set
+			ready.get();
+
+			boolean unusedSlots = editStorage != EditStorage.SLOTS && slotsApplied != 0;
+			if(replayed != 0 || unusedSlots || !loadedFromBinary) {
+				//Fold them into colonies.json, and bring colonies.bin up to date,
+				//so that the next start is faster
+				writer.submitAll();
 			}
+
+			Thread focusWatcher = new Thread(new FocusWatcher(), "Focus file watcher");
+			focusWatcher.setDaemon(true);
+			focusWatcher.start();
 		}
 
-		return finalSet;
+		/**
+		 * Read the colonies from the JSON file, or from the binary file if it was written from
+		 * the current JSON file,
+		 * and pass them to a feeder as they are read
+		 */
+		private void feedSnapshot(File jsonFile, BatchFeeder feeder) throws IOException {
+			File binaryFile = new File(kDir+kBinaryFileName);
+			if(binaryFile.exists()) {
+				Set<Colony> binaryColonies = new BinaryFileParser(binaryFile, jsonFile).parse();
+				//An empty set means that the binary file could not be read
+				if(!binaryColonies.isEmpty()) {
+					loadedFromBinary = true;
+					for(Colony colony : binaryColonies) {
+						feeder.add(colony);
+					}
+					return;
+				}
+			}
+
+			JSONColonyReader reader = new JSONColonyReader(new BufferedReader(new FileReader(jsonFile)));
+			try {
+				while(true) {
+					Colony colony = reader.next();
+					if(colony == null) {
+						break;
+					}
+					feeder.add(colony);
+				}
+			} catch (JSONException e) {
+				//Keep the colonies read before the damage
+				e.printStackTrace();
+			}
+			finally {
+				reader.close();
+			}
+		}
 	}
 
 	/**
-	 * A thread that writes the colonies to the JSON file
+	 * Polls the focus file for changes. When it changes, the colonies added to and
+	 * removed from it are found on this thread, and only those colonies are changed,
+	 * using the delivery executor.
+	 * 
+	 * Android has no java.nio.file.WatchService, so the modification time and
+	 * length of the file are compared instead. This costs one stat call per poll.
 	 * 
 	 * @author Sam Crow
 	 */
-	private class FileWriteTask extends Thread {
+	private class FocusWatcher implements Runnable {
 
 		@Override
 		public void run() {
+			try {
+				while(true) {
+					synchronized(watchLock) {
+						watchLock.wait(kFocusPollMillis);
+						//Use no processor time while paused
+						while(!watching) {
+							watchLock.wait();
+						}
+					}
+					if(!focusFinder.hasChanged()) {
+						continue;
+					}
+					final FocusColonyFinder.Changes changes;
+					try {
+						changes = focusFinder.readChanges();
+					} catch (IOException e) {
+						System.err.println("Could not read focus colonies file");
+						e.printStackTrace();
+						continue;
+					}
+					if(changes.isEmpty()) {
+						continue;
+					}
+					delivery.execute(new Runnable() {
+						@Override
+						public void run() {
+							changes.applyTo(colonies);
+						}
+					});
+				}
+			} catch (InterruptedException e) {
+				//Stop watching
+			}
+		}
+	}
+
+	/**
+	 * Applies edits and focus status to loaded colonies, and adds them to
+	 * {@link MemoryCardDataProvider#colonies} in batches using the delivery executor.
+	 * Colonies are changed only before they are delivered, so this does not
+	 * need to synchronize with the thread that uses the set.
+	 * 
+	 * @author Sam Crow
+	 */
+	private class BatchFeeder {
+
+		/** Edited colonies */
+		private final ColonySet edits;
+
+		/**
+		 * Maps IDs to the edits that have been applied to loaded colonies. The edits
+		 * are not removed from {@link #edits}, because replaying may have changed them
+		 * since they were added, and the set finds colonies to remove by their values.
+		 */
+		private final IntHashMap<Colony> applied = new IntHashMap<Colony>();
+
+		/** The IDs of the focus colonies, in increasing order */
+		private final int[] focusIds;
+
+		/** The colonies waiting to be delivered */
+		private List<Colony> batch = new ArrayList<Colony>(kLoadBatchSize);
+
+		BatchFeeder(ColonySet edits, int[] focusIds) {
+			this.edits = edits;
+			this.focusIds = focusIds;
+		}
+
+		/**
+		 * Apply any edit and focus status to a colony and queue it for delivery
+		 * @param colony The colony, which must not be in the set yet
+		 */
+		void add(Colony colony) {
+			Colony edit = edits.getById(colony.getId());
+			if(edit != null) {
+				Colony.Snapshot state = edit.snapshot();
+				colony.restore(state.getX(), state.getY(), state.getFlags(), state.getModifiedTime());
+				applied.put(state.getId(), edit);
+			}
+			if(Arrays.binarySearch(focusIds, colony.getId()) >= 0) {
+				colony.setFocusColony(true);
+			}
+			batch.add(colony);
+			if(batch.size() == kLoadBatchSize) {
+				deliver();
+			}
+		}
+
+		/**
+		 * Queue every colony in a set for delivery, and empty the set
+		 * so that the colonies do not notify it of changes
+		 */
+		void addAll(ColonySet loaded) {
+			for(Colony colony : loaded) {
+				add(colony);
+			}
+			loaded.clear();
+		}
+
+		/**
+		 * Deliver the remaining colonies, including edited colonies that were not
+		 * in any file, and then complete {@link MemoryCardDataProvider#ready}
+		 */
+		void finish() {
+			List<Colony> added = new ArrayList<Colony>(edits.size() - applied.size());
+			for(Colony edit : edits) {
+				if(applied.get(edit.getId()) != edit) {
+					added.add(edit);
+				}
+			}
+			edits.clear();
+			applied.clear();
+			for(Colony colony : added) {
+				add(colony);
+			}
+			deliver();
+			delivery.execute(ready);
+		}
+
+		private void deliver() {
+			if(batch.isEmpty()) {
+				return;
+			}
+			final List<Colony> delivered = batch;
+			batch = new ArrayList<Colony>(kLoadBatchSize);
+			delivery.execute(new Runnable() {
+				@Override
+				public void run() {
+					colonies.addAll(delivered);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes edits to the slot file or the journal, and writes the colonies to the JSON and binary
+	 * files when the journal gets long. This runs on the writer's worker thread.
+	 * 
+	 * @author Sam Crow
+	 */
+	private class FileWriteTarget implements ColonyWriteBehind.Target {
+
+		@Override
+		public void writeColonies(Collection<Colony> edited) throws IOException {
+			if(editStorage == EditStorage.SLOTS) {
+				try {
+					//Overwrite only the edited colonies' slots, with one sync
+					slotFile.write(edited);
+				} catch (IOException e) {
+					//Could not write to the slot file. Write everything instead.
+					e.printStackTrace();
+					writeAll();
+				}
+				return;
+			}
+
+			int records;
+			try {
+				//One sync for the whole batch
+				records = journal.appendAll(edited);
+			} catch (IOException e) {
+				//Could not write to the journal. Write everything instead.
+				e.printStackTrace();
+				writeAll();
+				return;
+			}
+			if(records >= kCompactionThreshold) {
+				writeAll();
+			}
+		}
+
+		@Override
+		public void writeAll() throws IOException {
+			//Writing before every colony has been loaded would lose the others.
+			//This does not wait for loading, because a flush on the delivery thread
+			//would then wait for itself. The writer tries again later.
+			if(!ready.isDone()) {
+				throw new IOException("Not writing colonies until they have all been loaded");
+			}
+			try {
+				ready.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				System.err.println("Not writing colonies, because they could not all be loaded");
+				return;
+			}
+
 			File file = new File(kDir+kJsonFileName);
 
 			FileParser<Colony> parser = new JSONFileParser(file);
-			parser.write(colonies);
+			//The journal writes a stable snapshot, so that edits made during the write
+			//cannot interfere with it
+			if(!journal.compact(colonies, parser)) {
+				//The journal and the slots still hold the edits. The writer will try again.
+				throw new IOException("Could not write "+file);
+			}
+			recordJsonSource(file);
+			//Compressed on another thread, so that edits are not delayed
+			backups.backupLater();
+
+			//Written after the JSON file, so that it records the JSON file's fingerprint
+			new BinaryFileParser(new File(kDir+kBinaryFileName), file).write(colonies.snapshot().asColonies());
 
+			//Every colony in the slots is now in colonies.json
+			try {
+				slotFile.clear();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 }
@@ -1,17 +1,24 @@
 package org.samcrow.data.provider;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 import org.samcrow.data.Colony;
 import org.samcrow.data.ColonySet;
+import org.samcrow.data.ColonySnapshot;
 import org.samcrow.data.io.JSONParser;
 
 import android.os.Looper;
@@ -46,6 +53,16 @@ public class NetworkColonyProvider implements ColonyProvider {
 	 */
 	private volatile ColonySet colonies;
 
+	/**
+	 * Completed when the first set of colonies has been received
+	 */
+	private final FutureTask<ColonySet> ready = new FutureTask<ColonySet>(new Callable<ColonySet>() {
+		@Override
+		public ColonySet call() {
+			return colonies;
+		}
+	});
+
 	/**
 	 * Constructor
 	 * @param ipAddress The IP address to connect to
@@ -68,6 +85,23 @@ public class NetworkColonyProvider implements ColonyProvider {
 		return colonies;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#getSnapshot()
+	 */
+	@Override
+	public ColonySnapshot getSnapshot() {
+		ColonySet current = colonies;
+		return current != null ? current.snapshot() : ColonySnapshot.EMPTY;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#getReadyFuture()
+	 */
+	@Override
+	public Future<ColonySet> getReadyFuture() {
+		return ready;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.samcrow.data.provider.ColonyProvider#updateColonies()
 	 */
@@ -87,6 +121,30 @@ public class NetworkColonyProvider implements ColonyProvider {
 
 	}
 
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#flush()
+	 */
+	@Override
+	public void flush() {
+		//Submissions are sent to the server as soon as they are made
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#pauseWatching()
+	 */
+	@Override
+	public void pauseWatching() {
+		//The server is not checked for changes
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#resumeWatching()
+	 */
+	@Override
+	public void resumeWatching() {
+		//The server is not checked for changes
+	}
+
 
 	/**
 	 * This thread connects to the server, opens the input and output streams,
@@ -201,6 +259,8 @@ public class NetworkColonyProvider implements ColonyProvider {
 
 				try {
 					colonies = new ColonySet(new JSONParser().parseAll(new JSONObject(line).getJSONArray("colonies")));
+					//Does nothing after the first time
+					ready.run();
 				} catch (JSONException e) {
 					e.printStackTrace();
 				}
@@ -268,19 +328,25 @@ public class NetworkColonyProvider implements ColonyProvider {
 			waitForConnection();
 
 			synchronized(NetworkColonyProvider.this) {
-				JSONArray colonyArray = new JSONParser().encodeAll(colonies);
-
-				JSONObject request = new JSONObject();
 				try {
-					request.put("request", "update_all");
-					request.put("colonies", colonyArray);
-
-					output.println(request.toString());
+					//Write the request one colony at a time, instead of building it in memory
+					Writer writer = new BufferedWriter(new OutputStreamWriter(output));
+					JSONWriter request = new JSONWriter(writer);
+					request.object();
+					request.key("request").value("update_all");
+					request.key("colonies");
+					new JSONParser().writeAll(getSnapshot(), request);
+					request.endObject();
+					writer.flush();
+
+					output.println();
 
 					waitForLine();
 
 				} catch (JSONException e) {
 					e.printStackTrace();
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 
 			}
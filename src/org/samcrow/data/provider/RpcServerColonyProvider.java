@@ -1,7 +1,10 @@
 package org.samcrow.data.provider;
 
+import java.util.concurrent.Future;
+
 import org.samcrow.data.Colony;
 import org.samcrow.data.ColonySet;
+import org.samcrow.data.ColonySnapshot;
 
 /**
  * Connects to the JSON RPC server to get colony information. Also stores information on the memory card for backup.
@@ -29,6 +32,22 @@ public class RpcServerColonyProvider implements ColonyProvider {
 		return colonies;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#getSnapshot()
+	 */
+	@Override
+	public ColonySnapshot getSnapshot() {
+		return colonies.snapshot();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#getReadyFuture()
+	 */
+	@Override
+	public Future<ColonySet> getReadyFuture() {
+		return cardProvider.getReadyFuture();
+	}
+
 	/* (non-Javadoc)
 	 * @see org.samcrow.data.provider.ColonyProvider#updateColonies()
 	 */
@@ -48,4 +67,28 @@ public class RpcServerColonyProvider implements ColonyProvider {
 
 	}
 
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#flush()
+	 */
+	@Override
+	public void flush() {
+		//Nothing is written yet
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#pauseWatching()
+	 */
+	@Override
+	public void pauseWatching() {
+		//Nothing is watched yet
+	}
+
+	/* (non-Javadoc)
+	 * @see org.samcrow.data.provider.ColonyProvider#resumeWatching()
+	 */
+	@Override
+	public void resumeWatching() {
+		//Nothing is watched yet
+	}
+
 }
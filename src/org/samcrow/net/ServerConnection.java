@@ -1,19 +1,26 @@
 package org.samcrow.net;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.json.JSONException;
-import org.json.JSONObject;
+import org.json.JSONWriter;
 import org.samcrow.data.Colony;
-import org.samcrow.data.JSONSerializable;
+import org.samcrow.data.io.AtomicFile;
+import org.samcrow.data.io.ColonyWriteBehind;
+import org.samcrow.data.io.JSONParser;
 
 import android.app.Activity;
 import android.os.Environment;
@@ -37,6 +44,11 @@ import android.widget.Toast;
  * <li><strong>ColonySubmitTask:</strong> Sends updated data for one colony to
  * the server. Accesses the input and output streams. Modifies the list of
  * colonies.
+ * <li><strong>Server connection writer:</strong> A {@link ColonyWriteBehind}
+ * worker that runs ColonySubmitTasks for edited colonies. Bursts of edits are
+ * combined into one submission per colony. A submission that fails is tried
+ * again later. The colonies are written to the memory card when the writer
+ * is flushed.</li>
  * </ul>
  * 
  * @author Sam Crow
@@ -63,6 +75,23 @@ public class ServerConnection extends ColonyChangeCallbackManager {
 	/** The stream used to receive data from the server */
 	private BufferedReader input;
 
+	// Writing
+	/** Milliseconds without an edit before edits are sent and written */
+	private static final long kDebounceMillis = 500;
+	/** The maximum number of distinct colonies waiting to be sent */
+	private static final int kWriteQueueCapacity = 100;
+	/** Sends edits to the server on a background thread */
+	private final ColonyWriteBehind writer = new ColonyWriteBehind(
+			"Server connection writer", new SubmitTarget(), kDebounceMillis,
+			kWriteQueueCapacity);
+	/**
+	 * True if colonies have been sent since colonies&#46;json was last
+	 * written
+	 */
+	private volatile boolean fileStale = false;
+	/** Held while colonies&#46;json is being written */
+	private final Object fileLock = new Object();
+
 	// Colony change callback things
 
 	/**
@@ -105,19 +134,50 @@ public class ServerConnection extends ColonyChangeCallbackManager {
 	}
 
 	/**
-	 * Spawn a thread to separately push an updated colony entry to the server.
+	 * Queue an updated colony entry to be pushed to the server and written to
+	 * the memory card on a background thread.
 	 * 
 	 * @param colony
 	 *            The colony to update.
 	 */
-	public synchronized void updateColony(Colony colony) {
+	public void updateColony(Colony colony) {
 		// The colony, as a reference to an actual object in the list,
 		// should already have been updated in the list in memory.
+		writer.submit(colony);
+	}
+
+	/**
+	 * Send any updated colonies that are waiting, wait for them to be sent,
+	 * and then write the colonies to the memory card if any have been sent
+	 * since they were last written.
+	 * 
+	 * @param timeoutMillis
+	 *            The maximum time to wait for the colonies to be sent, in
+	 *            milliseconds
+	 * @return True if everything was sent and written, false if the timeout
+	 *         expired first or sending or writing failed
+	 */
+	public boolean flush(long timeoutMillis) {
+		if (!writer.flush(timeoutMillis)) {
+			return false;
+		}
+		if (fileStale) {
+			try {
+				writeFile();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return true;
+	}
 
-		// Spawn and start the thread
-		new ColonySubmitTask(colony).start();
-		// Spawn and start the thread to write the new data to the file
-		new ColonySubmitFileTask().start();
+	/**
+	 * @return The worker that sends and writes updated colonies, which
+	 *         provides metrics on the writes
+	 */
+	public ColonyWriteBehind getWriter() {
+		return writer;
 	}
 
 	/**
@@ -258,6 +318,20 @@ public class ServerConnection extends ColonyChangeCallbackManager {
 		 */
 		@Override
 		public void run() {
+			try {
+				submit();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Submit the colony on the current thread
+		 * 
+		 * @throws IOException
+		 *             if no response was received from the server
+		 */
+		public void submit() throws IOException {
 
 			waitForConnection();
 
@@ -266,7 +340,7 @@ public class ServerConnection extends ColonyChangeCallbackManager {
 			synchronized (ServerConnection.this) {
 				//TODO: create response
 
-				waitForLine();
+				readLine();
 				// should return "success".
 
 				fireCallback();
@@ -323,6 +397,24 @@ public class ServerConnection extends ColonyChangeCallbackManager {
 			return line;
 		}
 
+		/**
+		 * Block until the input stream receives a line, then return it.
+		 * 
+		 * @return The line received
+		 * @throws IOException
+		 *             if the stream could not be read or has been closed
+		 */
+		protected String readLine() throws IOException {
+			if (input == null) {
+				throw new IOException("Not connected to the server");
+			}
+			String line = input.readLine();
+			if (line == null) {
+				throw new IOException("The server closed the connection");
+			}
+			return line;
+		}
+
 		/**
 		 * Block while attempting to connect to the server. This method returns
 		 * when a connection has been made.
@@ -348,55 +440,100 @@ public class ServerConnection extends ColonyChangeCallbackManager {
 	}
 
 	/**
-	 * This class writes the set of colonies to a file named colonies&#46;csv.
+	 * Sends updated colonies to the server. This runs on the writer's worker
+	 * thread.
 	 * 
 	 * @author Sam Crow
 	 */
-	private class ColonySubmitFileTask extends Thread {
+	private class SubmitTarget implements ColonyWriteBehind.Target {
 
 		/*
 		 * (non-Javadoc)
 		 * 
-		 * @see java.lang.Thread#run()
+		 * @see org.samcrow.data.io.ColonyWriteBehind.Target#writeColonies(java.util.Collection)
 		 */
 		@Override
-		public void run() {
-			// If the memory card is available and writable
-			if (Environment.getExternalStorageState().equals(
-					Environment.MEDIA_MOUNTED)) {
+		public void writeColonies(Collection<Colony> updated) throws IOException {
+			for (Colony colony : updated) {
+				// Run the task on this thread, so that submissions never overlap
+				new ColonySubmitTask(colony).submit();
+			}
+			fileStale = true;
+		}
 
-				File directory = Environment.getExternalStorageDirectory();
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.samcrow.data.io.ColonyWriteBehind.Target#writeAll()
+		 */
+		@Override
+		public void writeAll() throws IOException {
+			List<Colony> all;
+			synchronized (colonies) {
+				all = new ArrayList<Colony>(colonies);
+			}
+			writeColonies(all);
+			writeFile();
+		}
+	}
 
-				if (!directory.exists()) {// If the directory doesn't exist
-					directory.mkdirs();// Create it
-				}
+	/**
+	 * Write the colonies to a file named colonies&#46;json on the memory card.
+	 * The colonies are written one at a time, without building the whole
+	 * document in memory.
+	 * 
+	 * @throws IOException
+	 *             if the memory card is not available or the file could not
+	 *             be written
+	 */
+	private void writeFile() throws IOException {
+		// If the memory card is not available and writable
+		if (!Environment.getExternalStorageState().equals(
+				Environment.MEDIA_MOUNTED)) {
+			throw new IOException("The memory card is not available");
+		}
+
+		File directory = Environment.getExternalStorageDirectory();
+
+		if (!directory.exists()) {// If the directory doesn't exist
+			directory.mkdirs();// Create it
+		}
 
-				// Open a file in the previously provided directory, named
-				// colonies.json
-				File jsonFile = new File(directory, "colonies.json");
+		// Open a file in the previously provided directory, named
+		// colonies.json
+		final File jsonFile = new File(directory, "colonies.json");
 
-				JSONObject json = new JSONObject();
+		synchronized (fileLock) {
+			// Colonies sent after this point are written next time
+			fileStale = false;
+			final List<Colony> all;
+			synchronized (colonies) {
+				all = new ArrayList<Colony>(colonies);
+			}
 
-				synchronized (colonies) {
-					for (JSONSerializable colony : colonies) {
+			try {
+				// Replace the file atomically, so that an interrupted
+				// write leaves the previous contents
+				AtomicFile.forFile(jsonFile).write(new AtomicFile.Contents() {
+					@Override
+					public void writeTo(OutputStream out) throws IOException {
+						Writer writer = new BufferedWriter(new OutputStreamWriter(out));
 						try {
-							// Add the JSON of this colony to the JSON array
-							json.append("colonies", colony.toJSON());
+							JSONWriter json = new JSONWriter(writer);
+							json.object();
+							json.key("colonies");
+							new JSONParser().writeAll(all, json);
+							json.endObject();
 						} catch (JSONException e) {
-							e.printStackTrace();
+							throw new IOException("Could not write " + jsonFile + ": " + e.getMessage());
 						}
+						writer.flush();
 					}
-				}
-
-				try {
-					json.write(new FileWriter(jsonFile));
-				} catch (JSONException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+				});
+			} catch (IOException e) {
+				fileStale = true;
+				throw e;
 			}
 		}
-
 	}
 }
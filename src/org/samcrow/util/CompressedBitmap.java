@@ -0,0 +1,260 @@
+package org.samcrow.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative integers stored as a compressed bitmap.
+ * <p>
+ * The bits are divided into blocks of {@link #kBlockBits} bits. Only blocks
+ * that contain at least one set bit are stored, in a table sorted by block
+ * number, so a sparse bitmap takes little memory and set operations skip
+ * empty regions entirely. Within a block, bits are stored in plain
+ * <code>long</code> words, so intersections and differences work on 64 bits
+ * at a time.
+ * </p>
+ * The number of set bits is kept up to date as bits change, so
+ * {@link #cardinality()} takes constant time.
+ * This class is not thread-safe.
+ *
+ * @author Sam Crow
+ */
+public class CompressedBitmap {
+
+	/** The number of words in each block */
+	private static final int kBlockWords = 64;
+	/** The number of bits in each block */
+	private static final int kBlockBits = kBlockWords * 64;
+	/** log2 of {@link #kBlockBits} */
+	private static final int kBlockShift = 12;
+
+	/** Block numbers of the stored blocks, sorted */
+	private int[] keys = new int[4];
+	/** The words of each stored block, parallel to {@link #keys} */
+	private long[][] blocks = new long[4][];
+	/** The number of set bits in each stored block, parallel to {@link #keys} */
+	private int[] counts = new int[4];
+	/** The number of stored blocks */
+	private int blockCount = 0;
+
+	/** The total number of set bits */
+	private int cardinality = 0;
+
+	/**
+	 * Determine if a bit is set
+	 *
+	 * @param index
+	 *            The bit index
+	 * @return True if the bit is set
+	 */
+	public boolean get(int index) {
+		int block = find(index >>> kBlockShift);
+		if (block < 0) {
+			return false;
+		}
+		return (blocks[block][(index & (kBlockBits - 1)) >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Set a bit
+	 *
+	 * @param index
+	 *            The bit index. Must not be negative.
+	 * @return True if the bit was not already set
+	 */
+	public boolean set(int index) {
+		checkIndex(index);
+		int key = index >>> kBlockShift;
+		int block = find(key);
+		if (block < 0) {
+			block = insertBlock(-block - 1, key);
+		}
+		long[] words = blocks[block];
+		int word = (index & (kBlockBits - 1)) >>> 6;
+		long mask = 1L << index;
+		if ((words[word] & mask) != 0) {
+			return false;
+		}
+		words[word] |= mask;
+		counts[block]++;
+		cardinality++;
+		return true;
+	}
+
+	/**
+	 * Clear a bit
+	 *
+	 * @param index
+	 *            The bit index
+	 * @return True if the bit was set
+	 */
+	public boolean clear(int index) {
+		int block = find(index >>> kBlockShift);
+		if (block < 0) {
+			return false;
+		}
+		long[] words = blocks[block];
+		int word = (index & (kBlockBits - 1)) >>> 6;
+		long mask = 1L << index;
+		if ((words[word] & mask) == 0) {
+			return false;
+		}
+		words[word] &= ~mask;
+		cardinality--;
+		if (--counts[block] == 0) {
+			removeBlock(block);
+		}
+		return true;
+	}
+
+	/**
+	 * Set or clear a bit
+	 *
+	 * @param index
+	 *            The bit index
+	 * @param value
+	 *            True to set the bit, false to clear it
+	 * @return True if the bit changed
+	 */
+	public boolean set(int index, boolean value) {
+		return value ? set(index) : clear(index);
+	}
+
+	/**
+	 * Clear all bits
+	 */
+	public void clear() {
+		Arrays.fill(blocks, 0, blockCount, null);
+		blockCount = 0;
+		cardinality = 0;
+	}
+
+	/**
+	 * @return The number of set bits
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+
+	/**
+	 * @return True if no bits are set
+	 */
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+
+	/**
+	 * Find the bits that are set in this bitmap and in every required bitmap,
+	 * and not set in any excluded bitmap.
+	 * <p>
+	 * This is fastest when this bitmap is the smallest of the bitmaps being
+	 * intersected, because only the blocks of this bitmap are visited.
+	 * </p>
+	 *
+	 * @param required
+	 *            Bitmaps whose bits must also be set. May be empty.
+	 * @param excluded
+	 *            Bitmaps whose bits must not be set. May be empty.
+	 * @param results
+	 *            An array that will be filled with the matching bit indexes,
+	 *            in increasing order. It may be shorter than the number of
+	 *            matches, or empty to only count them.
+	 * @return The total number of matching bits. If this is greater than the
+	 *         length of results, only the first results.length were stored.
+	 */
+	public int select(CompressedBitmap[] required, CompressedBitmap[] excluded, int[] results) {
+		int found = 0;
+		long[][] requiredWords = new long[required.length][];
+		long[][] excludedWords = new long[excluded.length][];
+		blocks:
+		for (int block = 0; block < blockCount; block++) {
+			int key = keys[block];
+			for (int i = 0; i < required.length; i++) {
+				int other = required[i].find(key);
+				if (other < 0) {
+					//Nothing in this block can match
+					continue blocks;
+				}
+				requiredWords[i] = required[i].blocks[other];
+			}
+			for (int i = 0; i < excluded.length; i++) {
+				int other = excluded[i].find(key);
+				excludedWords[i] = other >= 0 ? excluded[i].blocks[other] : null;
+			}
+
+			long[] words = blocks[block];
+			int base = key << kBlockShift;
+			for (int w = 0; w < kBlockWords; w++) {
+				long word = words[w];
+				for (int i = 0; i < required.length && word != 0; i++) {
+					word &= requiredWords[i][w];
+				}
+				for (int i = 0; i < excluded.length && word != 0; i++) {
+					if (excludedWords[i] != null) {
+						word &= ~excludedWords[i][w];
+					}
+				}
+				if (word == 0) {
+					continue;
+				}
+				if (found >= results.length) {
+					//Only counting
+					found += Long.bitCount(word);
+					continue;
+				}
+				while (word != 0) {
+					if (found < results.length) {
+						results[found] = base + (w << 6) + Long.numberOfTrailingZeros(word);
+					}
+					found++;
+					word &= word - 1;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Find a stored block
+	 *
+	 * @param key
+	 *            The block number
+	 * @return The index of the block in the table, or (-(insertion point) - 1)
+	 *         if it is not stored
+	 */
+	private int find(int key) {
+		return Arrays.binarySearch(keys, 0, blockCount, key);
+	}
+
+	private int insertBlock(int position, int key) {
+		if (blockCount == keys.length) {
+			int capacity = keys.length * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			blocks = Arrays.copyOf(blocks, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		int moved = blockCount - position;
+		System.arraycopy(keys, position, keys, position + 1, moved);
+		System.arraycopy(blocks, position, blocks, position + 1, moved);
+		System.arraycopy(counts, position, counts, position + 1, moved);
+		keys[position] = key;
+		blocks[position] = new long[kBlockWords];
+		counts[position] = 0;
+		blockCount++;
+		return position;
+	}
+
+	private void removeBlock(int position) {
+		int moved = blockCount - position - 1;
+		System.arraycopy(keys, position + 1, keys, position, moved);
+		System.arraycopy(blocks, position + 1, blocks, position, moved);
+		System.arraycopy(counts, position + 1, counts, position, moved);
+		blockCount--;
+		blocks[blockCount] = null;
+	}
+
+	private static void checkIndex(int index) {
+		if (index < 0) {
+			throw new IndexOutOfBoundsException("Negative bit index " + index);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package org.samcrow.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive int keys to object values.
+ * <p>
+ * This uses open addressing with linear probing, so keys are never boxed
+ * into {@link Integer} objects and a lookup touches only two arrays.
+ * Removal uses backward-shift deletion, so no tombstones are left behind
+ * and lookups stay fast no matter how many entries have been removed.
+ * </p>
+ * This class is not thread-safe.
+ *
+ * @author Sam Crow
+ * @param <V> The value type
+ */
+public class IntHashMap<V> {
+
+	/** The smallest number of slots in the table. Must be a power of two. */
+	private static final int kMinCapacity = 16;
+
+	/** Keys. A slot is empty if its value is null. */
+	private int[] keys;
+
+	/** Values, parallel to {@link #keys} */
+	private Object[] values;
+
+	/** The number of entries in this map */
+	private int size;
+
+	/** The number of entries at which the table will be expanded */
+	private int threshold;
+
+	/**
+	 * Constructor
+	 */
+	public IntHashMap() {
+		this(kMinCapacity);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param expectedSize
+	 *            The number of entries that this map should be able to hold
+	 *            without being resized
+	 */
+	public IntHashMap(int expectedSize) {
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	/**
+	 * Get the value associated with a key
+	 *
+	 * @param key
+	 *            The key to look up
+	 * @return The value, or null if the key is not in this map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		final int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return (V) values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Determine if a key is in this map
+	 *
+	 * @param key
+	 *            The key
+	 * @return True if the key has a value
+	 */
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Associate a value with a key, replacing any previous value
+	 *
+	 * @param key
+	 *            The key
+	 * @param value
+	 *            The value. Must not be null.
+	 * @return The value previously associated with the key, or null if there
+	 *         was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("IntHashMap does not accept null values");
+		}
+		final int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V old = (V) values[slot];
+				values[slot] = value;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > threshold) {
+			rehash(keys.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the value associated with a key
+	 *
+	 * @param key
+	 *            The key
+	 * @return The value that was removed, or null if the key was not in this
+	 *         map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		final int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V old = (V) values[slot];
+				shiftBack(slot);
+				size--;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove all entries from this map. The table keeps its current size.
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return The number of entries in this map
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return True if this map has no entries
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Fill the slot at the given position, which has just been emptied, by
+	 * moving back any following entries that would otherwise become
+	 * unreachable
+	 *
+	 * @param hole
+	 *            The slot that was emptied
+	 */
+	private void shiftBack(int hole) {
+		final int mask = keys.length - 1;
+		int slot = hole;
+		while (true) {
+			slot = (slot + 1) & mask;
+			if (values[slot] == null) {
+				break;
+			}
+			int home = mix(keys[slot]) & mask;
+			//Move the entry into the hole if the hole is cyclically between
+			//its home slot and its current slot
+			boolean movable = (slot > hole) ? (home <= hole || home > slot)
+					: (home <= hole && home > slot);
+			if (movable) {
+				keys[hole] = keys[slot];
+				values[hole] = values[slot];
+				hole = slot;
+			}
+		}
+		values[hole] = null;
+	}
+
+	private void rehash(int newCapacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(newCapacity);
+		final int mask = newCapacity - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = mix(oldKeys[i]) & mask;
+				while (values[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		//Keep the load factor at or below 1/2 so that probe sequences stay short
+		threshold = capacity / 2;
+	}
+
+	/**
+	 * Get the table size needed to hold a number of entries
+	 */
+	private static int tableSizeFor(int expectedSize) {
+		int capacity = kMinCapacity;
+		while (capacity / 2 < expectedSize && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Scramble the bits of a key so that sequential IDs spread across the
+	 * table
+	 */
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
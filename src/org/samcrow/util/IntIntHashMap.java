@@ -0,0 +1,140 @@
+package org.samcrow.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive int keys to primitive int values.
+ * <p>
+ * Like {@link IntHashMap}, this uses open addressing with linear probing,
+ * but neither keys nor values are boxed. Because every int is a valid value,
+ * a separate array records which slots are in use.
+ * </p>
+ * This class is not thread-safe.
+ *
+ * @author Sam Crow
+ */
+public class IntIntHashMap {
+
+	/** The smallest number of slots in the table. Must be a power of two. */
+	private static final int kMinCapacity = 16;
+
+	/** Keys */
+	private int[] keys;
+
+	/** Values, parallel to {@link #keys} */
+	private int[] values;
+
+	/** True for each slot that holds an entry */
+	private boolean[] used;
+
+	/** The number of entries in this map */
+	private int size;
+
+	/** The number of entries at which the table will be expanded */
+	private int threshold;
+
+	/**
+	 * Constructor
+	 */
+	public IntIntHashMap() {
+		allocate(kMinCapacity);
+	}
+
+	/**
+	 * Get the value associated with a key
+	 *
+	 * @param key
+	 *            The key to look up
+	 * @param missing
+	 *            The value to return if the key is not in this map
+	 * @return The value, or missing if the key is not in this map
+	 */
+	public int get(int key, int missing) {
+		final int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return missing;
+	}
+
+	/**
+	 * Associate a value with a key, replacing any previous value
+	 *
+	 * @param key
+	 *            The key
+	 * @param value
+	 *            The value
+	 */
+	public void put(int key, int value) {
+		final int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		used[slot] = true;
+		if (++size > threshold) {
+			rehash(keys.length * 2);
+		}
+	}
+
+	/**
+	 * Remove all entries from this map. The table keeps its current size.
+	 */
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/**
+	 * @return The number of entries in this map
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void rehash(int newCapacity) {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(newCapacity);
+		final int mask = newCapacity - 1;
+		for (int i = 0; i < oldUsed.length; i++) {
+			if (oldUsed[i]) {
+				int slot = mix(oldKeys[i]) & mask;
+				while (used[slot]) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				used[slot] = true;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+		//Keep the load factor at or below 1/2 so that probe sequences stay short
+		threshold = capacity / 2;
+	}
+
+	/**
+	 * Scramble the bits of a key so that sequential IDs spread across the
+	 * table
+	 */
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,131 @@
+package org.samcrow;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * A base class for benchmarks that run as tests.
+ * <p>
+ * Each measurement runs its task a few times without timing it, so that the
+ * code is compiled, and then reports the median of several timed runs.
+ * Results are printed, one line per measurement, so they can be compared
+ * between a workstation and a device.
+ * </p>
+ * Sizes that would not fit comfortably in the heap are skipped, so the same
+ * benchmarks can run on a device with a small heap.
+ *
+ * @author Sam Crow
+ */
+public abstract class BenchmarkCase extends TestCase {
+
+	/** The number of untimed runs before each measurement */
+	private static final int kWarmUpRuns = 2;
+
+	/** The number of timed runs. The median is reported. */
+	private static final int kTimedRuns = 5;
+
+	/**
+	 * A generous estimate of the heap used by one colony in a set, including
+	 * its membership and its entries in the set's hash table and ID index
+	 */
+	protected static final long kBytesPerColony = 400;
+
+	/**
+	 * Something to measure
+	 */
+	protected static interface Task {
+		/**
+		 * Run the task once
+		 * @throws Exception if the task fails. The benchmark fails too.
+		 */
+		public void run() throws Exception;
+	}
+
+	/**
+	 * Run a task several times and measure it
+	 * @param task The task
+	 * @return The median time of one run, in nanoseconds
+	 * @throws Exception if the task fails
+	 */
+	protected static long measure(Task task) throws Exception {
+		for(int i = 0; i < kWarmUpRuns; i++) {
+			task.run();
+		}
+		long[] times = new long[kTimedRuns];
+		for(int i = 0; i < kTimedRuns; i++) {
+			long start = System.nanoTime();
+			task.run();
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		return times[kTimedRuns / 2];
+	}
+
+	/**
+	 * Run a task once and count the bytes that it allocates
+	 * @param task The task
+	 * @return The number of bytes allocated by this thread while the task ran,
+	 * or -1 if this virtual machine cannot count allocations
+	 * @throws Exception if the task fails
+	 */
+	protected static long measureAllocation(Task task) throws Exception {
+		long before = allocatedBytes();
+		task.run();
+		long after = allocatedBytes();
+		if(before == -1 || after == -1) {
+			return -1;
+		}
+		return after - before;
+	}
+
+	/**
+	 * @return The number of bytes allocated by this thread so far, or -1 if
+	 * this virtual machine cannot count allocations
+	 */
+	private static long allocatedBytes() {
+		//Only some desktop virtual machines have this, and Android has none of it
+		try {
+			Object threads = Class.forName("java.lang.management.ManagementFactory")
+					.getMethod("getThreadMXBean").invoke(null);
+			Method method = Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) method.invoke(threads, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		} catch (LinkageError e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Determine if some number of colonies will fit in the heap
+	 * @param colonies The number of colonies that will be in memory at once
+	 * @return True if they will fit, with room to spare
+	 */
+	protected static boolean fits(long colonies) {
+		return colonies * kBytesPerColony < Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * Print the result of a measurement
+	 * @param what What was measured
+	 * @param size The number of colonies
+	 * @param nanos The time taken, in nanoseconds
+	 * @param detail More information about the result, or an empty string
+	 */
+	protected void report(String what, int size, long nanos, String detail) {
+		System.out.println(String.format("%s: %s, %d colonies: %.2f ms%s",
+				getClass().getSimpleName(), what, size, nanos / 1e6, detail));
+	}
+
+	/**
+	 * Print that a size was skipped because it would not fit in the heap
+	 * @param size The number of colonies
+	 */
+	protected void reportSkipped(int size) {
+		System.out.println(String.format("%s: %d colonies skipped, heap is too small",
+				getClass().getSimpleName(), size));
+	}
+}
@@ -0,0 +1,70 @@
+package org.samcrow.data;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that colonies with coordinates that cannot be put in a
+ * {@link ColonyQuadtree} are kept out of it, instead of growing the root
+ * forever.
+ *
+ * @author Sam Crow
+ */
+public class ColonyQuadtreeTest extends TestCase {
+
+	private ColonySet colonies;
+	private ColonyQuadtree tree;
+	private final Colony[] results = new Colony[16];
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		colonies = new ColonySet();
+		for(int id = 1; id <= 10; id++) {
+			colonies.add(new Colony(id, id * 10, id * 5, Colony.ACTIVE, Colony.NOT_MODIFIED));
+		}
+		tree = new ColonyQuadtree();
+		tree.track(colonies);
+	}
+
+	public void testAddNotFinite() {
+		colonies.add(new Colony(11, Double.POSITIVE_INFINITY, 5, Colony.ACTIVE, Colony.NOT_MODIFIED));
+		colonies.add(new Colony(12, 5, Double.NEGATIVE_INFINITY, Colony.ACTIVE, Colony.NOT_MODIFIED));
+		colonies.add(new Colony(13, Double.NaN, Double.NaN, Colony.ACTIVE, Colony.NOT_MODIFIED));
+		colonies.add(new Colony(14, 1e300, -1e300, Colony.ACTIVE, Colony.NOT_MODIFIED));
+
+		assertEquals(14, tree.size());
+		assertEquals(10, queryAll());
+	}
+
+	public void testMoveOutAndBack() {
+		Colony colony = colonies.getById(3);
+		colony.setX(Double.POSITIVE_INFINITY);
+		assertEquals(9, queryAll());
+
+		colony.setY(Double.NaN);
+		assertEquals(9, queryAll());
+
+		colony.setX(30);
+		colony.setY(15);
+		assertEquals(10, queryAll());
+		assertEquals(1, tree.query(29, 14, 31, 16, results));
+		assertSame(colony, results[0]);
+	}
+
+	public void testRemoveNotFinite() {
+		Colony colony = new Colony(11, Double.NaN, 0, Colony.ACTIVE, Colony.NOT_MODIFIED);
+		colonies.add(colony);
+		colonies.remove(colony);
+		assertEquals(10, tree.size());
+		assertEquals(10, queryAll());
+	}
+
+	/**
+	 * @return The number of colonies the tree finds anywhere
+	 */
+	private int queryAll() {
+		return tree.query(-Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, results);
+	}
+}
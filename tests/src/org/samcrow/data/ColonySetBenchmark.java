@@ -0,0 +1,98 @@
+package org.samcrow.data;
+
+import java.util.Random;
+
+import org.samcrow.BenchmarkCase;
+
+/**
+ * Measures {@link ColonySet#getById(int)} and
+ * {@link ColonyReconciler#reconcile(ColonySet, ColonySet)} from 1,000 to
+ * 1,000,000 colonies.
+ * <p>
+ * Both should grow linearly with the number of colonies: a lookup takes
+ * about the same time at every size, and a merge does one lookup for each
+ * colony in each set.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+public class ColonySetBenchmark extends BenchmarkCase {
+
+	private static final int[] kSizes = { 1000, 10000, 100000, 1000000 };
+
+	public void testLookup() throws Exception {
+		for(int size : kSizes) {
+			if(!fits(size)) {
+				reportSkipped(size);
+				continue;
+			}
+			final ColonySet colonies = createColonies(size, 0);
+			//Look up every colony once, in random order
+			final int[] ids = new int[size];
+			for(int i = 0; i < size; i++) {
+				ids[i] = i;
+			}
+			shuffle(ids, new Random(size));
+
+			long nanos = measure(new Task() {
+				@Override
+				public void run() {
+					int found = 0;
+					for(int id : ids) {
+						if(colonies.getById(id) != null) {
+							found++;
+						}
+					}
+					assertEquals(ids.length, found);
+				}
+			});
+			report("lookup", size, nanos, String.format(", %.1f ns per lookup", (double) nanos / size));
+		}
+	}
+
+	public void testMerge() throws Exception {
+		for(int size : kSizes) {
+			//Two input sets and the merged set
+			if(!fits(3L * size)) {
+				reportSkipped(size);
+				continue;
+			}
+			//Half of the supplement's colonies are also in the base
+			final ColonySet base = createColonies(size, 0);
+			final ColonySet supplement = createColonies(size, size / 2);
+			final int expected = size + size / 2;
+
+			long nanos = measure(new Task() {
+				@Override
+				public void run() {
+					ColonySet merged = new ColonyReconciler(ColonyReconciler.NEWEST_WINS).reconcile(base, supplement);
+					assertEquals(expected, merged.size());
+				}
+			});
+			report("merge", size, nanos, String.format(", %.1f ns per colony", (double) nanos / (2 * size)));
+		}
+	}
+
+	/**
+	 * Create a set of colonies with consecutive IDs
+	 * @param count The number of colonies
+	 * @param firstId The ID of the first colony
+	 * @return The colonies
+	 */
+	private static ColonySet createColonies(int count, int firstId) {
+		ColonySet colonies = new ColonySet((int) (count / .75f) + 1);
+		for(int id = firstId; id < firstId + count; id++) {
+			colonies.add(new Colony(id, id % 1000, id / 1000, Colony.ACTIVE, Colony.NOT_MODIFIED));
+		}
+		return colonies;
+	}
+
+	private static void shuffle(int[] values, Random random) {
+		for(int i = values.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = values[i];
+			values[i] = values[j];
+			values[j] = temp;
+		}
+	}
+}
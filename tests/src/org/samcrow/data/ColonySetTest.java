@@ -0,0 +1,134 @@
+package org.samcrow.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that removing a colony from a {@link ColonySet} releases the colony
+ * that the set holds, even when the argument is a different but equal object.
+ *
+ * @author Sam Crow
+ */
+public class ColonySetTest extends TestCase {
+
+	private ColonySet colonies;
+	private final List<Colony> removed = new ArrayList<Colony>();
+	private final List<Colony> changed = new ArrayList<Colony>();
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		colonies = new ColonySet();
+		for(int id = 1; id <= 10; id++) {
+			colonies.add(new Colony(id, id * 10, id * 5, Colony.ACTIVE, Colony.NOT_MODIFIED));
+		}
+		colonies.addChangeListener(new ColonySet.ChangeListener() {
+			@Override
+			public void colonyAdded(Colony colony) {
+			}
+
+			@Override
+			public void colonyRemoved(Colony colony) {
+				removed.add(colony);
+			}
+
+			@Override
+			public void colonyChanged(Colony colony) {
+				changed.add(colony);
+			}
+		});
+	}
+
+	public void testRemoveEqualCopy() {
+		Colony stored = colonies.getById(4);
+		assertTrue(colonies.remove(copyOf(stored)));
+
+		assertEquals(9, colonies.size());
+		assertNull(colonies.getById(4));
+		assertEquals(1, removed.size());
+		assertSame(stored, removed.get(0));
+		assertEquals(9, colonies.snapshot().size());
+
+		//The removed colony no longer belongs to the set
+		stored.setVisited(true);
+		assertTrue(changed.isEmpty());
+		assertEquals(9, colonies.snapshot().size());
+
+		//A new colony with the same ID is indexed normally
+		Colony replacement = new Colony(4, 1, 2, Colony.ACTIVE, Colony.NOT_MODIFIED);
+		assertTrue(colonies.add(replacement));
+		assertSame(replacement, colonies.getById(4));
+		assertTrue(colonies.remove(replacement));
+		assertNull(colonies.getById(4));
+	}
+
+	public void testRemoveNotEqual() {
+		Colony stored = colonies.getById(4);
+		Colony moved = new Colony(4, 0, 0, Colony.ACTIVE, Colony.NOT_MODIFIED);
+		assertFalse(colonies.remove(moved));
+		assertEquals(10, colonies.size());
+		assertSame(stored, colonies.getById(4));
+		assertTrue(removed.isEmpty());
+	}
+
+	public void testRemoveAfterChange() {
+		Colony stored = colonies.getById(6);
+		//Moving the colony changes its hash code
+		stored.setX(1234);
+		assertTrue(colonies.remove(stored));
+		assertEquals(9, colonies.size());
+		assertNull(colonies.getById(6));
+		assertFalse(colonies.contains(stored));
+	}
+
+	public void testRemoveDuplicateId() {
+		Colony first = colonies.getById(2);
+		Colony second = new Colony(2, 99, 99, Colony.ACTIVE, Colony.NOT_MODIFIED);
+		assertTrue(colonies.add(second));
+		assertSame(first, colonies.getById(2));
+
+		assertTrue(colonies.remove(copyOf(second)));
+		assertSame(second, removed.get(0));
+		assertSame(first, colonies.getById(2));
+
+		assertTrue(colonies.remove(copyOf(first)));
+		assertSame(first, removed.get(1));
+		assertNull(colonies.getById(2));
+		assertEquals(9, colonies.size());
+	}
+
+	public void testSnapshotAfterRenumbering() {
+		colonies.snapshot();
+		//Enough removals to renumber the remaining colonies' slots
+		for(int round = 0; round < 10; round++) {
+			for(int id = 100; id < 110; id++) {
+				colonies.add(new Colony(id, id, id, Colony.ACTIVE, Colony.NOT_MODIFIED));
+			}
+			for(int id = 100; id < 110; id++) {
+				assertTrue(colonies.remove(copyOf(colonies.getById(id))));
+			}
+		}
+		colonies.getById(3).setVisited(true);
+
+		ColonySnapshot snapshot = colonies.snapshot();
+		assertEquals(10, snapshot.size());
+		int count = 0;
+		for(Colony.Snapshot state : snapshot) {
+			assertTrue(state.getId() >= 1 && state.getId() <= 10);
+			assertEquals(state.getId() == 3, (state.getFlags() & Colony.VISITED) != 0);
+			count++;
+		}
+		assertEquals(10, count);
+	}
+
+	/**
+	 * @return A different colony that is equal to a colony
+	 */
+	private static Colony copyOf(Colony colony) {
+		return new Colony(colony.getId(), colony.getX(), colony.getY(), colony.getFlags(), Colony.NOT_MODIFIED);
+	}
+}
@@ -0,0 +1,210 @@
+package org.samcrow.data.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Stops writes to an {@link AtomicFile} at each stage and checks that the
+ * file always has either its old contents or its new contents.
+ *
+ * @author Sam Crow
+ */
+public class AtomicFileTest extends TestCase {
+
+	private static final String kOldContents = "{\"colonies\":[{\"id\":1}]}";
+	private static final String kNewContents = "{\"colonies\":[{\"id\":1},{\"id\":2},{\"id\":3}]}";
+
+	private File dir;
+	private File target;
+	private File tempFile;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		dir = createTempDir();
+		target = new File(dir, "colonies.json");
+		tempFile = new File(target.getPath() + ".tmp");
+		writeString(target, kOldContents);
+	}
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		deleteAll(dir);
+	}
+
+	public void testWriteReplacesContents() throws IOException {
+		new AtomicFile(target).write(new FailingContents(kNewContents, -1, false));
+		assertEquals(kNewContents, readString(target));
+		assertFalse(tempFile.exists());
+	}
+
+	public void testFailureBeforeAnyContents() {
+		assertWriteFails(new FailingContents(kNewContents, 0, false));
+	}
+
+	public void testFailurePartWayThroughContents() {
+		//Some bytes have reached the temporary file
+		assertWriteFails(new FailingContents(kNewContents, kNewContents.length() / 2, false));
+	}
+
+	public void testFailureAfterAllContents() {
+		//Everything has been written, but the write has not been flushed or synced
+		assertWriteFails(new FailingContents(kNewContents, kNewContents.length(), false));
+	}
+
+	public void testRuntimeExceptionInContents() {
+		assertWriteFails(new FailingContents(kNewContents, kNewContents.length() / 2, true));
+	}
+
+	public void testStoppedBeforeRename() throws IOException {
+		//The application stopped after the temporary file was synced, but before it was renamed
+		writeString(tempFile, kNewContents.substring(0, 10));
+		assertEquals(kOldContents, readString(target));
+
+		//The next write replaces the leftover temporary file
+		new AtomicFile(target).write(new FailingContents(kNewContents, -1, false));
+		assertEquals(kNewContents, readString(target));
+		assertFalse(tempFile.exists());
+	}
+
+	public void testRenameFailure() throws IOException {
+		//A non-empty directory cannot be replaced by renaming a file
+		File blocked = new File(dir, "blocked");
+		assertTrue(blocked.mkdir());
+		File inside = new File(blocked, "inside");
+		writeString(inside, kOldContents);
+		try {
+			new AtomicFile(blocked).write(new FailingContents(kNewContents, -1, false));
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			//Expected
+		}
+		assertTrue(blocked.isDirectory());
+		assertEquals(kOldContents, readString(inside));
+	}
+
+	public void testWriteAfterFailure() throws IOException {
+		AtomicFile file = new AtomicFile(target);
+		try {
+			file.write(new FailingContents(kNewContents, 3, false));
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			//Expected
+		}
+		file.write(new FailingContents(kNewContents, -1, false));
+		assertEquals(kNewContents, readString(target));
+	}
+
+	/**
+	 * Check that a write fails and leaves the target with its old contents
+	 */
+	private void assertWriteFails(AtomicFile.Contents contents) {
+		try {
+			new AtomicFile(target).write(contents);
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			//Expected
+		}
+		try {
+			assertEquals(kOldContents, readString(target));
+		} catch (IOException e) {
+			fail("Could not read " + target + ": " + e);
+		}
+		assertFalse("Temporary file left behind", tempFile.exists());
+	}
+
+	/**
+	 * Writes some text, failing after a number of bytes
+	 */
+	private static class FailingContents implements AtomicFile.Contents {
+		private final byte[] bytes;
+		/** The number of bytes to write before failing, or -1 to write all of them */
+		private final int failAfter;
+		/** True to fail with a RuntimeException instead of an IOException */
+		private final boolean runtime;
+
+		FailingContents(String text, int failAfter, boolean runtime) {
+			this.bytes = text.getBytes();
+			this.failAfter = failAfter;
+			this.runtime = runtime;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			for(int i = 0; i < bytes.length; i++) {
+				if(i == failAfter) {
+					fail();
+				}
+				out.write(bytes[i]);
+			}
+			if(failAfter == bytes.length) {
+				fail();
+			}
+		}
+
+		private void fail() throws IOException {
+			if(runtime) {
+				throw new IllegalStateException("Stopped by test");
+			}
+			throw new IOException("Stopped by test");
+		}
+	}
+
+	static File createTempDir() throws IOException {
+		File dir = File.createTempFile("test", "");
+		if(!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create " + dir);
+		}
+		return dir;
+	}
+
+	static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+	static void writeString(File file, String text) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	static String readString(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			int offset = 0;
+			while(offset < bytes.length) {
+				int count = in.read(bytes, offset, bytes.length - offset);
+				if(count == -1) {
+					break;
+				}
+				offset += count;
+			}
+			return new String(bytes, 0, offset, "UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+}
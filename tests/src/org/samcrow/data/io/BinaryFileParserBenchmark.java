@@ -0,0 +1,71 @@
+package org.samcrow.data.io;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.samcrow.BenchmarkCase;
+import org.samcrow.data.Colony;
+
+/**
+ * Compares loading 100,000 colonies from colonies.bin with
+ * {@link BinaryFileParser} against loading them from colonies.json with
+ * {@link JSONFileParser}. Both the time and the bytes allocated are reported.
+ *
+ * @author Sam Crow
+ */
+public class BinaryFileParserBenchmark extends BenchmarkCase {
+
+	private static final int kSize = 100000;
+
+	private File dir;
+	private File jsonFile;
+	private File binaryFile;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		dir = AtomicFileTest.createTempDir();
+		jsonFile = new File(dir, "colonies.json");
+		binaryFile = new File(dir, "colonies.bin");
+
+		Set<Colony> colonies = new LinkedHashSet<Colony>();
+		for(int id = 1; id <= kSize; id++) {
+			int flags = Colony.ACTIVE | (id % 3 == 0 ? Colony.VISITED : 0);
+			colonies.add(new Colony(id, (id % 1000) * 1.25, (id / 1000) * 2.5, flags, 1340000000000L + id));
+		}
+		assertTrue(new JSONFileParser(jsonFile).write(colonies));
+		assertTrue(new BinaryFileParser(binaryFile).write(colonies));
+	}
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		AtomicFileTest.deleteAll(dir);
+	}
+
+	public void testLoadJSON() throws Exception {
+		measureLoad("JSON load", new JSONFileParser(jsonFile), jsonFile);
+	}
+
+	public void testLoadBinary() throws Exception {
+		measureLoad("binary load", new BinaryFileParser(binaryFile), binaryFile);
+	}
+
+	private void measureLoad(String what, final FileParser<Colony> parser, File file) throws Exception {
+		Task load = new Task() {
+			@Override
+			public void run() {
+				assertEquals(kSize, parser.parse().size());
+			}
+		};
+		long nanos = measure(load);
+		long bytes = measureAllocation(load);
+		String allocated = bytes == -1 ? "unknown" : String.format("%.1f MB", bytes / 1e6);
+		report(what, kSize, nanos, String.format(", %s allocated, %.1f MB file", allocated, file.length() / 1e6));
+	}
+}
@@ -0,0 +1,35 @@
+package org.samcrow.data.io;
+
+import junit.framework.TestCase;
+
+import org.samcrow.data.Colony;
+
+/**
+ * Checks that colonies encoded by {@link CSVParser} are read back with the
+ * same coordinates.
+ *
+ * @author Sam Crow
+ */
+public class CSVParserTest extends TestCase {
+
+	private final CSVParser parser = new CSVParser();
+
+	public void testCoordinatesRoundTrip() {
+		double[] values = { 0, 12, 12.5, -3.25, 1234.5678, 0.1, 1e-7, 98765.4321e3 };
+		for(double x : values) {
+			for(double y : values) {
+				Colony colony = new Colony(42, x, y, true);
+				Colony parsed = parser.parseOne(parser.encodeOne(colony));
+				assertNotNull(parser.encodeOne(colony), parsed);
+				assertEquals(42, parsed.getId());
+				assertEquals(x, parsed.getX(), 0);
+				assertEquals(y, parsed.getY(), 0);
+			}
+		}
+	}
+
+	public void testEncodeFormat() {
+		assertEquals("7,10.5,20.0,A,,", parser.encodeOne(new Colony(7, 10.5, 20, true)));
+		assertEquals("8,1.0,2.0, ,,", parser.encodeOne(new Colony(8, 1, 2, false)));
+	}
+}
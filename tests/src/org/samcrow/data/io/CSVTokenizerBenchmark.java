@@ -0,0 +1,107 @@
+package org.samcrow.data.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+
+import org.samcrow.BenchmarkCase;
+
+/**
+ * Measures the throughput of {@link CSVTokenizer} alone, and of
+ * {@link CSVFileParser#parse()}, on a census file of 500,000 lines
+ *
+ * @author Sam Crow
+ */
+public class CSVTokenizerBenchmark extends BenchmarkCase {
+
+	private static final int kSize = 500000;
+
+	private File dir;
+	private File file;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		dir = AtomicFileTest.createTempDir();
+		file = new File(dir, "colonies.csv");
+		writeCensus(file, kSize);
+	}
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		AtomicFileTest.deleteAll(dir);
+	}
+
+	public void testTokenize() throws Exception {
+		long nanos = measure(new Task() {
+			@Override
+			public void run() throws Exception {
+				Reader reader = new FileReader(file);
+				try {
+					CSVTokenizer tokenizer = new CSVTokenizer(reader);
+					int count = 0;
+					while(tokenizer.nextLine()) {
+						if(tokenizer.parseInt(0) && tokenizer.parseDouble(1) && tokenizer.parseDouble(2)) {
+							count++;
+						}
+					}
+					assertEquals(kSize, count);
+				}
+				finally {
+					reader.close();
+				}
+			}
+		});
+		reportThroughput("tokenize", nanos);
+	}
+
+	public void testParse() throws Exception {
+		if(!fits(kSize)) {
+			reportSkipped(kSize);
+			return;
+		}
+		long nanos = measure(new Task() {
+			@Override
+			public void run() {
+				assertEquals(kSize, new CSVFileParser(file).parse().size());
+			}
+		});
+		reportThroughput("parse", nanos);
+	}
+
+	private void reportThroughput(String what, long nanos) {
+		double megabytes = file.length() / 1e6;
+		report(what, kSize, nanos, String.format(", %.1f MB file, %.1f MB/s", megabytes, megabytes / (nanos / 1e9)));
+	}
+
+	/**
+	 * Write a census file with whole and decimal coordinates, in the format
+	 * that {@link CSVParser} reads
+	 * @param file The file to write
+	 * @param count The number of lines
+	 */
+	static void writeCensus(File file, int count) throws Exception {
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try {
+			for(int id = 1; id <= count; id++) {
+				if(id % 2 == 0) {
+					out.print(id + ", " + (id % 1000) + ", " + (id / 1000) + ", A,,\n");
+				}
+				else {
+					out.print(id + "," + (id % 1000) * 0.25 + "," + (id / 1000) * 1.5 + ",A,,\n");
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+}
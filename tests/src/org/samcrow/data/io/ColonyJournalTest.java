@@ -0,0 +1,231 @@
+package org.samcrow.data.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.samcrow.data.Colony;
+import org.samcrow.data.ColonySet;
+
+/**
+ * Stops journal compactions at each stage and checks that no edit is lost.
+ *
+ * @author Sam Crow
+ */
+public class ColonyJournalTest extends TestCase {
+
+	private File dir;
+	private File journalFile;
+	private File compactingFile;
+	private ColonyJournal journal;
+
+	/** The colonies as they were last written to the snapshot */
+	private SnapshotParser snapshot;
+	/** The colonies as they are in memory */
+	private ColonySet colonies;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		dir = AtomicFileTest.createTempDir();
+		journalFile = new File(dir, "colonies.journal");
+		compactingFile = new File(journalFile.getPath() + ".compacting");
+		journal = new ColonyJournal(journalFile);
+
+		colonies = new ColonySet();
+		for(int id = 1; id <= 5; id++) {
+			colonies.add(new Colony(id, id * 10, id * 20, Colony.ACTIVE, Colony.NOT_MODIFIED));
+		}
+		snapshot = new SnapshotParser();
+		assertTrue(snapshot.write(colonies.snapshot().asColonies()));
+	}
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		journal.close();
+		AtomicFileTest.deleteAll(dir);
+	}
+
+	public void testCompactWritesSnapshot() throws IOException {
+		visit(2);
+		visit(4);
+		assertTrue(journal.compact(colonies, snapshot));
+		assertFalse(journalFile.exists());
+		assertFalse(compactingFile.exists());
+		assertEquals(0, journal.size());
+		assertVisited(reload(), 2, 4);
+	}
+
+	public void testSnapshotWriteFails() throws IOException {
+		visit(1);
+		visit(3);
+		snapshot.failure = SnapshotParser.kReturnFalse;
+		assertFalse(journal.compact(colonies, snapshot));
+		assertTrue("The moved journal was deleted", compactingFile.exists());
+		assertVisited(reload(), 1, 3);
+	}
+
+	public void testSnapshotWriteThrows() throws IOException {
+		visit(1);
+		visit(3);
+		snapshot.failure = SnapshotParser.kThrow;
+		try {
+			journal.compact(colonies, snapshot);
+			fail("Expected the parser's exception");
+		} catch (IllegalStateException e) {
+			//Expected
+		}
+		assertTrue("The moved journal was deleted", compactingFile.exists());
+		assertVisited(reload(), 1, 3);
+	}
+
+	public void testEditsAfterFailedCompaction() throws IOException {
+		visit(1);
+		snapshot.failure = SnapshotParser.kReturnFalse;
+		assertFalse(journal.compact(colonies, snapshot));
+		//Edits continue in a new journal
+		visit(2);
+		assertTrue(journalFile.exists());
+		assertVisited(reload(), 1, 2);
+
+		//The next compaction fails too, and keeps both journals' edits
+		visit(3);
+		assertFalse(journal.compact(colonies, snapshot));
+		assertFalse(journalFile.exists());
+		assertTrue(compactingFile.exists());
+		assertVisited(reload(), 1, 2, 3);
+
+		snapshot.failure = SnapshotParser.kNone;
+		visit(5);
+		assertTrue(journal.compact(colonies, snapshot));
+		assertFalse(compactingFile.exists());
+		assertVisited(reload(), 1, 2, 3, 5);
+	}
+
+	public void testStoppedBeforeMovedJournalDeleted() throws IOException {
+		visit(2);
+		//The snapshot was written, but the application stopped before the moved journal was deleted
+		snapshot.failure = SnapshotParser.kWriteThenReturnFalse;
+		assertFalse(journal.compact(colonies, snapshot));
+		assertTrue(compactingFile.exists());
+		//Replaying the moved journal again over the snapshot that already has its edits changes nothing
+		assertVisited(reload(), 2);
+	}
+
+	public void testIncompleteLastRecord() throws IOException {
+		visit(1);
+		journal.close();
+		//A write that was interrupted part way through a record
+		OutputStream out = new FileOutputStream(journalFile, true);
+		try {
+			out.write("{\"id\":2,\"visited\":tr".getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+		ColonySet loaded = snapshot.load();
+		assertEquals(1, new ColonyJournal(journalFile).replay(loaded));
+		assertVisited(loaded, 1);
+	}
+
+	/**
+	 * Mark a colony as visited and journal the edit
+	 */
+	private void visit(int id) throws IOException {
+		Colony colony = colonies.getById(id);
+		colony.setVisited(true);
+		journal.append(colony);
+	}
+
+	/**
+	 * Load the colonies the way the application does after a restart: read
+	 * the last snapshot and replay the journals over it
+	 */
+	private ColonySet reload() {
+		ColonySet loaded = snapshot.load();
+		new ColonyJournal(journalFile).replay(loaded);
+		return loaded;
+	}
+
+	/**
+	 * Check that the colonies with some IDs, and only those, are visited, and
+	 * that no colony has moved
+	 */
+	private static void assertVisited(ColonySet loaded, int... ids) {
+		Set<Integer> visited = new HashSet<Integer>();
+		for(int id : ids) {
+			visited.add(id);
+		}
+		assertEquals(5, loaded.size());
+		for(int id = 1; id <= 5; id++) {
+			Colony colony = loaded.getById(id);
+			assertNotNull(colony);
+			assertEquals(id * 10, colony.getX(), 0);
+			assertEquals(id * 20, colony.getY(), 0);
+			assertTrue(colony.isActive());
+			assertEquals("Colony " + id, visited.contains(id), colony.isVisited());
+		}
+	}
+
+	/**
+	 * Keeps a snapshot in memory, and can fail when asked to write it
+	 */
+	private static class SnapshotParser implements FileParser<Colony> {
+		static final int kNone = 0;
+		static final int kReturnFalse = 1;
+		static final int kThrow = 2;
+		static final int kWriteThenReturnFalse = 3;
+
+		int failure = kNone;
+		private Set<Colony> colonies = new HashSet<Colony>();
+
+		@Override
+		public boolean write(Set<Colony> values) {
+			if(failure == kThrow) {
+				throw new IllegalStateException("Stopped by test");
+			}
+			if(failure == kReturnFalse) {
+				return false;
+			}
+			Set<Colony> copy = new HashSet<Colony>();
+			for(Colony colony : values) {
+				copy.add(new Colony(colony.getId(), colony.getX(), colony.getY(), colony.getFlags(), Colony.NOT_MODIFIED));
+			}
+			colonies = copy;
+			return failure == kNone;
+		}
+
+		@Override
+		public Set<Colony> parse() {
+			return load();
+		}
+
+		ColonySet load() {
+			ColonySet loaded = new ColonySet();
+			for(Colony colony : colonies) {
+				loaded.add(new Colony(colony.getId(), colony.getX(), colony.getY(), colony.getFlags(), Colony.NOT_MODIFIED));
+			}
+			return loaded;
+		}
+
+		@Override
+		public Colony parseOne(String oneString) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String encodeOne(Colony value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
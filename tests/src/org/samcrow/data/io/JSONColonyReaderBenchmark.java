@@ -0,0 +1,83 @@
+package org.samcrow.data.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.samcrow.BenchmarkCase;
+import org.samcrow.data.Colony;
+
+/**
+ * Measures the throughput of {@link JSONColonyReader} on colonies.json files
+ * of one to about thirty megabytes.
+ * <p>
+ * The colonies are counted and dropped as they are read, so this measures
+ * the reader alone. The bytes allocated for each colony should stay the same
+ * as the file grows.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+public class JSONColonyReaderBenchmark extends BenchmarkCase {
+
+	private static final int[] kSizes = { 10000, 100000, 300000 };
+
+	private File dir;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		dir = AtomicFileTest.createTempDir();
+	}
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		AtomicFileTest.deleteAll(dir);
+	}
+
+	public void testRead() throws Exception {
+		for(final int size : kSizes) {
+			if(!fits(size)) {
+				reportSkipped(size);
+				continue;
+			}
+			final File file = new File(dir, "colonies-" + size + ".json");
+			Set<Colony> colonies = new LinkedHashSet<Colony>();
+			for(int id = 1; id <= size; id++) {
+				colonies.add(new Colony(id, (id % 1000) * 1.25, (id / 1000) * 2.5, Colony.ACTIVE, 1340000000000L + id));
+			}
+			assertTrue(new JSONFileParser(file).write(colonies));
+			colonies = null;
+
+			Task read = new Task() {
+				@Override
+				public void run() throws Exception {
+					JSONColonyReader reader = new JSONColonyReader(new BufferedReader(new FileReader(file)));
+					try {
+						int count = 0;
+						while(reader.next() != null) {
+							count++;
+						}
+						assertEquals(size, count);
+					}
+					finally {
+						reader.close();
+					}
+				}
+			};
+			long nanos = measure(read);
+			long bytes = measureAllocation(read);
+			String allocated = bytes == -1 ? "unknown" : String.format("%d", bytes / size);
+			double megabytes = file.length() / 1e6;
+			report("read", size, nanos, String.format(", %.1f MB file, %.1f MB/s, %s bytes allocated per colony",
+					megabytes, megabytes / (nanos / 1e9), allocated));
+		}
+	}
+}
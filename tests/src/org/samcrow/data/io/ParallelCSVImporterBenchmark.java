@@ -0,0 +1,84 @@
+package org.samcrow.data.io;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.samcrow.BenchmarkCase;
+
+/**
+ * Measures how {@link ParallelCSVImporter} scales from one thread up to the
+ * number of processors, compared with {@link CSVFileParser#parse()} on one
+ * thread.
+ * <p>
+ * A census file of 1,000,000 lines is used, or 100,000 lines if the larger
+ * one would not fit in the heap.
+ * </p>
+ *
+ * @author Sam Crow
+ */
+public class ParallelCSVImporterBenchmark extends BenchmarkCase {
+
+	private static final int kLargeSize = 1000000;
+	private static final int kSmallSize = 100000;
+
+	private File dir;
+	private File file;
+	private int size;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		dir = AtomicFileTest.createTempDir();
+		file = new File(dir, "colonies.csv");
+		size = fits(kLargeSize) ? kLargeSize : kSmallSize;
+		CSVTokenizerBenchmark.writeCensus(file, size);
+	}
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		AtomicFileTest.deleteAll(dir);
+	}
+
+	public void testScaling() throws Exception {
+		long serial = measure(new Task() {
+			@Override
+			public void run() {
+				assertEquals(size, new CSVFileParser(file).parse().size());
+			}
+		});
+		report("CSVFileParser", size, serial, "");
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		for(int threads = 1; threads <= processors; threads *= 2) {
+			measureThreads(threads, serial);
+		}
+		if(Integer.bitCount(processors) != 1) {
+			measureThreads(processors, serial);
+		}
+	}
+
+	private void measureThreads(int threads, long serial) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			//Several chunks for each thread, so that uneven chunks even out
+			final ParallelCSVImporter importer = new ParallelCSVImporter(file, executor, threads * 4);
+			long nanos = measure(new Task() {
+				@Override
+				public void run() throws Exception {
+					assertEquals(size, importer.importColonies().size());
+					assertTrue(importer.getErrors().isEmpty());
+				}
+			});
+			report(threads + " threads", size, nanos, String.format(", %.2fx CSVFileParser", (double) serial / nanos));
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}